@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.deploydb;
+
+import hudson.util.XStream2;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhookParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.profile.ProfilerResult;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Measures loading a {@link DeployDbBuildAction} from a build record, as happens for each build loaded from disk.
+ * <p/>
+ * The {@code legacy} format is a build record written by previous versions, containing the full webhook with its
+ * payload as nested maps; these records are migrated when loaded. The {@code compact} format is what is written now.
+ * <p/>
+ * The heap retained by each loaded action is reported by {@link RetainedHeapProfiler}, which the build enables, as a
+ * secondary result alongside the load time. In both formats, this is the whole action as loaded, so for the legacy
+ * format it is the action after migration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BuildActionPersistenceBenchmark {
+
+    /** Number of instances loaded when estimating retained heap. */
+    private static final int RETAINED_INSTANCES = 10000;
+
+    private static final String PAYLOAD = "{\"id\": 1, \"service\": \"faas\", \"status\": \"STARTED\","
+            + " \"environment\": \"pre-prod\", \"createdAt\": \"2015-03-14T09:26:53+00:00\", \"artifact\": {"
+            + "\"id\": 2, \"group\": \"com.example.cucumber\", \"name\": \"cucumber-artifact\", \"version\": \"1.0.1\","
+            + " \"sourceUrl\": \"http://example.com/maven/cucumber-artifact-1.0.1.jar\","
+            + " \"createdAt\": \"2015-03-14T09:26:53+00:00\"}}";
+
+    /** The webhook payload above, as it was written into build records by previous versions. */
+    private static final String LEGACY_XML = "<org.jenkinsci.plugins.deploydb.DeployDbBuildAction><hook>"
+            + "<eventType>DEPLOYMENT_STARTED</eventType><id>1</id><service>faas</service><map>"
+            + entry("status", "<string>STARTED</string>")
+            + entry("environment", "<string>pre-prod</string>")
+            + entry("createdAt", "<string>2015-03-14T09:26:53+00:00</string>")
+            + entry("artifact", "<linked-hash-map>"
+                    + entry("id", "<int>2</int>")
+                    + entry("group", "<string>com.example.cucumber</string>")
+                    + entry("name", "<string>cucumber-artifact</string>")
+                    + entry("version", "<string>1.0.1</string>")
+                    + entry("sourceUrl", "<string>http://example.com/maven/cucumber-artifact-1.0.1.jar</string>")
+                    + entry("createdAt", "<string>2015-03-14T09:26:53+00:00</string>")
+                    + "</linked-hash-map>")
+            + "</map></hook></org.jenkinsci.plugins.deploydb.DeployDbBuildAction>";
+
+    @Param({"legacy", "compact"})
+    public String format;
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    private String xml;
+
+    @Setup
+    public void setUp() throws IOException {
+        xml = toXml(format);
+    }
+
+    @Benchmark
+    public Object load() {
+        return XSTREAM.fromXML(xml);
+    }
+
+    /** @return A build record containing an action in the given format. */
+    private static String toXml(String format) throws IOException {
+        if (format.equals("legacy")) {
+            return LEGACY_XML;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(PAYLOAD.getBytes(UTF_8));
+        return XSTREAM.toXML(new DeployDbBuildAction(new TriggerWebhookParser().parse(in)));
+    }
+
+    /** @return An estimate of the heap retained by an action loaded in the given format, in bytes. */
+    static long measureRetainedHeap(String format) throws IOException {
+        final String retainedXml = toXml(format);
+        final Object[] retained = new Object[RETAINED_INSTANCES];
+        final long before = usedHeap();
+        for (int i = 0; i < retained.length; i++) {
+            retained[i] = XSTREAM.fromXML(retainedXml);
+        }
+        final long after = usedHeap();
+
+        // Use the loaded actions after measuring, so that they can't be collected before then
+        for (Object action : retained) {
+            if (!(action instanceof DeployDbBuildAction)) {
+                throw new IllegalStateException("Unexpected object loaded: " + action);
+            }
+        }
+        return (after - before) / retained.length;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String entry(String key, String valueXml) {
+        return "<entry><string>" + key + "</string>" + valueXml + "</entry>";
+    }
+
+    /**
+     * Reports the heap retained by each action loaded by this benchmark, after each measurement iteration, so that it
+     * is kept in the results with the other secondary results. The actions are loaded outside of the measured code.
+     */
+    public static class RetainedHeapProfiler implements InternalProfiler {
+
+        @Override
+        public String label() {
+            return "retained";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Heap retained per loaded DeployDB build action";
+        }
+
+        @Override
+        public boolean checkSupport(List<String> msgs) {
+            return true;
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                           IterationParams iterationParams, IterationResult result) {
+            if (iterationParams.getType() != IterationType.MEASUREMENT
+                    || !benchmarkParams.getBenchmark().startsWith(BuildActionPersistenceBenchmark.class.getName())) {
+                return Collections.emptyList();
+            }
+            try {
+                final long bytes = measureRetainedHeap(benchmarkParams.getParam("format"));
+                return Collections.singletonList(new ProfilerResult("\u00b7retained.heap", bytes, "B/action",
+                        AggregationPolicy.AVG));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
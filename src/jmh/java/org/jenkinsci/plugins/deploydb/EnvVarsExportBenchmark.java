@@ -0,0 +1,101 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.CaseFormat;
+import hudson.EnvVars;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhookParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.CaseFormat.LOWER_CAMEL;
+import static com.google.common.base.Charsets.UTF_8;
+import static hudson.Util.fixNull;
+import static java.util.Locale.ROOT;
+
+/**
+ * Measures exporting the environment variables of a DeployDB-triggered build, for payloads with varying numbers of
+ * fields spread across nested objects.
+ * <p/>
+ * Allocation per call is reported by the GC profiler, which the build enables for all benchmarks. Each call includes
+ * creating an empty {@link EnvVars}, which {@link #newEnvVars} measures on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvVarsExportBenchmark {
+
+    private static final int FIELDS_PER_OBJECT = 10;
+
+    /** Number of nested objects in the payload, each with {@value #FIELDS_PER_OBJECT} fields. */
+    @Param({"2", "20", "200"})
+    public int objects;
+
+    private DeployDbBuildAction action;
+    private Map<String, Object> legacyPayload;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        StringBuilder json = new StringBuilder("{\"id\": 1, \"service\": \"faas\"");
+        for (int i = 0; i < objects; i++) {
+            json.append(String.format(ROOT, ", \"nestedObject%d\": {\"innerObject\": {", i));
+            for (int j = 0; j < FIELDS_PER_OBJECT; j++) {
+                json.append(String.format(ROOT, "%s\"someField%d\": \"value %d\"", j == 0 ? "" : ", ", j, j));
+            }
+            json.append("}}");
+        }
+        json.append('}');
+
+        byte[] payload = json.toString().getBytes(UTF_8);
+        action = new DeployDbBuildAction(new TriggerWebhookParser().parse(new ByteArrayInputStream(payload)));
+        legacyPayload = new ObjectMapper().readValue(payload, Map.class);
+    }
+
+    @Benchmark
+    public EnvVars newEnvVars() {
+        return new EnvVars();
+    }
+
+    @Benchmark
+    public EnvVars buildEnvVars() {
+        EnvVars env = new EnvVars();
+        action.buildEnvVars(null, env);
+        return env;
+    }
+
+    /** Baseline: the original implementation, which walked the nested payload maps on every call. */
+    @Benchmark
+    public EnvVars buildEnvVarsFromNestedMaps() {
+        EnvVars env = new EnvVars();
+        exportHookValues(env, null, legacyPayload);
+        return env;
+    }
+
+    /** Copy of the original recursive export, from before the payload was flattened. */
+    @SuppressWarnings("unchecked")
+    private static void exportHookValues(EnvVars env, String nestingPrefix, Map<String, Object> values) {
+        nestingPrefix = fixNull(nestingPrefix).trim();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                exportHookValues(env, nestingPrefix + entry.getKey() + "_", (Map<String, Object>) value);
+            } else {
+                String key = DeployDbBuildAction.ENV_VAR_PREFIX
+                        + LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, nestingPrefix + entry.getKey());
+                env.put(key, String.valueOf(value));
+            }
+        }
+    }
+
+}
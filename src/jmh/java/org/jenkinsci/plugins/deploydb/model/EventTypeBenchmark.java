@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up the event type of an incoming webhook from its Content-Type header, which happens for every
+ * webhook received.
+ * <p/>
+ * The header values include known types exactly as DeployDB sends them, which are found with a single table lookup, and
+ * values which first need to be normalised: in upper case, with parameters, with a later version, or not known at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventTypeBenchmark {
+
+    /** Content-Type header values, as sent by DeployDB or other clients. */
+    @Param({
+            "application/vnd.deploydb.deploymentcreated.v1+json",
+            "application/vnd.deploydb.promotioncompleted.v1+json",
+            "APPLICATION/VND.DEPLOYDB.PROMOTIONCOMPLETED.V1+JSON",
+            "application/vnd.deploydb.promotioncompleted.v1+json; charset=UTF-8",
+            "application/vnd.deploydb.promotioncompleted.v2+json",
+            "application/json"
+    })
+    public String contentType;
+
+    @Benchmark
+    public EventType forMimeType() {
+        return EventType.forMimeType(contentType);
+    }
+
+}
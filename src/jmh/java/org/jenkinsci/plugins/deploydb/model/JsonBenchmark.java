@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.Locale.ROOT;
+
+/**
+ * Measures parsing incoming webhook payloads and serialising outgoing reports.
+ * <p/>
+ * Parsing compares the original approach, i.e. binding the payload to nested maps with a new mapper for each payload,
+ * against the streaming {@link TriggerWebhookParser}. Serialising compares a new mapper for each report against the
+ * shared {@link Json} writer.
+ * <p/>
+ * Each sample payload is also padded with a nested object of extra fields, to show how parsing scales with payload size.
+ * <p/>
+ * Allocation per operation is reported by the GC profiler, which the build enables for all benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JsonBenchmark {
+
+    /** Sample payloads, from the test resources. */
+    @Param({"hook_empty.json", "hook_trigger_deployment_started.json", "hook_trigger_nested.json"})
+    public String payload;
+
+    /** Number of extra fields added to the sample payload. */
+    @Param({"0", "100", "1000"})
+    public int extraFields;
+
+    private final TriggerWebhookParser parser = new TriggerWebhookParser();
+    private byte[] json;
+    private ReportWebhook report;
+
+    @Setup
+    public void setUp() throws IOException {
+        json = pad(readResource("/org/jenkinsci/plugins/deploydb/" + payload), extraFields);
+        report = new ReportWebhook("some-job", "http://jenkins.example.com/job/some-job/123/", true);
+    }
+
+    @Benchmark
+    public Map<?, ?> parseToMapsWithNewMapper() throws IOException {
+        return new ObjectMapper().readValue(json, Map.class);
+    }
+
+    @Benchmark
+    public TriggerWebhook parseWithStreamingParser() throws IOException {
+        return parser.parse(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public String serialiseWithNewMapper() throws IOException {
+        return new ObjectMapper().writeValueAsString(report);
+    }
+
+    @Benchmark
+    public String serialiseWithSharedWriter() throws IOException {
+        return Json.REPORT_WEBHOOK_WRITER.writeValueAsString(report);
+    }
+
+    /** @return The given JSON object, with an extra nested object containing the given number of fields. */
+    private static byte[] pad(byte[] json, int fields) {
+        if (fields == 0) {
+            return json;
+        }
+        final String original = new String(json, UTF_8);
+        final int end = original.lastIndexOf('}');
+        final StringBuilder padded = new StringBuilder(original.substring(0, end));
+        if (padded.toString().trim().length() > 1) {
+            padded.append(", ");
+        }
+        padded.append("\"padding\": {");
+        for (int i = 0; i < fields; i++) {
+            padded.append(String.format(ROOT, "%s\"field%d\": \"value %d\"", i == 0 ? "" : ", ", i, i));
+        }
+        padded.append("}}");
+        return padded.toString().getBytes(UTF_8);
+    }
+
+    private static byte[] readResource(String path) throws IOException {
+        InputStream in = JsonBenchmark.class.getResourceAsStream(path);
+        if (in == null) {
+            throw new IOException("Missing payload resource: " + path);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.Locale.ROOT;
+
+/**
+ * Measures the overhead of verifying the signatures of incoming webhooks, as they are parsed.
+ * <p/>
+ * Payloads of several sizes are parsed with and without verification; the difference between the two, divided by the
+ * payload size, gives the verification overhead per KB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebhookSignatureBenchmark {
+
+    /** Approximate payload size, in KB. */
+    @Param({"1", "16", "256"})
+    public int payloadKb;
+
+    private final TriggerWebhookParser parser = new TriggerWebhookParser(1024 * 1024,
+            TriggerWebhookParser.DEFAULT_MAX_DEPTH, Integer.MAX_VALUE);
+    private final WebhookSignature signature = new WebhookSignature("benchmark secret");
+    private byte[] json;
+    private byte[] expected;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder payload = new StringBuilder("{\"id\": 1, \"service\": \"faas\"");
+        for (int i = 0; payload.length() < payloadKb * 1024 - 2; i++) {
+            payload.append(String.format(ROOT, ", \"field%d\": \"value %d\"", i, i));
+        }
+        json = payload.append("}\n").toString().getBytes(UTF_8);
+        expected = WebhookSignature.parse(signature.sign(json));
+    }
+
+    @Benchmark
+    public TriggerWebhook parse() throws IOException {
+        return parser.parse(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public TriggerWebhook parseAndVerify() throws IOException {
+        final WebhookSignature.SigningInputStream in = signature.sign(new ByteArrayInputStream(json));
+        final TriggerWebhook hook = parser.parse(in);
+        if (!in.verify(expected, Long.MAX_VALUE)) {
+            throw new IllegalStateException("Signature does not match");
+        }
+        return hook;
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.deploydb.model.events;
+
+import hudson.model.AbstractProject;
+import org.jenkinsci.plugins.deploydb.ServiceNameMatcher;
+import org.jenkinsci.plugins.deploydb.model.EventType;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhookParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static hudson.Util.fixEmptyAndTrim;
+import static java.util.Locale.ROOT;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures matching a single incoming webhook against the service name criteria of many configured triggers: by
+ * evaluating each trigger in turn, and with a {@link ServiceNameMatcher}, on one thread or on one per processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServiceNameMatchingBenchmark {
+
+    /** Number of trigger events configured across all jobs. */
+    @Param({"100", "1000", "10000"})
+    public int triggerCount;
+
+    private AbstractProject<?, ?> job;
+    private TriggerWebhook hook;
+    private List<DeployDbTriggerEvent> events;
+    private ServiceNameMatcher<DeployDbTriggerEvent> matcher;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        job = mock(AbstractProject.class);
+
+        String json = String.format(ROOT, "{\"id\": 1, \"service\": \"service-%d\"}", triggerCount / 2);
+        hook = new TriggerWebhookParser().parse(new ByteArrayInputStream(json.getBytes(UTF_8)));
+        hook.setType(EventType.DEPLOYMENT_STARTED.getMimeType());
+
+        // Half of the triggers are configured with plain service names, and half with regular expressions
+        events = new ArrayList<DeployDbTriggerEvent>(triggerCount);
+        for (int i = 0; i < triggerCount; i++) {
+            DeployDbTriggerEvent event = new DeploymentStartedEvent();
+            if (i % 2 == 0) {
+                event.setServiceNameRegex(String.format(ROOT, "service-%d", i));
+            } else {
+                event.setServiceNameRegex(String.format(ROOT, "(team-%d|service)-[a-z]+-\\d{1,4}", i));
+            }
+            events.add(event);
+        }
+
+        ServiceNameMatcher.Builder<DeployDbTriggerEvent> builder = ServiceNameMatcher.builder();
+        for (DeployDbTriggerEvent event : events) {
+            builder.add(event.getServiceNameRegex(), event.getServiceNamePattern(), event);
+        }
+        matcher = builder.build();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /** Baseline: the original implementation, which compiled each regex twice for every hook. */
+    @Benchmark
+    public int acceptsCompilingRegexPerHook() {
+        int matches = 0;
+        for (DeployDbTriggerEvent event : events) {
+            if (acceptsCompilingRegex(event, hook)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int acceptsWithCachedPattern() {
+        int matches = 0;
+        for (DeployDbTriggerEvent event : events) {
+            if (event.accepts(job, hook)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int matchSerially() {
+        return matcher.match(hook.getService()).size();
+    }
+
+    @Benchmark
+    public int matchInParallel() {
+        return matcher.match(hook.getService(), executor, 1).size();
+    }
+
+    /** Copy of {@link DeployDbTriggerEvent#accepts} as it was before compiled patterns were cached. */
+    private static boolean acceptsCompilingRegex(DeployDbTriggerEvent event, TriggerWebhook hook) {
+        final String serviceNameRegex = event.getServiceNameRegex();
+        try {
+            Pattern.compile(serviceNameRegex);
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+
+        if (hook.getEventType() != event.getEventType()) {
+            return false;
+        }
+
+        final String service = fixEmptyAndTrim(hook.getService());
+        if (service == null) {
+            return false;
+        }
+        return service.equalsIgnoreCase(serviceNameRegex) || service.matches(serviceNameRegex);
+    }
+
+}
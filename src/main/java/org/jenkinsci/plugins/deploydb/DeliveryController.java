@@ -0,0 +1,246 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Controls how many report deliveries may be in flight to each DeployDB host, adapting to how the host is coping.
+ * <p/>
+ * Each host has a concurrency limit which grows by one for every limit's worth of successful deliveries, and halves on
+ * every failure (additive increase, multiplicative decrease), between one and the number of delivery workers.
+ * <p/>
+ * After several consecutive failures, the host's circuit breaker opens, and no deliveries are attempted until a
+ * cooling-off period has passed. A single probe delivery is then allowed: if it succeeds, the breaker closes again;
+ * otherwise it re-opens, for twice as long as before.
+ * <p/>
+ * Failures are connection errors and server errors; DeployDB rejecting a particular report is not held against the host.
+ */
+public final class DeliveryController {
+
+    private static final Logger LOGGER = Logger.getLogger(DeliveryController.class.getName());
+
+    /** Number of consecutive failures after which the circuit breaker opens. */
+    static final int FAILURE_THRESHOLD = 5;
+
+    /** How long the circuit breaker first stays open, in milliseconds; doubled for each failed probe. */
+    static final long OPEN_MILLIS = 10 * 1000;
+
+    /** Maximum time the circuit breaker stays open before allowing a probe, in milliseconds. */
+    static final long MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+    /** Weight given to each new sample in the moving averages of latency and error rate. */
+    private static final double SMOOTHING = 0.2;
+
+    /** States of a host's circuit breaker. */
+    public enum State {
+        /** Deliveries are allowed, up to the concurrency limit. */
+        CLOSED,
+        /** No deliveries are allowed, until the cooling-off period has passed. */
+        OPEN,
+        /** A single probe delivery is allowed, to find out whether the host has recovered. */
+        HALF_OPEN
+    }
+
+    private final Ticker ticker;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    public DeliveryController() {
+        this(Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    DeliveryController(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /** @return The host which the given URL refers to, which is tracked from now on. */
+    Host getHost(String url) {
+        final String name = getHostName(url);
+        Host host = hosts.get(name);
+        if (host == null) {
+            synchronized (hosts) {
+                host = hosts.get(name);
+                if (host == null) {
+                    host = new Host(name);
+                    hosts.put(name, host);
+                }
+            }
+        }
+        return host;
+    }
+
+    /** @return All hosts to which deliveries have been attempted. */
+    public Collection<Host> getHosts() {
+        return new ArrayList<Host>(hosts.values());
+    }
+
+    private static String getHostName(String url) {
+        try {
+            final URL parsed = new URL(url);
+            return parsed.getPort() == -1 ? parsed.getHost() : parsed.getHost() + ":" + parsed.getPort();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * @param failure The exception with which a delivery failed, or {@code null} if it succeeded.
+     * @return Whether the outcome of a delivery indicates that the host is healthy.
+     */
+    static boolean isHealthy(Exception failure) {
+        if (failure instanceof ReportRejectedException) {
+            return ((ReportRejectedException) failure).getStatus() < 500;
+        }
+        return failure == null;
+    }
+
+    /** Delivery state of a single DeployDB host. */
+    public final class Host {
+
+        private final String name;
+
+        // All guarded by this
+        private State state = State.CLOSED;
+        private double limit = 1;
+        private int maxLimit = 1;
+        private int inFlight;
+        private int consecutiveFailures;
+        private long openNanos = TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS);
+        private long openUntil;
+        private double latencyMillis;
+        private double errorRate;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Waits until a delivery to this host is allowed, and counts it as in flight.
+         *
+         * @param maxLimit Maximum number of deliveries to allow in flight at once.
+         */
+        synchronized void acquire(int maxLimit) throws InterruptedException {
+            while (!tryAcquire(maxLimit)) {
+                if (state == State.OPEN) {
+                    TimeUnit.NANOSECONDS.timedWait(this, openUntil - ticker.read());
+                } else {
+                    wait();
+                }
+            }
+        }
+
+        /**
+         * Counts a delivery to this host as in flight, if one is allowed now.
+         *
+         * @param maxLimit Maximum number of deliveries to allow in flight at once.
+         * @return Whether the delivery is allowed.
+         */
+        synchronized boolean tryAcquire(int maxLimit) {
+            if (this.maxLimit != maxLimit) {
+                // Start at full concurrency, and adapt from there
+                this.maxLimit = maxLimit;
+                limit = maxLimit;
+            }
+            if (state == State.OPEN) {
+                if (ticker.read() - openUntil < 0) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+            }
+
+            final int allowed = state == State.HALF_OPEN ? 1 : (int) limit;
+            if (inFlight >= allowed) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        /**
+         * Records the outcome of a delivery acquired earlier, and adapts to it.
+         *
+         * @param healthy Whether the outcome indicates the host is healthy, as per {@link #isHealthy}.
+         * @param latencyNanos How long the delivery took.
+         */
+        synchronized void release(boolean healthy, long latencyNanos) {
+            inFlight--;
+            latencyMillis += SMOOTHING * (latencyNanos / 1e6 - latencyMillis);
+            errorRate += SMOOTHING * ((healthy ? 0 : 1) - errorRate);
+
+            if (healthy) {
+                consecutiveFailures = 0;
+                limit = Math.min(maxLimit, limit + 1 / limit);
+                if (state == State.HALF_OPEN) {
+                    LOGGER.info(String.format("DeployDB host %s has recovered; resuming report delivery.", name));
+                    state = State.CLOSED;
+                    openNanos = TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS);
+                }
+            } else {
+                consecutiveFailures++;
+                limit = Math.max(1, limit / 2);
+                if (state == State.HALF_OPEN) {
+                    open(Math.min(openNanos * 2, TimeUnit.MILLISECONDS.toNanos(MAX_OPEN_MILLIS)));
+                } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+                    open(openNanos);
+                }
+            }
+            notifyAll();
+        }
+
+        private void open(long nanos) {
+            LOGGER.warning(String.format("Pausing report delivery to DeployDB host %s for %d seconds, after %d "
+                    + "consecutive failures.", name, TimeUnit.NANOSECONDS.toSeconds(nanos), consecutiveFailures));
+            state = State.OPEN;
+            openNanos = nanos;
+            openUntil = ticker.read() + nanos;
+        }
+
+        /** @return The host name, and port if not the default. */
+        public String getName() {
+            return name;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        /** @return Whether deliveries are currently being held back, until the host has recovered. */
+        synchronized boolean isOpen() {
+            return state == State.OPEN;
+        }
+
+        /** @return The current concurrency limit. */
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /** @return Moving average of delivery latency, in milliseconds. */
+        public synchronized long getLatencyMillis() {
+            return Math.round(latencyMillis);
+        }
+
+        /** @return Moving average of the proportion of failed deliveries, as a percentage. */
+        public synchronized int getErrorPercentage() {
+            return (int) Math.round(errorRate * 100);
+        }
+
+    }
+
+}
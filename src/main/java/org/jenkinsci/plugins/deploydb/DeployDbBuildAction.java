@@ -1,87 +1,280 @@
 package org.jenkinsci.plugins.deploydb;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.primitives.Longs;
 import hudson.EnvVars;
+import hudson.Extension;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.EnvironmentContributingAction;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.deploydb.model.EventType;
 import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
 
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.google.common.base.CaseFormat.LOWER_CAMEL;
-import static hudson.Util.fixNull;
 
-/** Contains the data required for a DeployDB-triggered build, and exports it to the build environment. */
-public class DeployDbBuildAction implements EnvironmentContributingAction {
+/**
+ * Contains the data required for a DeployDB-triggered build, and exports it to the build environment.
+ * <p/>
+ * Rather than the full webhook, only the values needed later are kept, with the payload already converted to the
+ * environment variables to be exported. As this action is persisted with every triggered build, the keys are interned,
+ * so that the many builds loaded from disk share a single copy of each key.
+ * <p/>
+ * An action is never modified once created, so a single instance is shared by all of the builds triggered by the same
+ * webhook.
+ * <p/>
+ * While a build is waiting in the queue, any further build of the same job triggered by the same DeployDB event is
+ * merged into it, whereas builds triggered by other events are scheduled separately. Where a trigger instead merges
+ * other deployments of the same service into a queued build, the queued action is replaced with one which also carries
+ * the IDs of those deployments, so that each of them is reported on.
+ */
+public class DeployDbBuildAction implements EnvironmentContributingAction, Queue.QueueAction {
 
     /** Prefix to apply to all environment variables this action exports. */
     static final String ENV_VAR_PREFIX = "DDB_";
 
-    private final TriggerWebhook hook;
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * Environment variable names for each payload key seen, shared across all actions. Payload keys are mostly the same
+     * for every webhook, but as they are arbitrary, the number of entries is bounded.
+     */
+    private static final LoadingCache<String, String> ENV_KEYS = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build(new CacheLoader<String, String>() {
+                @Override
+                public String load(String key) {
+                    return (ENV_VAR_PREFIX + LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, key)).intern();
+                }
+            });
+
+    private EventType eventType;
+    private long deploymentId;
+    private String service;
+
+    /** IDs of other deployments of the same service, whose webhooks were merged into the build while it was queued. */
+    private long[] mergedDeploymentIds;
+
+    /** Names of the environment variables to export, each prefixed with {@link #ENV_VAR_PREFIX}. */
+    private String[] envKeys;
+
+    /** Values of the environment variables to export, at the same index as their name. */
+    private String[] envValues;
+
+    /** The environment variables to export, created on first use. */
+    private transient volatile Map<String, String> envVars;
+
+    /** @deprecated The webhook which triggered the build, as persisted by previous versions. */
+    @Deprecated
+    private TriggerWebhook hook;
 
     public DeployDbBuildAction(TriggerWebhook hook) {
-        this.hook = hook;
+        setHookValues(hook);
+    }
+
+    /** Creates a copy of the given action, with the given merged deployments; the exported values are shared. */
+    private DeployDbBuildAction(DeployDbBuildAction action, long[] mergedDeploymentIds) {
+        eventType = action.eventType;
+        deploymentId = action.deploymentId;
+        service = action.service;
+        envKeys = action.envKeys;
+        envValues = action.envValues;
+        envVars = action.envVars;
+        this.mergedDeploymentIds = mergedDeploymentIds;
     }
 
-    /** @return The webhook that triggered the build to which this action is attached. */
+    /** @return The type of event which triggered the build to which this action is attached. */
+    public EventType getEventType() {
+        return eventType;
+    }
+
+    /** @return The ID of the DeployDB deployment which triggered the build to which this action is attached. */
+    public long getDeploymentId() {
+        return deploymentId;
+    }
+
+    /**
+     * @return The IDs of all of the deployments to be reported on when the build to which this action is attached
+     *         completes: the deployment which triggered it, followed by any merged into it while it was queued.
+     */
+    public long[] getDeploymentIds() {
+        final int merged = mergedDeploymentIds == null ? 0 : mergedDeploymentIds.length;
+        final long[] ids = new long[merged + 1];
+        ids[0] = deploymentId;
+        if (merged > 0) {
+            System.arraycopy(mergedDeploymentIds, 0, ids, 1, merged);
+        }
+        return ids;
+    }
+
+    /** @return The name of the service whose deployment triggered the build to which this action is attached. */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return A webhook rebuilt from the values stored by this action. As the original payload keys are not kept, the
+     *         other payload values are keyed by the names of the environment variables they are exported as, e.g.
+     *         {@code DDB_ARTIFACT_BUILD_ID} rather than {@code artifact_buildId}.
+     * @deprecated Only the values needed by triggered builds are kept; use {@link #getEventType()},
+     *             {@link #getDeploymentId()} and {@link #getService()} instead.
+     */
+    @Deprecated
     public TriggerWebhook getHook() {
-        return hook;
+        // The first two variables are the deployment ID and service, which the webhook holds separately
+        final int others = Math.max(envKeys.length - 2, 0);
+        final TriggerWebhook webhook = new TriggerWebhook(deploymentId, service,
+                Arrays.asList(envKeys).subList(envKeys.length - others, envKeys.length),
+                Arrays.asList(envValues).subList(envValues.length - others, envValues.length));
+        webhook.setEventType(eventType);
+        return webhook;
     }
 
     @Override
     public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
-        // Export the common environment variables
-        env.put(getEnvKey("eventId"), String.valueOf(hook.getId()));
-        env.put(getEnvKey("service"), hook.getService());
+        exportEnvVars(env);
+    }
+
+    /** Adds the environment variables for the triggering webhook to the given environment. */
+    private void exportEnvVars(EnvVars env) {
+        // This is called many times during a build, so the variables are only gathered once
+        Map<String, String> vars = envVars;
+        if (vars == null) {
+            vars = new LinkedHashMap<String, String>(envKeys.length * 2);
+            for (int i = 0; i < envKeys.length; i++) {
+                vars.put(envKeys[i], envValues[i]);
+            }
+            envVars = vars = Collections.unmodifiableMap(vars);
+        }
+        env.putAll(vars);
+    }
+
+    /**
+     * @param actions The actions of another build of the same job, either queued or about to be.
+     * @return {@code false} if the other build was triggered by the same DeployDB event as this one, so the two should
+     *         be merged; otherwise {@code true}.
+     */
+    @Override
+    public boolean shouldSchedule(List<Action> actions) {
+        for (Action action : actions) {
+            if (action instanceof DeployDbBuildAction && isSameEvent((DeployDbBuildAction) action)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // Recursively export all other key/value pairs in the hook payload
-        exportHookValues(env, hook.getOtherValues());
+    /** @return Whether the given action was created for the same DeployDB event as this one. */
+    private boolean isSameEvent(DeployDbBuildAction other) {
+        // Events without an ID can't be told apart
+        return deploymentId != 0 && deploymentId == other.deploymentId && eventType == other.eventType;
     }
 
-    private static void exportHookValues(EnvVars env, Map<String, Object> values) {
-        exportHookValues(env, null, values);
+    /** @return Whether the given action was created for the same type of event, for the same service, as this one. */
+    boolean isSameServiceEvent(DeployDbBuildAction other) {
+        return eventType == other.eventType && service != null && service.equals(other.service);
     }
 
     /**
-     * Recursively adds all key/values from the given map to the environment.
+     * Merges the deployment of another action, for the same type of event for the same service, into the queued build
+     * to which this action is attached. As this action may be shared with the builds of other jobs, it isn't modified.
      *
-     * @param env Environment to add to.
-     * @param nestingPrefix Optional prefix to add to each key, if the values map contains a nested map.
-     * @param values Key/value pairs to be added to the environment.
+     * @return A copy of this action, which also carries the other deployment's ID; or this action, if that deployment
+     *         has no ID or is already carried.
      */
-    private static void exportHookValues(EnvVars env, String nestingPrefix, Map<String, Object> values) {
-        if (env == null || values == null) {
-            return;
+    DeployDbBuildAction withMergedDeployment(DeployDbBuildAction other) {
+        final long[] ids = getDeploymentIds();
+        if (other.deploymentId == 0 || Longs.contains(ids, other.deploymentId)) {
+            return this;
         }
+        final long[] merged = Arrays.copyOfRange(ids, 1, ids.length + 1);
+        merged[merged.length - 1] = other.deploymentId;
+        return new DeployDbBuildAction(this, merged);
+    }
 
-        nestingPrefix = fixNull(nestingPrefix).trim();
-        for (Map.Entry<String, Object> entry : values.entrySet()) {
-            Object value = entry.getValue();
-            if (value instanceof Map) {
-                exportHookValues(env, nestingPrefix + entry.getKey() + "_", (Map<String, Object>) value);
-            } else {
-                env.put(getEnvKey(entry.getKey(), nestingPrefix), String.valueOf(value));
-            }
+    /** Converts the given webhook to the form stored by this action. */
+    private void setHookValues(TriggerWebhook hook) {
+        eventType = hook.getEventType();
+        deploymentId = hook.getId();
+        service = hook.getService();
+
+        // Export the common environment variables, followed by all other key/value pairs in the hook payload;
+        // nested keys have already been flattened
+        final Map<String, String> otherValues = hook.getOtherValues();
+        final int size = otherValues.size() + 2;
+        envKeys = new String[size];
+        envValues = new String[size];
+        envKeys[0] = getEnvKey("eventId");
+        envValues[0] = String.valueOf(deploymentId);
+        envKeys[1] = getEnvKey("service");
+        envValues[1] = service;
+
+        int i = 2;
+        for (Map.Entry<String, String> entry : otherValues.entrySet()) {
+            envKeys[i] = getEnvKey(entry.getKey());
+            envValues[i++] = entry.getValue();
         }
     }
 
-    private static String getEnvKey(String key) {
-        return getEnvKey(key, null);
+    /** Migrates actions persisted by previous versions, and shares the environment variable names between builds. */
+    protected Object readResolve() {
+        if (hook != null) {
+            setHookValues(hook);
+            hook = null;
+        }
+        if (envKeys == null || envValues == null) {
+            envKeys = envValues = EMPTY;
+        }
+        for (int i = 0; i < envKeys.length; i++) {
+            envKeys[i] = envKeys[i].intern();
+        }
+        return this;
     }
 
     /**
-     * Turns a key and optional prefix into a DeployDB environment variable name.
+     * Turns a payload key into a DeployDB environment variable name.
      * <p/>
      * Values in {@code camelCase} will be converted to be {@code UNDERSCORE_SEPARATED}.
      *
-     * @param key Value, possibly camel-cased.
-     * @param nestingPrefix Optional string prefix, possibly camel-cased, e.g. {@code artifact} or {@code artifactInfo}.
-     * @return A value prefixed with {@link #ENV_VAR_PREFIX}, e.g. given the parameters {@code key=buildId} and
-     *         {@code nestingPrefix=artifact}, {@code DDB_ARTIFACT_BUILD_ID} would be returned.
+     * @param key Value, possibly camel-cased, and possibly flattened from nested keys, e.g. {@code artifact_buildId}.
+     * @return A value prefixed with {@link #ENV_VAR_PREFIX}, e.g. given {@code artifact_buildId},
+     *         {@code DDB_ARTIFACT_BUILD_ID} would be returned.
      */
-    private static String getEnvKey(String key, String nestingPrefix) {
-        nestingPrefix = fixNull(nestingPrefix).trim();
-        return ENV_VAR_PREFIX + LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, nestingPrefix + key);
+    private static String getEnvKey(String key) {
+        return ENV_KEYS.getUnchecked(key);
+    }
+
+    /**
+     * Exports the environment variables of DeployDB-triggered builds which are not {@link AbstractBuild}s, such as
+     * Pipeline runs, as only {@link AbstractBuild}s consult {@link EnvironmentContributingAction}s.
+     */
+    @Extension
+    public static class EnvironmentContributorImpl extends EnvironmentContributor {
+
+        @Override
+        public void buildEnvironmentFor(@Nonnull Run r, @Nonnull EnvVars envs, @Nonnull TaskListener listener) {
+            if (r instanceof AbstractBuild) {
+                return;
+            }
+            final DeployDbBuildAction action = ((Run<?, ?>) r).getAction(DeployDbBuildAction.class);
+            if (action != null) {
+                action.exportEnvVars(envs);
+            }
+        }
+
     }
 
     // Not needed; this is not a UI-facing Action
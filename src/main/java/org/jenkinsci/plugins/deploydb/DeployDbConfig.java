@@ -1,15 +1,85 @@
 package org.jenkinsci.plugins.deploydb;
 
 import hudson.Extension;
+import hudson.Util;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
 import jenkins.model.GlobalConfiguration;
 import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhookParser;
+import org.jenkinsci.plugins.deploydb.model.WebhookSignature;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import java.util.Collection;
+import java.util.Collections;
+
 @Extension
 public class DeployDbConfig extends GlobalConfiguration {
 
+    static final int DEFAULT_TRIGGER_QUEUE_CAPACITY = 1000;
+    static final int DEFAULT_TRIGGER_WORKERS = 2;
+    static final int DEFAULT_PARALLEL_MATCH_THRESHOLD = 500;
+    static final int DEFAULT_MAX_BATCH_EVENTS = 1000;
+    static final long DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    static final int DEFAULT_REPORT_QUEUE_CAPACITY = 1000;
+    static final int DEFAULT_REPORT_WORKERS = 2;
+    static final int DEFAULT_REPORT_BATCH_SIZE = 50;
+    static final int DEFAULT_REPORT_BATCH_LINGER = 200;
+
     private String baseUrl;
 
+    /** Secret shared with DeployDB, with which incoming webhooks must be signed; if empty, signatures aren't checked. */
+    private Secret webhookSecret;
+
+    /** Verifies signatures made with the secret it was last built for, so that each key is only set up once. */
+    private transient volatile WebhookSignature webhookSignature;
+
+    /** Whether incoming webhooks should be accepted immediately, with matching builds being triggered later. */
+    private boolean asyncTriggers;
+
+    /** Maximum number of accepted webhooks waiting to be processed, in async mode. */
+    private int triggerQueueCapacity = DEFAULT_TRIGGER_QUEUE_CAPACITY;
+
+    /** Number of threads processing accepted webhooks, in async mode. */
+    private int triggerWorkers = DEFAULT_TRIGGER_WORKERS;
+
+    /** Number of service name regexes to be evaluated for a webhook, above which they are evaluated in parallel. */
+    private int parallelMatchThreshold = DEFAULT_PARALLEL_MATCH_THRESHOLD;
+
+    /** Maximum number of events accepted in a single batch of webhooks. */
+    private int maxBatchEvents = DEFAULT_MAX_BATCH_EVENTS;
+
+    /** Maximum size of a single batch of webhooks, in bytes. */
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    /** Maximum number of reports waiting to be delivered to DeployDB. */
+    private int reportQueueCapacity = DEFAULT_REPORT_QUEUE_CAPACITY;
+
+    /** Number of threads delivering reports to DeployDB. */
+    private int reportWorkers = DEFAULT_REPORT_WORKERS;
+
+    /**
+     * Path of DeployDB's batch endpoint, relative to the URL of a deployment's promotions; if set, reports for the same
+     * deployment are delivered together, via this endpoint.
+     */
+    private String reportBatchPath;
+
+    /** Maximum number of reports to gather into batches at once. */
+    private int reportBatchSize = DEFAULT_REPORT_BATCH_SIZE;
+
+    /** How long, in milliseconds, to wait for further reports to arrive before delivering a batch. */
+    private int reportBatchLinger = DEFAULT_REPORT_BATCH_LINGER;
+
+    /** Limits on the size of incoming webhook payloads; larger payloads are rejected. */
+    private long maxPayloadBytes = TriggerWebhookParser.DEFAULT_MAX_BYTES;
+    private int maxPayloadDepth = TriggerWebhookParser.DEFAULT_MAX_DEPTH;
+    private int maxPayloadFields = TriggerWebhookParser.DEFAULT_MAX_FIELDS;
+
+    @Inject private transient ReportPublisher publisher;
+
     public DeployDbConfig() {
         load();
     }
@@ -22,6 +92,214 @@ public class DeployDbConfig extends GlobalConfiguration {
         this.baseUrl = baseUrl;
     }
 
+    public Secret getWebhookSecret() {
+        return webhookSecret;
+    }
+
+    public void setWebhookSecret(Secret webhookSecret) {
+        this.webhookSecret = webhookSecret;
+    }
+
+    /** @return Verifier for the signatures of incoming webhooks, or {@code null} if no secret has been configured. */
+    @CheckForNull
+    public WebhookSignature getWebhookSignature() {
+        final String secret = webhookSecret == null ? null : Util.fixEmpty(webhookSecret.getPlainText());
+        if (secret == null) {
+            return null;
+        }
+        // The verifier is rebuilt whenever it was made with another secret, so that a verifier stored by a thread which
+        // read the previous secret is replaced by the next request
+        WebhookSignature signature = webhookSignature;
+        if (signature == null || !signature.isFor(secret)) {
+            webhookSignature = signature = new WebhookSignature(secret);
+        }
+        return signature;
+    }
+
+    public boolean isAsyncTriggers() {
+        return asyncTriggers;
+    }
+
+    public void setAsyncTriggers(boolean asyncTriggers) {
+        this.asyncTriggers = asyncTriggers;
+    }
+
+    public int getTriggerQueueCapacity() {
+        return triggerQueueCapacity > 0 ? triggerQueueCapacity : DEFAULT_TRIGGER_QUEUE_CAPACITY;
+    }
+
+    public void setTriggerQueueCapacity(int triggerQueueCapacity) {
+        this.triggerQueueCapacity = triggerQueueCapacity;
+    }
+
+    public int getTriggerWorkers() {
+        return triggerWorkers > 0 ? triggerWorkers : DEFAULT_TRIGGER_WORKERS;
+    }
+
+    public void setTriggerWorkers(int triggerWorkers) {
+        this.triggerWorkers = triggerWorkers;
+    }
+
+    public int getParallelMatchThreshold() {
+        return parallelMatchThreshold > 0 ? parallelMatchThreshold : DEFAULT_PARALLEL_MATCH_THRESHOLD;
+    }
+
+    public void setParallelMatchThreshold(int parallelMatchThreshold) {
+        this.parallelMatchThreshold = parallelMatchThreshold;
+    }
+
+    public int getMaxBatchEvents() {
+        return maxBatchEvents > 0 ? maxBatchEvents : DEFAULT_MAX_BATCH_EVENTS;
+    }
+
+    public void setMaxBatchEvents(int maxBatchEvents) {
+        this.maxBatchEvents = maxBatchEvents;
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes > 0 ? maxBatchBytes : DEFAULT_MAX_BATCH_BYTES;
+    }
+
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public long getMaxPayloadBytes() {
+        return maxPayloadBytes > 0 ? maxPayloadBytes : TriggerWebhookParser.DEFAULT_MAX_BYTES;
+    }
+
+    public void setMaxPayloadBytes(long maxPayloadBytes) {
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    public int getMaxPayloadDepth() {
+        return maxPayloadDepth > 0 ? maxPayloadDepth : TriggerWebhookParser.DEFAULT_MAX_DEPTH;
+    }
+
+    public void setMaxPayloadDepth(int maxPayloadDepth) {
+        this.maxPayloadDepth = maxPayloadDepth;
+    }
+
+    public int getMaxPayloadFields() {
+        return maxPayloadFields > 0 ? maxPayloadFields : TriggerWebhookParser.DEFAULT_MAX_FIELDS;
+    }
+
+    public void setMaxPayloadFields(int maxPayloadFields) {
+        this.maxPayloadFields = maxPayloadFields;
+    }
+
+    public int getReportQueueCapacity() {
+        return reportQueueCapacity > 0 ? reportQueueCapacity : DEFAULT_REPORT_QUEUE_CAPACITY;
+    }
+
+    public void setReportQueueCapacity(int reportQueueCapacity) {
+        this.reportQueueCapacity = reportQueueCapacity;
+    }
+
+    public int getReportWorkers() {
+        return reportWorkers > 0 ? reportWorkers : DEFAULT_REPORT_WORKERS;
+    }
+
+    public void setReportWorkers(int reportWorkers) {
+        this.reportWorkers = reportWorkers;
+    }
+
+    /** @return Path of DeployDB's batch endpoint, or {@code null} if reports should be delivered one at a time. */
+    @CheckForNull
+    public String getReportBatchPath() {
+        return Util.fixEmptyAndTrim(reportBatchPath);
+    }
+
+    public void setReportBatchPath(String reportBatchPath) {
+        this.reportBatchPath = reportBatchPath;
+    }
+
+    public int getReportBatchSize() {
+        return reportBatchSize > 0 ? reportBatchSize : DEFAULT_REPORT_BATCH_SIZE;
+    }
+
+    public void setReportBatchSize(int reportBatchSize) {
+        this.reportBatchSize = reportBatchSize;
+    }
+
+    public int getReportBatchLinger() {
+        return reportBatchLinger > 0 ? reportBatchLinger : DEFAULT_REPORT_BATCH_LINGER;
+    }
+
+    public void setReportBatchLinger(int reportBatchLinger) {
+        this.reportBatchLinger = reportBatchLinger;
+    }
+
+    /** @return The delivery state of each DeployDB host to which reports have been delivered. */
+    public Collection<DeliveryController.Host> getReportDeliveryHosts() {
+        return publisher == null ? Collections.<DeliveryController.Host>emptyList() : publisher.getDeliveryHosts();
+    }
+
+    /** @return A parser for incoming webhooks, enforcing the configured payload limits. */
+    public TriggerWebhookParser createWebhookParser() {
+        return new TriggerWebhookParser(getMaxPayloadBytes(), getMaxPayloadDepth(), getMaxPayloadFields());
+    }
+
+    public FormValidation doCheckTriggerQueueCapacity(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckTriggerWorkers(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckParallelMatchThreshold(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckMaxBatchEvents(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckMaxBatchBytes(@QueryParameter String value) {
+        return validatePositiveLong(value);
+    }
+
+    public FormValidation doCheckReportQueueCapacity(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckReportWorkers(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckReportBatchSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckReportBatchLinger(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckMaxPayloadBytes(@QueryParameter String value) {
+        return validatePositiveLong(value);
+    }
+
+    /** Like {@link FormValidation#validatePositiveInteger}, for settings which may be too large for an {@code int}. */
+    private static FormValidation validatePositiveLong(String value) {
+        try {
+            if (Long.parseLong(value) <= 0) {
+                return FormValidation.error(hudson.model.Messages.Hudson_NotAPositiveNumber());
+            }
+            return FormValidation.ok();
+        } catch (NumberFormatException e) {
+            return FormValidation.error(hudson.model.Messages.Hudson_NotANumber());
+        }
+    }
+
+    public FormValidation doCheckMaxPayloadDepth(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckMaxPayloadFields(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
     @Override
     public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
         req.bindJSON(this, json);
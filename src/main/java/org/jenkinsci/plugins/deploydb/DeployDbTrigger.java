@@ -1,27 +1,41 @@
 package org.jenkinsci.plugins.deploydb;
 
 import hudson.Extension;
-import hudson.model.AbstractProject;
 import hudson.model.Item;
+import hudson.model.Job;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
+import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
 import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
 import org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
+import javax.annotation.CheckForNull;
 import java.util.List;
 import java.util.logging.Logger;
 
-/** Build trigger specifying criteria to match against incoming DeployDB webhooks. */
-public class DeployDbTrigger extends Trigger<AbstractProject<?, ?>> {
+/**
+ * Build trigger specifying criteria to match against incoming DeployDB webhooks.
+ * <p/>
+ * Applies to any job which can be scheduled with parameters, e.g. freestyle and Pipeline jobs.
+ */
+public class DeployDbTrigger extends Trigger<Job<?, ?>> {
 
     private static final Logger LOGGER = Logger.getLogger(DeployDbTrigger.class.getName());
 
     private boolean silentMode;
     private List<DeployDbTriggerEvent> triggerEventTypes;
 
+    /** Seconds that triggered builds wait in the queue, during which further webhooks for the service are merged in. */
+    private int quietPeriod;
+
+    /** Maximum number of builds triggered per hour for each service, or zero for no limit. */
+    private int maxBuildsPerHour;
+
     @DataBoundConstructor
     public DeployDbTrigger() {}
 
@@ -43,8 +57,26 @@ public class DeployDbTrigger extends Trigger<AbstractProject<?, ?>> {
         this.triggerEventTypes = triggerEventTypes;
     }
 
+    public int getQuietPeriod() {
+        return Math.max(quietPeriod, 0);
+    }
+
+    @DataBoundSetter
+    public void setQuietPeriod(int quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    public int getMaxBuildsPerHour() {
+        return Math.max(maxBuildsPerHour, 0);
+    }
+
+    @DataBoundSetter
+    public void setMaxBuildsPerHour(int maxBuildsPerHour) {
+        this.maxBuildsPerHour = maxBuildsPerHour;
+    }
+
     /** @return {@code true} if the given webhook matches the criteria configured for this instance. */
-    public boolean accepts(AbstractProject<?, ?> job, TriggerWebhook hook) {
+    public boolean accepts(Job<?, ?> job, TriggerWebhook hook) {
         // Check whether we've been configured correctly
         if (triggerEventTypes == null || triggerEventTypes.isEmpty()) {
             LOGGER.info(String.format("Job '%s' cannot match any hooks, as no event triggers have been configured.",
@@ -63,6 +95,12 @@ public class DeployDbTrigger extends Trigger<AbstractProject<?, ?>> {
         return false;
     }
 
+    /** @return The DeployDB trigger configured for the given job, or {@code null} if it has none. */
+    @CheckForNull
+    static DeployDbTrigger forJob(Job<?, ?> job) {
+        return ParameterizedJobMixIn.getTrigger(job, DeployDbTrigger.class);
+    }
+
     @Extension
     public static class DescriptorImpl extends TriggerDescriptor {
 
@@ -70,9 +108,17 @@ public class DeployDbTrigger extends Trigger<AbstractProject<?, ?>> {
             return Jenkins.getInstance().getExtensionList(DeployDbTriggerEvent.EventDescriptor.class);
         }
 
+        public FormValidation doCheckQuietPeriod(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxBuildsPerHour(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         @Override
         public boolean isApplicable(Item item) {
-            return item instanceof AbstractProject;
+            return item instanceof Job && item instanceof ParameterizedJobMixIn.ParameterizedJob;
         }
 
         @Override
@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.deploydb;
+
+import hudson.ProxyConfiguration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Sends report webhooks to DeployDB with a JSON POST request, via the Jenkins proxy configuration if any.
+ * <p/>
+ * Responses are always read to the end and closed, so that the JDK can keep the underlying connection alive and reuse
+ * it for the next report sent to the same DeployDB host.
+ */
+class HttpReportSender implements ReportSender {
+
+    static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    @Override
+    public void send(ReportRequest request) throws IOException {
+        final byte[] body = request.getJson().getBytes(UTF_8);
+        final HttpURLConnection connection =
+                (HttpURLConnection) ProxyConfiguration.open(new URL(request.getUrl()));
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        final int status = connection.getResponseCode();
+        drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+        if (status < 200 || status >= 300) {
+            throw new ReportRejectedException(status);
+        }
+    }
+
+    /** Reads the given response stream to the end, and closes it. */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // Discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,478 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.Locale.ROOT;
+
+/**
+ * Keeps report webhooks on disk until they have been delivered, so that they survive a restart of Jenkins.
+ * <p/>
+ * Reports are appended to a log made up of segment files, and are acknowledged once delivered by appending an
+ * acknowledgement record. Appending only hands the record to the operating system; {@link #sync} then forces the log
+ * to disk, with concurrent callers sharing a single fsync, so that its cost is spread across every report appended in
+ * the meantime.
+ * <p/>
+ * Once the current segment grows too large, a new one is started. The oldest segments are deleted once all of their
+ * reports have been acknowledged, while reports left unacknowledged in old segments are copied forward to the current
+ * segment, so that a few undeliverable reports don't keep every segment alive.
+ * <p/>
+ * When opened, existing segments are read, and the reports which were never acknowledged are made available via
+ * {@link #takeRecovered}. A record which was only partially written, e.g. due to a crash, ends the segment.
+ */
+final class ReportOutbox implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportOutbox.class.getName());
+
+    /** Default size in bytes beyond which a new segment is started. */
+    static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /** Number of older segments to keep before copying their unacknowledged reports forward. */
+    static final int MAX_SEALED_SEGMENTS = 4;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** Record types. */
+    private static final byte REPORT = 1;
+    private static final byte ACK = 2;
+
+    /** Size of the length and checksum preceding each record. */
+    private static final int HEADER_SIZE = 8;
+
+    private final File directory;
+    private final long segmentSize;
+
+    /** All segments, by ID, including the current segment. Guarded by {@code this}. */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /** Segment containing each unacknowledged report, by sequence number. Guarded by {@code this}. */
+    private final Map<Long, Segment> locations = new HashMap<Long, Segment>();
+
+    /** Unacknowledged reports which were read when the outbox was opened. Guarded by {@code this}. */
+    private List<ReportRequest> recovered = Collections.emptyList();
+
+    /** The segment being appended to, and its channel. Guarded by {@code this}. */
+    private Segment current;
+    private FileChannel channel;
+
+    /** Sequence number for the next report appended. Guarded by {@code this}. */
+    private long nextSequence = 1;
+
+    /** Guards {@link #durableSequence} and {@link #syncing}. */
+    private final Object syncLock = new Object();
+
+    /** All reports up to this sequence number are known to have been forced to disk. */
+    private long durableSequence;
+
+    /** Whether a thread is currently forcing the log to disk, on behalf of all waiting threads. */
+    private boolean syncing;
+
+    /** @param directory Directory in which to keep the segment files. */
+    ReportOutbox(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory Directory in which to keep the segment files.
+     * @param segmentSize Size in bytes beyond which a new segment is started.
+     */
+    ReportOutbox(File directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads any existing segments, and starts a new segment for reports appended from now on.
+     *
+     * @throws IOException If the outbox could not be read, or the new segment could not be created.
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create outbox directory " + directory);
+        }
+
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        long lastId = 0;
+        for (File file : files) {
+            final long id;
+            try {
+                id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning(String.format("Ignoring unexpected file %s in the report outbox.", file));
+                continue;
+            }
+            final Segment segment = new Segment(id, file);
+            segments.put(id, segment);
+            replay(segment);
+            lastId = id;
+        }
+
+        // Reports which were copied forward may appear in a later segment than others, so restore the original order
+        final TreeMap<Long, ReportRequest> pending = new TreeMap<Long, ReportRequest>();
+        for (Segment segment : segments.values()) {
+            pending.putAll(segment.pending);
+        }
+        recovered = new ArrayList<ReportRequest>(pending.values());
+        durableSequence = nextSequence - 1;
+
+        startSegment(lastId + 1);
+        compact();
+    }
+
+    /** @return The unacknowledged reports read when the outbox was opened; later calls return nothing. */
+    synchronized List<ReportRequest> takeRecovered() {
+        final List<ReportRequest> recovered = this.recovered;
+        this.recovered = Collections.emptyList();
+        return recovered;
+    }
+
+    /**
+     * Appends the given report to the log, without waiting for it to reach the disk.
+     *
+     * @return The report, with the sequence number by which it should be synced and acknowledged.
+     */
+    synchronized ReportRequest append(ReportRequest request) throws IOException {
+        final ReportRequest persisted = request.withSequence(nextSequence);
+        write(persisted, current);
+        nextSequence++;
+
+        if (current.size >= segmentSize) {
+            rollOver();
+        }
+        return persisted;
+    }
+
+    /**
+     * Records that the report with the given sequence number has been dealt with, and need not be recovered.
+     * <p/>
+     * Acknowledgements are not forced to disk by themselves, so a report may occasionally be recovered again after a
+     * crash, even though it was delivered.
+     */
+    synchronized void acknowledge(long sequence) throws IOException {
+        final Segment segment = locations.remove(sequence);
+        if (segment == null) {
+            return;
+        }
+        segment.pending.remove(sequence);
+        writeRecord(current, encode(ACK, sequence, null));
+
+        if (segment != current && segment.pending.isEmpty()) {
+            compact();
+        }
+    }
+
+    /** Forces every report appended so far to disk, unless the outbox has been closed, which forced them already. */
+    void flush() throws IOException {
+        final long sequence;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            sequence = nextSequence - 1;
+        }
+        if (sequence > 0) {
+            sync(sequence);
+        }
+    }
+
+    /**
+     * Waits until the report with the given sequence number, and all reports before it, have been forced to disk.
+     * <p/>
+     * Only one thread forces the log at a time; threads arriving meanwhile wait, and are then covered together by the
+     * next fsync.
+     */
+    void sync(long sequence) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durableSequence < sequence) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the report outbox to sync.");
+                    }
+                }
+                if (durableSequence >= sequence) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long target = 0;
+            long generation = 0;
+            boolean forced = false;
+            try {
+                final FileChannel channel;
+                synchronized (this) {
+                    if (this.channel == null) {
+                        throw new ClosedChannelException();
+                    }
+                    channel = this.channel;
+                    target = nextSequence - 1;
+                    generation = current.id;
+                }
+                channel.force(false);
+                forced = true;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (target == 0) {
+                    throw e;
+                }
+                synchronized (this) {
+                    // If the log rolled over, the segment was forced to disk before being closed, and the durable
+                    // sequence advanced; otherwise the channel was closed by an interrupted thread, so force it again
+                    if (current.id == generation) {
+                        reopenIfClosed();
+                        channel.force(false);
+                        forced = true;
+                    }
+                }
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (forced) {
+                        durableSequence = Math.max(durableSequence, target);
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** @return The number of segment files currently making up the log. */
+    @VisibleForTesting
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Forces the log to disk and closes it; reports not yet acknowledged will be recovered when next opened. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            // The channel may have been closed by an interrupted thread, before what was written had been forced
+            reopenIfClosed();
+            channel.force(false);
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** Reads all records from the given segment, which is memory-mapped while being read. */
+    private void replay(Segment segment) throws IOException {
+        final FileChannel in = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+        try {
+            final MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            final CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                final int start = buffer.position();
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    warnTruncated(segment, start);
+                    break;
+                }
+
+                final byte[] record = new byte[length];
+                buffer.get(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    warnTruncated(segment, start);
+                    break;
+                }
+                apply(segment, ByteBuffer.wrap(record));
+            }
+            segment.size = in.size();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Applies a single record read from the given segment. */
+    private void apply(Segment segment, ByteBuffer record) {
+        final byte type = record.get();
+        final long sequence = record.getLong();
+        nextSequence = Math.max(nextSequence, sequence + 1);
+
+        // Reports copied forward appear again in a later segment, which then takes over the report
+        final Segment previous = locations.remove(sequence);
+        if (previous != null) {
+            previous.pending.remove(sequence);
+        }
+        if (type == REPORT) {
+            final String url = readString(record);
+            final String json = readString(record);
+            final String description = readString(record);
+            segment.pending.put(sequence, new ReportRequest(url, json, description, sequence));
+            locations.put(sequence, segment);
+        }
+    }
+
+    private static void warnTruncated(Segment segment, int offset) {
+        LOGGER.warning(String.format(ROOT, "Ignoring incomplete record at offset %d of report outbox segment %s.",
+                offset, segment.file));
+    }
+
+    /** Closes the current segment, having forced it to disk, and starts a new one. */
+    private void rollOver() throws IOException {
+        channel.force(false);
+        synchronized (syncLock) {
+            durableSequence = Math.max(durableSequence, nextSequence - 1);
+        }
+        channel.close();
+        startSegment(current.id + 1);
+        compact();
+    }
+
+    private void startSegment(long id) throws IOException {
+        final Segment segment = new Segment(id, new File(directory, String.format(ROOT, "%019d%s", id,
+                SEGMENT_SUFFIX)));
+        channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segments.put(id, segment);
+        current = segment;
+    }
+
+    /**
+     * Deletes the oldest segments, as long as all of their reports have been acknowledged, and if too many older
+     * segments remain, copies the unacknowledged reports of the oldest segments forward into the current segment, so
+     * they can be deleted too.
+     * <p/>
+     * Segments are only ever deleted oldest first, as a segment may hold acknowledgements for reports in any older
+     * segment, which would otherwise be recovered again.
+     */
+    private void compact() throws IOException {
+        final List<Segment> sealed = new ArrayList<Segment>(segments.headMap(current.id).values());
+        int remaining = sealed.size();
+        boolean copied = false;
+        for (Segment segment : sealed) {
+            if (!segment.pending.isEmpty() && remaining <= MAX_SEALED_SEGMENTS) {
+                break;
+            }
+            for (ReportRequest request : segment.pending.values()) {
+                write(request, current);
+                copied = true;
+            }
+            segment.pending.clear();
+
+            // Copies must be on disk before the original is deleted
+            if (copied) {
+                channel.force(false);
+                copied = false;
+            }
+            if (!segment.file.delete() && segment.file.exists()) {
+                LOGGER.warning(String.format("Failed to delete report outbox segment %s.", segment.file));
+            }
+            segments.remove(segment.id);
+            remaining--;
+        }
+    }
+
+    /** Writes the given report to the given segment, which becomes the segment the report is found in. */
+    private void write(ReportRequest request, Segment segment) throws IOException {
+        final long sequence = request.getSequence();
+        writeRecord(segment, encode(REPORT, sequence, request));
+        segment.pending.put(sequence, request);
+        locations.put(sequence, segment);
+    }
+
+    /** Writes a record to the given segment, which must be the current segment. */
+    private void writeRecord(Segment segment, byte[] record) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+
+        reopenIfClosed();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        segment.size += buffer.limit();
+    }
+
+    /**
+     * Reopens the current segment if its channel was closed by an interrupted thread, discarding anything partially
+     * written by that thread.
+     *
+     * @throws ClosedChannelException If the outbox has been closed.
+     */
+    private void reopenIfClosed() throws IOException {
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        if (!channel.isOpen()) {
+            channel = FileChannel.open(current.file.toPath(), StandardOpenOption.WRITE);
+            channel.truncate(current.size);
+            channel.position(current.size);
+        }
+    }
+
+    private static byte[] encode(byte type, long sequence, ReportRequest request) {
+        if (request == null) {
+            return ByteBuffer.allocate(9).put(type).putLong(sequence).array();
+        }
+        final byte[] url = request.getUrl().getBytes(UTF_8);
+        final byte[] json = request.getJson().getBytes(UTF_8);
+        final byte[] description = request.getDescription().getBytes(UTF_8);
+        return ByteBuffer.allocate(9 + 12 + url.length + json.length + description.length)
+                .put(type).putLong(sequence)
+                .putInt(url.length).put(url)
+                .putInt(json.length).put(json)
+                .putInt(description.length).put(description)
+                .array();
+    }
+
+    private static String readString(ByteBuffer record) {
+        final byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /** A single segment file, with the reports in it which are still to be acknowledged. */
+    private static final class Segment {
+
+        final long id;
+        final File file;
+        final Map<Long, ReportRequest> pending = new LinkedHashMap<Long, ReportRequest>();
+        long size;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+    }
+
+}
@@ -0,0 +1,609 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.deploydb.metrics.PipelineMetrics;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Delivers report webhooks to DeployDB in the background, using a pool of worker threads.
+ * <p/>
+ * Reports wait in a bounded queue, and are taken by whichever worker is free, so that a slow DeployDB response only
+ * holds up one worker. The workers are started when the first report is published, and stopped when Jenkins shuts down.
+ * <p/>
+ * Publishing never blocks: reports which don't fit in the queue are held in an overflow buffer, which is moved to the
+ * queue in the background as space becomes available, backing off exponentially while the queue remains full.
+ * <p/>
+ * If the path of DeployDB's batch endpoint has been configured, each worker gathers up the reports arriving within a
+ * short time, and delivers those for the same deployment together in a single request to that endpoint.
+ * <p/>
+ * Each report is also written to a {@link ReportOutbox} under {@code JENKINS_HOME}, and acknowledged there once
+ * delivered, so that reports which are still pending when Jenkins stops are delivered once it has started again.
+ * Reports are forced to disk shortly after being written, in the background, so that a single fsync covers all of the
+ * reports published in the meantime.
+ */
+@Extension
+public class ReportPublisher {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportPublisher.class.getName());
+
+    /** Number of times a worker attempts to deliver a report. */
+    static final int MAX_SEND_ATTEMPTS = 3;
+
+    /** Period in milliseconds to wait before the first re-attempt to deliver a report; doubled for each attempt. */
+    static final long SEND_RETRY_INTERVAL = 1000;
+
+    /** Delay in milliseconds before first moving overflowed reports to the queue; doubled after each failure. */
+    static final long OVERFLOW_RETRY_DELAY = 500;
+
+    /** Maximum delay in milliseconds between attempts to move overflowed reports to the queue. */
+    static final long MAX_OVERFLOW_RETRY_DELAY = 60 * 1000;
+
+    /** Directory, relative to {@code JENKINS_HOME}, in which reports are kept until delivered. */
+    static final String OUTBOX_PATH = "deploydb/outbox";
+
+    /** Delay in milliseconds before reports written to the outbox are forced to disk. */
+    static final long OUTBOX_FLUSH_DELAY = 5;
+
+    /** How long to wait for in-flight deliveries to complete when Jenkins shuts down. */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    @Inject private DeployDbConfig config;
+    @Inject private PipelineMetrics metrics;
+
+    private volatile ReportSender sender = new HttpReportSender();
+
+    /** Reports waiting to be delivered. Created along with the workers, and replaced if its capacity is changed. */
+    private volatile BlockingQueue<ReportRequest> queue;
+
+    /** Capacity of the current queue. Guarded by {@code this}. */
+    private int queueCapacity;
+
+    /** Runs the delivery workers. Guarded by {@code this}. */
+    private ExecutorService workers;
+
+    /** Number of workers currently running. Guarded by {@code this}. */
+    private int workerCount;
+
+    /** Limits deliveries to each DeployDB host, according to how it is coping. */
+    private final DeliveryController controller = new DeliveryController();
+
+    /** Keeps reports on disk until they are delivered; opened on first use. Guarded by {@code this}. */
+    private ReportOutbox outbox;
+
+    /** Whether the outbox is due to be forced to disk. */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /** Whether Jenkins is shutting down, so the workers and outbox must not start again. Guarded by {@code this}. */
+    private boolean stopped;
+
+    /** Reports which did not fit in the queue, in the order they were published. Guarded by itself. */
+    private final Deque<ReportRequest> overflow = new ArrayDeque<ReportRequest>();
+
+    /** Number of consecutive attempts which failed to empty the overflow buffer. Guarded by {@link #overflow}. */
+    private int overflowFailures;
+
+    /** Whether an attempt to empty the overflow buffer has been scheduled. Guarded by {@link #overflow}. */
+    private boolean drainScheduled;
+
+    @VisibleForTesting
+    void setSender(ReportSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Queues the given report for delivery, without blocking.
+     * <p/>
+     * If the queue is full, the report is held in the overflow buffer until there is space. Only if the overflow buffer
+     * is also full is the report discarded.
+     */
+    public void publish(ReportRequest request) {
+        if (isStopped()) {
+            LOGGER.warning(String.format("Discarding %s, as Jenkins is shutting down.", request));
+            metrics.recordReportDiscarded();
+            return;
+        }
+        final long start = System.nanoTime();
+        enqueue(persist(request), true);
+        metrics.recordReportEnqueued(System.nanoTime() - start);
+    }
+
+    /** Queues the reports which were still pending in the outbox when Jenkins last stopped. */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public void recover() {
+        final ReportOutbox outbox = getOutbox();
+        if (outbox == null) {
+            return;
+        }
+        final List<ReportRequest> recovered = outbox.takeRecovered();
+        if (!recovered.isEmpty()) {
+            LOGGER.info(String.format("Resuming delivery of %d report(s) to DeployDB.", recovered.size()));
+        }
+        for (ReportRequest request : recovered) {
+            // These were accepted before the restart, so are never discarded
+            enqueue(request, false);
+        }
+    }
+
+    /**
+     * Writes the given report to the outbox, without waiting until it is on disk; it is forced to disk shortly
+     * afterwards, in the background.
+     *
+     * @return The report with its outbox sequence number, or the report as given if it could not be persisted.
+     */
+    private ReportRequest persist(ReportRequest request) {
+        final ReportOutbox outbox = getOutbox();
+        if (outbox == null) {
+            return request;
+        }
+
+        ReportRequest persisted = request;
+        try {
+            persisted = outbox.append(request);
+            scheduleFlush(outbox);
+        } catch (IOException e) {
+            LOGGER.warning(String.format("Failed to persist %s; it will not be delivered if Jenkins restarts: %s",
+                    request, e));
+        }
+        return persisted;
+    }
+
+    /** Forces the given outbox to disk shortly, along with any other reports written to it meanwhile. */
+    private void scheduleFlush(final ReportOutbox outbox) {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Reports written from now on will need another flush
+                flushScheduled.set(false);
+                try {
+                    outbox.flush();
+                } catch (IOException e) {
+                    LOGGER.warning(String.format("Failed to write reports to disk; they may not be delivered if "
+                            + "Jenkins restarts: %s", e));
+                }
+            }
+        }, OUTBOX_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the given report, or holds it in the overflow buffer if the queue is full.
+     * <p/>
+     * Once Jenkins is shutting down, reports are no longer queued; any which were written to the outbox are delivered
+     * once Jenkins has started again.
+     *
+     * @param bounded Whether to discard the report if the overflow buffer is also full.
+     */
+    private void enqueue(ReportRequest request, boolean bounded) {
+        if (isStopped()) {
+            LOGGER.fine(String.format("Not queueing %s, as Jenkins is shutting down.", request));
+            return;
+        }
+        synchronized (overflow) {
+            // Keep reports in order, behind any already waiting in the overflow buffer
+            if (overflow.isEmpty() && offer(request)) {
+                return;
+            }
+            if (bounded && overflow.size() >= config.getReportQueueCapacity()) {
+                LOGGER.warning(String.format("Discarding %s, as too many reports are waiting to be delivered.",
+                        request));
+                metrics.recordReportDiscarded();
+                acknowledge(request);
+                return;
+            }
+            overflow.add(request);
+            scheduleDrain();
+        }
+    }
+
+    /** Removes the given report from the outbox, once it no longer needs to be delivered. */
+    private void acknowledge(ReportRequest request) {
+        if (request.getSequence() == 0) {
+            return;
+        }
+        final ReportOutbox outbox;
+        synchronized (this) {
+            outbox = this.outbox;
+        }
+        if (outbox == null) {
+            return;
+        }
+        try {
+            outbox.acknowledge(request.getSequence());
+        } catch (IOException e) {
+            LOGGER.warning(String.format("Failed to acknowledge %s; it may be delivered again if Jenkins restarts: %s",
+                    request, e));
+        }
+    }
+
+    /**
+     * @return The outbox, opening it if necessary, or {@code null} if it could not be opened, or Jenkins is shutting
+     *         down.
+     */
+    private synchronized ReportOutbox getOutbox() {
+        if (stopped) {
+            if (outbox == null) {
+                LOGGER.warning("Not opening the report outbox, as Jenkins is shutting down.");
+            }
+            return outbox;
+        }
+        if (outbox == null) {
+            final ReportOutbox outbox = new ReportOutbox(new File(Jenkins.getInstance().getRootDir(), OUTBOX_PATH));
+            try {
+                outbox.open();
+                this.outbox = outbox;
+            } catch (IOException e) {
+                LOGGER.warning(String.format("Failed to open the report outbox; reports will not be delivered if "
+                        + "Jenkins restarts: %s", e));
+            }
+        }
+        return outbox;
+    }
+
+    /**
+     * Queues the given report for delivery, without blocking.
+     *
+     * @return {@code true} if the report was queued, or {@code false} if the queue is full.
+     */
+    boolean offer(ReportRequest request) {
+        synchronized (overflow) {
+            final BlockingQueue<ReportRequest> queue = start();
+            return queue != null && queue.offer(request);
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /** @return The delivery state of each DeployDB host to which reports have been delivered. */
+    public Collection<DeliveryController.Host> getDeliveryHosts() {
+        return controller.getHosts();
+    }
+
+    /** @return The number of reports waiting to be delivered, including those in the overflow buffer. */
+    public int getQueueDepth() {
+        final BlockingQueue<ReportRequest> queue = this.queue;
+        final int overflowed;
+        synchronized (overflow) {
+            overflowed = overflow.size();
+        }
+        return overflowed + (queue == null ? 0 : queue.size());
+    }
+
+    /** Schedules an attempt to move overflowed reports to the queue, if not already scheduled. */
+    private void scheduleDrain() {
+        assert Thread.holdsLock(overflow);
+        if (drainScheduled) {
+            return;
+        }
+        drainScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                drainOverflow();
+            }
+        }, getRetryDelay(overflowFailures), TimeUnit.MILLISECONDS);
+    }
+
+    /** Moves as many overflowed reports to the queue as will fit, and tries again later if any remain. */
+    private void drainOverflow() {
+        synchronized (overflow) {
+            drainScheduled = false;
+            if (isStopped()) {
+                // The reports remain in the outbox, and will be delivered once Jenkins has started again
+                return;
+            }
+            while (!overflow.isEmpty() && offer(overflow.peek())) {
+                overflow.poll();
+            }
+
+            if (overflow.isEmpty()) {
+                overflowFailures = 0;
+            } else {
+                overflowFailures++;
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * @param failures Number of consecutive failed attempts so far.
+     * @return Delay in milliseconds before the next attempt: exponentially increasing up to a limit, with random
+     *         jitter so that attempts don't line up with the workers freeing up space at regular intervals.
+     */
+    static long getRetryDelay(int failures) {
+        final long delay = Math.min(MAX_OVERFLOW_RETRY_DELAY, OVERFLOW_RETRY_DELAY << Math.min(failures, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Starts the workers if they are not running, or restarts them if the configured number of workers or queue
+     * capacity has changed.
+     *
+     * @return The queue the workers take reports from, or {@code null} if Jenkins is shutting down.
+     */
+    private synchronized BlockingQueue<ReportRequest> start() {
+        // Reports which don't fit in a replacement queue are moved to the overflow buffer
+        assert Thread.holdsLock(overflow);
+        if (stopped) {
+            LOGGER.fine("Not starting the report workers, as Jenkins is shutting down.");
+            return null;
+        }
+
+        final int capacity = config.getReportQueueCapacity();
+        if (queue == null || capacity != queueCapacity) {
+            // The workers are stopped first, so that none takes from the old queue once its reports have been moved
+            if (workers != null) {
+                workers.shutdownNow();
+                workers = null;
+            }
+            final BlockingQueue<ReportRequest> previous = queue;
+            queue = new LinkedBlockingQueue<ReportRequest>(capacity);
+            queueCapacity = capacity;
+            if (previous != null) {
+                previous.drainTo(queue, capacity);
+                moveToOverflow(previous);
+            }
+        }
+
+        final int count = config.getReportWorkers();
+        if (workers == null || count != workerCount) {
+            // Any reports already queued remain queued, and will be delivered by the new workers
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            workers = Executors.newFixedThreadPool(count,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "DeployDB webhook publisher"));
+            for (int i = 0; i < count; i++) {
+                workers.execute(new Worker(queue));
+            }
+            workerCount = count;
+        }
+        return queue;
+    }
+
+    /**
+     * Moves the reports in the given queue, which no longer fit in the current queue, to the front of the overflow
+     * buffer, as they were published before any already there.
+     */
+    private void moveToOverflow(BlockingQueue<ReportRequest> previous) {
+        final List<ReportRequest> remaining = new ArrayList<ReportRequest>();
+        previous.drainTo(remaining);
+        if (remaining.isEmpty()) {
+            return;
+        }
+        for (int i = remaining.size() - 1; i >= 0; i--) {
+            overflow.addFirst(remaining.get(i));
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Stops the workers when Jenkins shuts down, giving in-flight deliveries a moment to complete, and closes the
+     * outbox, from which any undelivered reports will be recovered once Jenkins has started again.
+     */
+    @Terminator
+    public void shutdown() throws InterruptedException {
+        final ExecutorService workers;
+        synchronized (this) {
+            stopped = true;
+            workers = this.workers;
+            this.workers = null;
+        }
+
+        if (workers != null) {
+            workers.shutdownNow();
+            workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (getQueueDepth() > 0) {
+                LOGGER.info(String.format("%d report(s) were not delivered to DeployDB before shutdown.",
+                        getQueueDepth()));
+            }
+        }
+        // The outbox stays open while the workers stop, so that their final deliveries are acknowledged
+        final ReportOutbox outbox;
+        synchronized (this) {
+            outbox = this.outbox;
+            this.outbox = null;
+        }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                LOGGER.warning(String.format("Failed to close the report outbox: %s", e));
+            }
+        }
+    }
+
+    /**
+     * Combines the given reports, which are for the same deployment, into a single request to the batch endpoint.
+     * As the reports are already serialised, the batch is a JSON array built from the serialised reports.
+     *
+     * @param batchPath Path of the batch endpoint, relative to the URL the reports would each be delivered to.
+     */
+    static ReportRequest createBatch(List<ReportRequest> reports, String batchPath) {
+        final StringBuilder json = new StringBuilder("[");
+        for (ReportRequest report : reports) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(report.getJson());
+        }
+        json.append(']');
+        return new ReportRequest(reports.get(0).getUrl() + batchPath, json.toString(),
+                String.format("Batch of %d reports", reports.size()));
+    }
+
+    /** @return The given reports, grouped by the URL they should be delivered to, in the order they arrived. */
+    private static Collection<List<ReportRequest>> groupByUrl(List<ReportRequest> reports) {
+        final Map<String, List<ReportRequest>> groups = new LinkedHashMap<String, List<ReportRequest>>();
+        for (ReportRequest report : reports) {
+            List<ReportRequest> group = groups.get(report.getUrl());
+            if (group == null) {
+                group = new ArrayList<ReportRequest>();
+                groups.put(report.getUrl(), group);
+            }
+            group.add(report);
+        }
+        return groups.values();
+    }
+
+    /** Takes reports from the queue and delivers them, until interrupted. */
+    private final class Worker implements Runnable {
+
+        private final BlockingQueue<ReportRequest> queue;
+
+        Worker(BlockingQueue<ReportRequest> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final List<ReportRequest> reports = new ArrayList<ReportRequest>();
+                final String batchPath;
+                try {
+                    reports.add(queue.take());
+                    batchPath = config.getReportBatchPath();
+                    if (batchPath != null) {
+                        gather(reports, config.getReportBatchSize(), config.getReportBatchLinger());
+                    }
+                } catch (InterruptedException e) {
+                    requeue(reports);
+                    return;
+                }
+
+                for (List<ReportRequest> group : groupByUrl(reports)) {
+                    try {
+                        deliver(group, batchPath);
+                    } catch (InterruptedException e) {
+                        // Leave the undelivered reports for whichever workers replace this one, or for recovery
+                        // after a restart
+                        requeue(reports);
+                        return;
+                    }
+                    for (ReportRequest report : group) {
+                        acknowledge(report);
+                    }
+                    reports.removeAll(group);
+                }
+            }
+        }
+
+        /** Adds reports arriving within the given time to the given list, until it reaches the given size. */
+        private void gather(List<ReportRequest> reports, int maxSize, long lingerMillis) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (reports.size() < maxSize) {
+                final long remaining = deadline - System.nanoTime();
+                final ReportRequest report = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (report == null) {
+                    return;
+                }
+                reports.add(report);
+            }
+        }
+
+        /**
+         * Hands the given reports back to be delivered by another worker. They go via the overflow buffer if the queue
+         * is full, so they are never dropped.
+         */
+        private void requeue(List<ReportRequest> reports) {
+            for (ReportRequest report : reports) {
+                enqueue(report, false);
+            }
+        }
+
+        /**
+         * Delivers the given reports, which are all for the same deployment, as a single batch if a batch endpoint has
+         * been configured.
+         */
+        private void deliver(List<ReportRequest> reports, @CheckForNull String batchPath) throws InterruptedException {
+            if (batchPath != null && reports.size() > 1) {
+                deliver(createBatch(reports, batchPath), reports.size());
+                return;
+            }
+            for (ReportRequest report : reports) {
+                deliver(report, 1);
+            }
+        }
+
+        /**
+         * Delivers the given request, retrying a few times if it fails.
+         * <p/>
+         * While DeployDB is failing repeatedly, and deliveries to it are held back, attempts are not counted, so that
+         * reports are delivered once it recovers, rather than being given up on.
+         *
+         * @param reports Number of reports in the request; more than one if it is a batch.
+         */
+        private void deliver(ReportRequest request, int reports) throws InterruptedException {
+            final DeliveryController.Host host = controller.getHost(request.getUrl());
+            long retryInterval = SEND_RETRY_INTERVAL;
+            for (int attempt = 1; ; attempt++) {
+                host.acquire(config.getReportWorkers());
+                final long start = System.nanoTime();
+                Exception failure = null;
+                try {
+                    sender.send(request);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    final long nanos = System.nanoTime() - start;
+                    host.release(DeliveryController.isHealthy(failure), nanos);
+                    metrics.recordReportAttempt(nanos);
+                }
+
+                if (failure == null) {
+                    LOGGER.fine(String.format("Delivered %s.", request));
+                    metrics.recordReportsDelivered(reports);
+                    return;
+                }
+                if (host.isOpen()) {
+                    // Wait for the host to recover, rather than using up the attempts
+                    attempt--;
+                    metrics.recordReportRetry();
+                    continue;
+                }
+                if (attempt >= MAX_SEND_ATTEMPTS) {
+                    LOGGER.warning(String.format("Failed to deliver %s: %s", request, failure.getMessage()));
+                    metrics.recordReportsFailed(reports);
+                    return;
+                }
+                metrics.recordReportRetry();
+                Thread.sleep(retryInterval);
+                retryInterval *= 2;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,20 @@
+package org.jenkinsci.plugins.deploydb;
+
+import java.io.IOException;
+
+/** Thrown when DeployDB responds to a report with an unsuccessful HTTP status. */
+class ReportRejectedException extends IOException {
+
+    private final int status;
+
+    ReportRejectedException(int status) {
+        super(String.format("DeployDB responded with HTTP %d.", status));
+        this.status = status;
+    }
+
+    /** @return The HTTP status code DeployDB responded with. */
+    int getStatus() {
+        return status;
+    }
+
+}
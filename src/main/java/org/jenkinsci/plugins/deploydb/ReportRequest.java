@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.deploydb;
+
+/** A report webhook, serialised and ready to be delivered to DeployDB. */
+public final class ReportRequest {
+
+    private final String url;
+    private final String json;
+    private final String description;
+
+    /** Sequence number of this report in the outbox, or zero if it has not been persisted. */
+    private final long sequence;
+
+    /**
+     * @param url The DeployDB URL to which the report should be POSTed.
+     * @param json The serialised report.
+     * @param description Short description of the report, for logging.
+     */
+    public ReportRequest(String url, String json, String description) {
+        this(url, json, description, 0);
+    }
+
+    ReportRequest(String url, String json, String description, long sequence) {
+        this.url = url;
+        this.json = json;
+        this.description = description;
+        this.sequence = sequence;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /** @return A copy of this report, with the given outbox sequence number. */
+    ReportRequest withSequence(long sequence) {
+        return new ReportRequest(url, json, description, sequence);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s for %s", description, url);
+    }
+
+}
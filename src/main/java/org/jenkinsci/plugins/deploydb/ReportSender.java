@@ -0,0 +1,15 @@
+package org.jenkinsci.plugins.deploydb;
+
+import java.io.IOException;
+
+/** Delivers report webhooks to DeployDB. */
+public interface ReportSender {
+
+    /**
+     * Delivers the given report, blocking until DeployDB has responded.
+     *
+     * @throws IOException If the report could not be delivered, or DeployDB did not accept it.
+     */
+    void send(ReportRequest request) throws IOException;
+
+}
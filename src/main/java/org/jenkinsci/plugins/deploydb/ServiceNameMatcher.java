@@ -0,0 +1,351 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a service name against many configured service name regexes at once, returning every target whose regex
+ * matches, with the same semantics as {@link org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent#accepts}.
+ * <p/>
+ * Plain service names, and the case-insensitive comparison against each regex's literal value, are handled with a
+ * single hash lookup. Real regexes are filtered by the literal prefix every matching service name must start with,
+ * using a prefix tree walked once along the service name, so that only the regexes which could possibly match are
+ * evaluated. If there are many such regexes, they can be split into chunks and evaluated in parallel.
+ * <p/>
+ * Instances are immutable and thread-safe once built.
+ *
+ * @param <T> Type of the objects associated with each configured regex, e.g. jobs.
+ */
+public final class ServiceNameMatcher<T> {
+
+    /** Characters which give a regex any meaning beyond matching its literal value. */
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    /** Smallest number of regexes worth handing to another thread to evaluate. */
+    static final int MIN_CHUNK_SIZE = 64;
+
+    /** Maximum number of chunks to split regex evaluation into. */
+    private static final int MAX_CHUNKS = Runtime.getRuntime().availableProcessors();
+
+    /** Every distinct target, in the order they were first added. */
+    private final List<T> targets;
+
+    /** Indices of targets whose regex value is equal to the case-folded key. */
+    private final Map<String, int[]> literals;
+
+    /** Regexes which need to be evaluated, indexed by the literal prefix that any match must start with. */
+    private final PrefixNode prefixes;
+
+    private ServiceNameMatcher(List<T> targets, Map<String, int[]> literals, PrefixNode prefixes) {
+        this.targets = targets;
+        this.literals = literals;
+        this.prefixes = prefixes;
+    }
+
+    /** @return A builder for a new matcher. */
+    public static <T> Builder<T> builder() {
+        return new Builder<T>();
+    }
+
+    /** @return Every distinct target known to this matcher, in the order they were added. */
+    public List<T> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @param service A trimmed, non-empty service name.
+     * @return Each target with at least one regex matching the given service name, in the order they were added.
+     */
+    public List<T> match(String service) {
+        return match(service, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As {@link #match(String)}, but if at least the given number of regexes need to be evaluated, they are split into
+     * chunks, which are evaluated concurrently by the given executor and the calling thread.
+     *
+     * @param service A trimmed, non-empty service name.
+     * @param executor Executor to evaluate chunks of regexes on, or {@code null} to evaluate all on this thread.
+     * @param parallelThreshold Minimum number of regexes to evaluate before evaluation is split up.
+     * @return Each target with at least one regex matching the given service name, in the order they were added.
+     */
+    public List<T> match(String service, @CheckForNull Executor executor, int parallelThreshold) {
+        final BitSet matched = new BitSet(targets.size());
+
+        // Targets whose regex is equal to the service name, ignoring case
+        final int[] literalMatches = literals.get(caseFold(service));
+        if (literalMatches != null) {
+            for (int index : literalMatches) {
+                matched.set(index);
+            }
+        }
+
+        // Walk down the prefix tree along the service name, gathering the regexes found at each node
+        final List<CompiledRegex> candidates = new ArrayList<CompiledRegex>();
+        PrefixNode node = prefixes;
+        for (int i = 0; node != null; i++) {
+            candidates.addAll(node.regexes);
+            node = i < service.length() ? node.children.get(service.charAt(i)) : null;
+        }
+
+        final int chunks = Math.min(MAX_CHUNKS, candidates.size() / MIN_CHUNK_SIZE);
+        if (executor == null || candidates.size() < parallelThreshold || chunks < 2) {
+            evaluate(service, candidates, 0, candidates.size(), matched, matched);
+        } else {
+            evaluateInParallel(service, candidates, chunks, matched, executor);
+        }
+
+        if (matched.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<T> result = new ArrayList<T>(matched.cardinality());
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            result.add(targets.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates a range of the given regexes against the given service name.
+     *
+     * @param known Targets already known to match, which need not be evaluated again.
+     * @param matched Set to record matching targets in; may be the same as {@code known}.
+     */
+    private static void evaluate(String service, List<CompiledRegex> regexes, int from, int to, BitSet known,
+            BitSet matched) {
+        for (int i = from; i < to; i++) {
+            final CompiledRegex regex = regexes.get(i);
+            if (!known.get(regex.target) && !matched.get(regex.target) && regex.pattern.matcher(service).matches()) {
+                matched.set(regex.target);
+            }
+        }
+    }
+
+    /**
+     * Splits the given regexes into chunks, and evaluates them concurrently against the given service name.
+     * <p/>
+     * All but the first chunk are handed to the executor, while this thread evaluates the first, followed by any which
+     * the executor has not started yet, so that matching still completes if the executor is busy or shut down.
+     *
+     * @param matched Targets already known to match; the targets of matching regexes are added to this.
+     */
+    private void evaluateInParallel(final String service, final List<CompiledRegex> regexes, int chunks,
+            final BitSet matched, Executor executor) {
+        final int chunkSize = (regexes.size() + chunks - 1) / chunks;
+        final List<FutureTask<BitSet>> tasks = new ArrayList<FutureTask<BitSet>>(chunks);
+        for (int start = 0; start < regexes.size(); start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(regexes.size(), start + chunkSize);
+            tasks.add(new FutureTask<BitSet>(new Callable<BitSet>() {
+                @Override
+                public BitSet call() {
+                    // Each chunk records its matches separately, so the shared set is only read until all are done
+                    final BitSet chunkMatched = new BitSet(targets.size());
+                    evaluate(service, regexes, from, to, matched, chunkMatched);
+                    return chunkMatched;
+                }
+            }));
+        }
+
+        for (int i = 1; i < tasks.size(); i++) {
+            try {
+                executor.execute(tasks.get(i));
+            } catch (RejectedExecutionException e) {
+                // This thread will evaluate the chunk instead
+            }
+        }
+
+        final List<BitSet> results = new ArrayList<BitSet>(tasks.size());
+        for (FutureTask<BitSet> task : tasks) {
+            // Does nothing if the executor has already started this chunk
+            task.run();
+            try {
+                results.add(Uninterruptibles.getUninterruptibly(task));
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        for (BitSet result : results) {
+            matched.or(result);
+        }
+    }
+
+    /**
+     * Folds the given value so that two strings fold to the same value iff {@link String#equalsIgnoreCase} is true.
+     */
+    static String caseFold(String value) {
+        char[] chars = new char[value.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+        }
+        return new String(chars);
+    }
+
+    /** @return {@code true} if the given regex contains no special characters, i.e. only matches its literal value. */
+    static boolean isLiteral(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines a literal prefix with which any string fully matched by the given regex must begin.
+     * <p/>
+     * This is deliberately conservative: it only looks at the leading run of plain characters, and gives up entirely
+     * on alternations, since a shorter prefix only means that the regex is evaluated more often.
+     *
+     * @return The literal prefix of the given regex; may be empty.
+     */
+    static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+
+        // A leading anchor makes no difference when matching the whole service name
+        int i = regex.startsWith("^") ? 1 : 0;
+        StringBuilder prefix = new StringBuilder();
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (REGEX_METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            }
+            prefix.append(c);
+        }
+
+        // If the run is followed by a quantifier allowing zero occurrences, its last character is optional
+        if (i < regex.length() && "?*{".indexOf(regex.charAt(i)) >= 0 && prefix.length() > 0) {
+            prefix.setLength(prefix.length() - 1);
+            if (prefix.length() > 0 && Character.isHighSurrogate(prefix.charAt(prefix.length() - 1))) {
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+        return prefix.toString();
+    }
+
+    /** Accumulates regexes and their targets, in order to build a {@link ServiceNameMatcher}. */
+    public static final class Builder<T> {
+
+        private final Map<T, Integer> targetIndices = new IdentityHashMap<T, Integer>();
+        private final List<T> targets = new ArrayList<T>();
+        private final Map<String, List<Integer>> literals = new HashMap<String, List<Integer>>();
+        private final PrefixNode prefixes = new PrefixNode();
+
+        private Builder() {}
+
+        /**
+         * Adds a regex to be matched; targets may be added multiple times with different regexes.
+         *
+         * @param regex Configured regex value.
+         * @param pattern Compiled form of the regex, or {@code null} if it is empty or invalid, and so can't match.
+         * @param target Object to be returned when a service name matches the regex.
+         * @return This builder.
+         */
+        public Builder<T> add(String regex, Pattern pattern, T target) {
+            // Register the target even if it can never match, so that it is known to the matcher
+            Integer index = targetIndices.get(target);
+            if (index == null) {
+                index = targets.size();
+                targetIndices.put(target, index);
+                targets.add(target);
+            }
+
+            if (pattern == null) {
+                return this;
+            }
+
+            // Any regex matches a service name which is the same as its value, ignoring case
+            final String key = caseFold(regex);
+            List<Integer> indices = literals.get(key);
+            if (indices == null) {
+                indices = new ArrayList<Integer>(1);
+                literals.put(key, indices);
+            }
+            indices.add(index);
+
+            // Only real regexes need to be evaluated against service names
+            if (!isLiteral(regex)) {
+                prefixes.insert(literalPrefix(regex), new CompiledRegex(pattern, index));
+            }
+            return this;
+        }
+
+        /** @return A new matcher for the regexes added so far. */
+        public ServiceNameMatcher<T> build() {
+            Map<String, int[]> literalIndices = new HashMap<String, int[]>(literals.size() * 2);
+            for (Map.Entry<String, List<Integer>> entry : literals.entrySet()) {
+                List<Integer> indices = entry.getValue();
+                int[] values = new int[indices.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = indices.get(i);
+                }
+                literalIndices.put(entry.getKey(), values);
+            }
+            return new ServiceNameMatcher<T>(Collections.unmodifiableList(new ArrayList<T>(targets)), literalIndices,
+                    prefixes.copy());
+        }
+
+    }
+
+    /** A compiled regex, along with the index of the target it belongs to. */
+    private static final class CompiledRegex {
+
+        private final Pattern pattern;
+        private final int target;
+
+        private CompiledRegex(Pattern pattern, int target) {
+            this.pattern = pattern;
+            this.target = target;
+        }
+
+    }
+
+    /** Node in a prefix tree of regexes, keyed by the characters of their literal prefix. */
+    private static final class PrefixNode {
+
+        private final Map<Character, PrefixNode> children = new HashMap<Character, PrefixNode>(4);
+        private final List<CompiledRegex> regexes = new ArrayList<CompiledRegex>(1);
+
+        void insert(String prefix, CompiledRegex regex) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                PrefixNode child = node.children.get(prefix.charAt(i));
+                if (child == null) {
+                    child = new PrefixNode();
+                    node.children.put(prefix.charAt(i), child);
+                }
+                node = child;
+            }
+            node.regexes.add(regex);
+        }
+
+        /** @return A deep copy of this node, so that the builder can continue to be modified. */
+        PrefixNode copy() {
+            PrefixNode copy = new PrefixNode();
+            copy.regexes.addAll(regexes);
+            for (Map.Entry<Character, PrefixNode> child : children.entrySet()) {
+                copy.children.put(child.getKey(), child.getValue().copy());
+            }
+            return copy;
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import hudson.Extension;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how often each job can be triggered by webhooks for each service, using a token bucket per job and service.
+ * <p/>
+ * Each bucket holds up to an hour's worth of builds, and refills continuously at the configured rate; so a job may be
+ * triggered by a burst of webhooks, but a service which is deployed over and over can't keep triggering it.
+ */
+@Extension
+public class ServiceRateLimiter {
+
+    private static final long HOUR_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    /** Token buckets by job and service. Unused buckets would have refilled by the time they expire. */
+    private final LoadingCache<Key, Bucket> buckets;
+
+    private final Ticker ticker;
+
+    public ServiceRateLimiter() {
+        this(Ticker.systemTicker());
+    }
+
+    ServiceRateLimiter(final Ticker ticker) {
+        this.ticker = ticker;
+        this.buckets = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<Key, Bucket>() {
+                    @Override
+                    public Bucket load(Key key) {
+                        return new Bucket(ticker.read());
+                    }
+                });
+    }
+
+    /**
+     * @param jobName Full name of a job which a webhook should trigger.
+     * @param service Name of the service in the webhook.
+     * @param buildsPerHour Maximum rate at which the job may be triggered for the service.
+     * @return {@code true} if the job may be triggered now, in which case this counts towards the limit.
+     */
+    public boolean tryAcquire(String jobName, String service, int buildsPerHour) {
+        return buckets.getUnchecked(new Key(jobName, service)).tryAcquire(buildsPerHour, ticker.read());
+    }
+
+    /** Builds available for a single job and service. */
+    private static final class Bucket {
+
+        /** Builds available; starts full, whatever the limit is. */
+        private double tokens = Double.MAX_VALUE;
+
+        private long lastRefillNanos;
+
+        Bucket(long nanos) {
+            this.lastRefillNanos = nanos;
+        }
+
+        synchronized boolean tryAcquire(int buildsPerHour, long nanos) {
+            // Top up the bucket for the time passed, without exceeding its capacity, which may have been reconfigured
+            tokens = Math.min(buildsPerHour, tokens + (double) (nanos - lastRefillNanos) * buildsPerHour / HOUR_NANOS);
+            lastRefillNanos = nanos;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+    }
+
+    private static final class Key {
+
+        private final String jobName;
+        private final String service;
+
+        Key(String jobName, String service) {
+            this.jobName = jobName;
+            this.service = service;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return jobName.equals(other.jobName) && service.equals(other.service);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(jobName, service);
+        }
+
+    }
+
+}
@@ -1,25 +1,50 @@
 package org.jenkinsci.plugins.deploydb;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
 import hudson.Extension;
-import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.Queue;
 import hudson.model.UnprotectedRootAction;
 import hudson.security.ACL;
 import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
+import org.jenkinsci.plugins.deploydb.metrics.MetricsWriter;
+import org.jenkinsci.plugins.deploydb.metrics.PipelineMetrics;
+import org.jenkinsci.plugins.deploydb.model.EventType;
+import org.jenkinsci.plugins.deploydb.model.Json;
+import org.jenkinsci.plugins.deploydb.model.PayloadTooLargeException;
 import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhookParser;
+import org.jenkinsci.plugins.deploydb.model.WebhookSignature;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.inject.Inject;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static hudson.Util.fixEmptyAndTrim;
@@ -30,6 +55,33 @@ public class TriggerEndpoint implements UnprotectedRootAction {
 
     private static final Logger LOGGER = Logger.getLogger(TriggerEndpoint.class.getName());
 
+    /** Number of seconds clients are asked to wait before retrying, when webhooks can't currently be accepted. */
+    static final int RETRY_AFTER_SECONDS = 30;
+
+    /** How long triggered builds are remembered, so that repeated deliveries of the same webhook are ignored. */
+    static final long DUPLICATE_WINDOW_MINUTES = 10;
+
+    /** Maximum number of triggered builds to remember. */
+    static final int MAX_REMEMBERED_TRIGGERS = 10000;
+
+    /** MIME types accepted for webhook batches: a JSON array, or newline-delimited JSON. */
+    private static final Set<String> BATCH_MIME_TYPES = ImmutableSet.of("application/json", "application/x-ndjson");
+
+    /** Space into which discarded request bodies are read; as its contents are never used, it is shared. */
+    private static final byte[] DISCARD_BUFFER = new byte[8192];
+
+    /** Builds triggered recently, by event type, deployment ID and job. */
+    private final Cache<TriggerKey, Boolean> recentTriggers = CacheBuilder.newBuilder()
+            .maximumSize(MAX_REMEMBERED_TRIGGERS)
+            .expireAfterWrite(DUPLICATE_WINDOW_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    @Inject private DeployDbConfig config;
+    @Inject private TriggerIndex triggerIndex;
+    @Inject private TriggerProcessor processor;
+    @Inject private PipelineMetrics metrics;
+    @Inject private ServiceRateLimiter rateLimiter;
+
     @Override
     public String getUrlName() {
         return "deploydb";
@@ -37,67 +89,564 @@ public class TriggerEndpoint implements UnprotectedRootAction {
 
     @RequirePOST
     public HttpResponse doTrigger(StaplerRequest req) throws IOException, ServletException {
+        // Reject payloads which are declared to be too large, before reading anything
+        final long maxBytes = config.getMaxPayloadBytes();
+        if (req.getContentLength() > maxBytes) {
+            LOGGER.warning(String.format("Rejected hook with Content-Length %d.", req.getContentLength()));
+            metrics.recordHookRejected(PipelineMetrics.Rejection.TOO_LARGE);
+            return reject(413, String.format("Webhook payloads may be no larger than %d bytes.", maxBytes));
+        }
+
+        // The Content-Type header should contain info about what type of webhook this is;
+        // check it first, so that webhooks of unsupported types are rejected without parsing their body
+        String contentType = fixEmptyAndTrim(req.getHeader("Content-Type"));
+        if (contentType == null) {
+            LOGGER.warning("Received hook without Content-Type header.");
+            metrics.recordHookRejected(PipelineMetrics.Rejection.UNSUPPORTED_TYPE);
+            return reject(415, "Could not determine hook type from Content-Type header.");
+        }
+        final EventType eventType = EventType.forMimeType(contentType);
+        if (eventType == null) {
+            LOGGER.warning(String.format("Received hook with unrecognised Content-Type value: '%s'.", contentType));
+            metrics.recordHookRejected(PipelineMetrics.Rejection.UNSUPPORTED_TYPE);
+            return reject(415, String.format("Could not determine hook type for '%s'.", contentType));
+        }
+
         // Grab webhook payload from request body
-        TriggerWebhook hook;
+        final TriggerWebhookParser parser = config.createWebhookParser();
+        final TriggerWebhook hook;
+        try {
+            hook = readBody(req, maxBytes, new BodyReader<TriggerWebhook>() {
+                @Override
+                public TriggerWebhook read(InputStream in) throws IOException {
+                    return parser.parse(in);
+                }
+            });
+        } catch (RejectedException e) {
+            return e.getResponse();
+        }
+
+        hook.setEventType(eventType);
+        metrics.recordHookReceived(eventType);
+
+        // In async mode, respond as soon as the webhook has been validated, and trigger builds in the background
+        if (config.isAsyncTriggers()) {
+            final String receipt = processor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    triggerBuilds(hook);
+                }
+            });
+            if (receipt == null) {
+                LOGGER.warning(String.format("Rejected %s as too many webhooks are waiting to be processed.", hook));
+                metrics.recordHookRejected(PipelineMetrics.Rejection.QUEUE_FULL);
+                return plainText(HttpServletResponse.SC_SERVICE_UNAVAILABLE, Messages.WebhookQueueFull(),
+                        RETRY_AFTER_SECONDS);
+            }
+            return plainText(HttpServletResponse.SC_ACCEPTED, Messages.WebhookAccepted(receipt), null);
+        }
+
+        // Respond with success in all cases
+        return HttpResponses.plainText(Messages.TriggeredBuilds(triggerBuilds(hook)));
+    }
+
+    /**
+     * Accepts a batch of webhooks in a single request, as a JSON array or as newline-delimited JSON, where each event
+     * is an object of the form {@code {"type": "<event MIME type>", "event": {...}}}.
+     * <p/>
+     * The whole batch is read, and its signature checked, before any builds are triggered. Events which are invalid,
+     * such as those of an unknown type or exceeding the payload limits, are reported individually in the JSON response,
+     * without affecting the other events in the batch; only a batch which is not well-formed JSON, or exceeds the batch
+     * limits, is rejected as a whole.
+     */
+    @RequirePOST
+    public HttpResponse doTriggerBatch(StaplerRequest req) throws IOException, ServletException {
+        // Reject batches which are declared to be too large, before reading anything
+        final int maxEvents = config.getMaxBatchEvents();
+        final long maxBytes = config.getMaxBatchBytes();
+        if (req.getContentLength() > maxBytes) {
+            LOGGER.warning(String.format("Rejected batch with Content-Length %d.", req.getContentLength()));
+            metrics.recordHookRejected(PipelineMetrics.Rejection.TOO_LARGE);
+            return reject(413, String.format("Webhook batches may be no larger than %d bytes.", maxBytes), maxBytes);
+        }
+
+        // Each event names its own type, but the batch itself must be JSON; check it before reading the body
+        final String contentType = fixEmptyAndTrim(req.getHeader("Content-Type"));
+        if (!isBatchMimeType(contentType)) {
+            LOGGER.warning(String.format("Received batch with unsupported Content-Type value: '%s'.", contentType));
+            metrics.recordHookRejected(PipelineMetrics.Rejection.UNSUPPORTED_TYPE);
+            return reject(415, "Webhook batches must have a Content-Type of application/json or "
+                    + "application/x-ndjson.", maxBytes);
+        }
+
+        // Grab the events from the request body, parsing them one at a time
+        final TriggerWebhookParser parser = config.createWebhookParser();
+        final List<TriggerWebhookParser.Envelope> envelopes;
         try {
-            hook = new ObjectMapper().readValue(req.getInputStream(), TriggerWebhook.class);
+            envelopes = readBody(req, maxBytes, new BodyReader<List<TriggerWebhookParser.Envelope>>() {
+                @Override
+                public List<TriggerWebhookParser.Envelope> read(InputStream in) throws IOException {
+                    return parser.parseBatch(in, maxEvents, maxBytes);
+                }
+            });
+        } catch (RejectedException e) {
+            return e.getResponse();
+        }
+
+        // Work out the type of each event; events which are invalid are rejected individually
+        final List<BatchResult> results = new ArrayList<BatchResult>(envelopes.size());
+        final List<TriggerWebhook> hooks = new ArrayList<TriggerWebhook>(envelopes.size());
+        for (TriggerWebhookParser.Envelope envelope : envelopes) {
+            final TriggerWebhook hook = envelope.getHook();
+            final EventType eventType = EventType.forMimeType(envelope.getType());
+            if (envelope.getError() != null) {
+                metrics.recordHookRejected(envelope.isTooLarge()
+                        ? PipelineMetrics.Rejection.TOO_LARGE : PipelineMetrics.Rejection.MALFORMED);
+                results.add(BatchResult.error(envelope.getType(), envelope.getError()));
+            } else if (eventType == null) {
+                metrics.recordHookRejected(PipelineMetrics.Rejection.UNSUPPORTED_TYPE);
+                results.add(BatchResult.error(envelope.getType(), envelope.getType() == null
+                        ? "Could not determine hook type, as the event has no 'type' field."
+                        : String.format("Could not determine hook type for '%s'.", envelope.getType())));
+            } else if (hook == null) {
+                metrics.recordHookRejected(PipelineMetrics.Rejection.MALFORMED);
+                results.add(BatchResult.error(envelope.getType(), "The event has no 'event' object."));
+            } else {
+                hook.setEventType(eventType);
+                metrics.recordHookReceived(eventType);
+                hooks.add(hook);
+                results.add(new BatchResult(envelope.getType(), hook));
+            }
+        }
+        LOGGER.fine(String.format("Received batch of %d event(s), of which %d are valid.", results.size(),
+                hooks.size()));
+
+        // In async mode, respond as soon as the batch has been validated, and trigger builds in the background
+        if (config.isAsyncTriggers() && !hooks.isEmpty()) {
+            final String receipt = processor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    triggerBuilds(hooks);
+                }
+            });
+            if (receipt == null) {
+                LOGGER.warning(String.format("Rejected batch of %d webhook(s) as too many webhooks are waiting to "
+                        + "be processed.", hooks.size()));
+                for (BatchResult result : results) {
+                    if (result.error == null) {
+                        metrics.recordHookRejected(PipelineMetrics.Rejection.QUEUE_FULL);
+                        result.error = Messages.WebhookQueueFull();
+                    }
+                }
+                return batchResponse(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null, results, RETRY_AFTER_SECONDS);
+            }
+            return batchResponse(HttpServletResponse.SC_ACCEPTED, receipt, results, null);
+        }
+
+        // Trigger builds for all of the valid events at once, and record how many each one scheduled
+        final int[] scheduled = triggerBuilds(hooks);
+        int next = 0;
+        for (BatchResult result : results) {
+            if (result.error == null) {
+                result.triggered = scheduled[next++];
+            }
+        }
+        return batchResponse(HttpServletResponse.SC_OK, null, results, null);
+    }
+
+    /**
+     * Reads a webhook request body with the given reader. If a webhook secret has been configured, the body is signed
+     * as it is read, and only returned if its signature matches the signature header.
+     *
+     * @param maxBytes Maximum size of the body.
+     * @throws RejectedException If the request should be rejected; its response should be sent.
+     */
+    private <T> T readBody(StaplerRequest req, long maxBytes, BodyReader<T> reader) throws RejectedException {
+        // If a secret has been configured, only accept webhooks which claim to be signed with it
+        final WebhookSignature signature = config.getWebhookSignature();
+        final byte[] expectedSignature = signature == null ? null : WebhookSignature.parse(
+                req.getHeader(WebhookSignature.HEADER));
+        if (signature != null && expectedSignature == null) {
+            LOGGER.warning("Received hook without a valid signature header.");
+            throw reject(PipelineMetrics.Rejection.UNAUTHENTICATED, 403,
+                    String.format("Webhooks must be signed, via the %s header.", WebhookSignature.HEADER), maxBytes);
+        }
+
+        // Grab webhook payload from request body, signing it as it is read
+        final long parseStart = System.nanoTime();
+        try {
+            final WebhookSignature.SigningInputStream signed = signature == null ? null
+                    : signature.sign(req.getInputStream());
+            final T body = reader.read(signed == null ? req.getInputStream() : signed);
+
+            // Check the signature of the whole body, before anything is done with its contents
+            if (signed != null && !signed.verify(expectedSignature, maxBytes)) {
+                LOGGER.warning("Received hook with an incorrect signature.");
+                throw reject(PipelineMetrics.Rejection.UNAUTHENTICATED, 403, "Webhook signature does not match.",
+                        maxBytes);
+            }
+            return body;
+        } catch (PayloadTooLargeException e) {
+            LOGGER.warning("Rejected hook payload exceeding limits: " + e.getMessage());
+            throw reject(PipelineMetrics.Rejection.TOO_LARGE, 413, e.getMessage(), maxBytes);
         } catch (JsonParseException e) {
             LOGGER.warning("Received hook without JSON body.");
-            return HttpResponses.errorWithoutStack(400, "This endpoint expects a POST request with JSON body.");
+            throw reject(PipelineMetrics.Rejection.MALFORMED, 400,
+                    "This endpoint expects a POST request with JSON body.", maxBytes);
         } catch (IOException e) {
             LOGGER.warning("Failed to read webhook payload from request body: "+ e.getMessage());
-            return HttpResponses.errorWithoutStack(400, "Failed to read webhook payload from request body.");
+            throw reject(PipelineMetrics.Rejection.MALFORMED, 400, "Failed to read webhook payload from request body.",
+                    maxBytes);
+        } finally {
+            metrics.recordHookParsed(System.nanoTime() - parseStart);
         }
+    }
 
-        // The Content-Type header should contain info about what type of webhook this is
-        String contentType = fixEmptyAndTrim(req.getHeader("Content-Type"));
-        if (contentType == null) {
-            LOGGER.warning("Received hook without Content-Type header.");
-            return HttpResponses.errorWithoutStack(415, "Could not determine hook type from Content-Type header.");
+    /**
+     * Serves the webhook pipeline metrics to users with read access: as JSON by default, or in the Prometheus text
+     * format if the {@code format=prometheus} query parameter is given.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setHeader("Cache-Control", "no-cache");
+        if ("prometheus".equals(req.getParameter("format"))) {
+            rsp.setContentType(MetricsWriter.PROMETHEUS_CONTENT_TYPE);
+            MetricsWriter.writePrometheus(metrics, rsp.getWriter());
+        } else {
+            rsp.setContentType("application/json;charset=UTF-8");
+            MetricsWriter.writeJson(metrics, rsp.getWriter());
         }
+    }
 
-        // Try to parse the content type to a type
-        if (!hook.setType(contentType)) {
-            LOGGER.warning(String.format("Received hook with unrecognised Content-Type value: '%s'.", contentType));
-            return HttpResponses.errorWithoutStack(415,
-                    String.format("Could not determine hook type for '%s'.", contentType));
+    /**
+     * Schedules a build for each enabled job which should be triggered by the given webhook.
+     *
+     * @return The number of builds scheduled.
+     * @see #triggerBuilds(List)
+     */
+    private int triggerBuilds(TriggerWebhook hook) {
+        return triggerBuilds(Collections.singletonList(hook))[0];
+    }
+
+    /**
+     * Schedules a build for each enabled job which should be triggered by each of the given webhooks.
+     * <p/>
+     * As DeployDB retries webhook deliveries, the same event may arrive several times; jobs which were already
+     * triggered by the same event within the last {@link #DUPLICATE_WINDOW_MINUTES} minutes are skipped. Jobs may also
+     * be skipped due to the quiet period or rate limit configured in their trigger.
+     * <p/>
+     * Every webhook is routed against the same snapshot of the trigger index, and then the builds for all of them are
+     * added to the queue while it is locked once.
+     *
+     * @return The number of builds scheduled for each webhook, at the same index.
+     */
+    private int[] triggerBuilds(List<TriggerWebhook> hooks) {
+        final TriggerIndex.Snapshot index = triggerIndex.snapshot();
+        final List<PendingBuilds> pending = new ArrayList<PendingBuilds>(hooks.size());
+        for (TriggerWebhook hook : hooks) {
+            pending.add(findBuildsToSchedule(hook, index));
         }
 
+        // Lock the queue once for all of the webhooks, so that the queue maintenance triggered by each addition can
+        // only run once every build is queued
+        final Queue queue = Jenkins.getInstance().getQueue();
+        Queue.withLock(new Runnable() {
+            @Override
+            public void run() {
+                for (PendingBuilds builds : pending) {
+                    final long queueStart = System.nanoTime();
+                    builds.outcomes = scheduleBuilds(queue, builds.jobs, builds.cause, builds.action);
+                    metrics.recordBuildsQueued(System.nanoTime() - queueStart);
+                }
+            }
+        });
+
+        final int[] scheduled = new int[pending.size()];
+        for (int i = 0; i < scheduled.length; i++) {
+            scheduled[i] = recordOutcomes(pending.get(i));
+        }
+        return scheduled;
+    }
+
+    /** @return The builds which the given webhook should trigger, according to the given snapshot of the index. */
+    private PendingBuilds findBuildsToSchedule(TriggerWebhook hook, TriggerIndex.Snapshot index) {
         // Search for enabled jobs that should be triggered for the given hook
-        List<AbstractProject<?, ?>> jobs = findJobsToTriggerForWebhook(hook);
+        final long routingStart = System.nanoTime();
+        List<Job<?, ?>> jobs = findJobsToTriggerForWebhook(hook, index);
+        metrics.recordHookRouted(System.nanoTime() - routingStart, jobs.size());
         LOGGER.fine(String.format("Incoming DeployDB %s triggered %d job(s).", hook, jobs.size()));
 
-        // Schedule a build for each of the jobs that matched
-        for (AbstractProject<?, ?> job : jobs) {
-            job.scheduleBuild2(0, new DeployDbCause(), new DeployDbBuildAction(hook));
+        // Skip the jobs which this event has already triggered
+        final PendingBuilds builds = new PendingBuilds(hook, jobs.size());
+        for (Job<?, ?> job : jobs) {
+            // Events without an ID can't be told apart, so are never considered duplicates
+            final TriggerKey key = hook.getId() == 0 ? null : new TriggerKey(hook, job.getFullName());
+            if (key != null && recentTriggers.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+                LOGGER.fine(String.format("Ignoring duplicate %s for %s.", hook, job.getFullName()));
+                builds.duplicates++;
+                continue;
+            }
+            builds.jobs.add(job);
+            builds.keys.add(key);
         }
+        return builds;
+    }
 
-        // Respond with success in all cases
-        return HttpResponses.plainText(Messages.TriggeredBuilds(jobs.size()));
+    /**
+     * Logs and records metrics for what became of the given builds, after they were scheduled.
+     *
+     * @return The number of builds scheduled.
+     */
+    private int recordOutcomes(PendingBuilds builds) {
+        int scheduled = 0;
+        for (int i = 0; i < builds.outcomes.length; i++) {
+            switch (builds.outcomes[i]) {
+                case SCHEDULED:
+                    scheduled++;
+                    break;
+                case COALESCED:
+                    LOGGER.fine(String.format("Merged %s into the queued build of %s.", builds.hook,
+                            builds.jobs.get(i).getFullName()));
+                    metrics.recordTriggerSuppressed(PipelineMetrics.Suppression.COALESCED);
+                    break;
+                case RATE_LIMITED:
+                    LOGGER.fine(String.format("Ignoring %s for %s, as its rate limit has been reached.", builds.hook,
+                            builds.jobs.get(i).getFullName()));
+                    metrics.recordTriggerSuppressed(PipelineMetrics.Suppression.RATE_LIMITED);
+                    allowRetry(builds.keys.get(i));
+                    break;
+                default:
+                    allowRetry(builds.keys.get(i));
+            }
+        }
+        metrics.recordBuildsScheduled(scheduled, builds.duplicates);
+        return scheduled;
+    }
+
+    /** Forgets that the event with the given key triggered its job, as no build was scheduled for it. */
+    private void allowRetry(@CheckForNull TriggerKey key) {
+        if (key != null) {
+            recentTriggers.invalidate(key);
+        }
+    }
+
+    /**
+     * Schedules a build of each of the given jobs, with the given cause and action.
+     * <p/>
+     * Must hold the queue lock, so that the builds of every job are added to the queue without it being released.
+     *
+     * @return What became of the build of each job, at the same index.
+     */
+    private Outcome[] scheduleBuilds(Queue queue, List<Job<?, ?>> jobs, Cause cause, DeployDbBuildAction action) {
+        final Outcome[] outcomes = new Outcome[jobs.size()];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = scheduleBuild(queue, jobs.get(i), cause, action);
+        }
+        return outcomes;
+    }
+
+    /**
+     * Schedules a build of the given job, with the quiet period configured in its trigger, unless the webhook should
+     * instead be merged into a build already queued, or ignored due to the trigger's rate limit.
+     * <p/>
+     * Must hold the queue lock, so that the queue can't change between checking it and adding to it.
+     */
+    private Outcome scheduleBuild(Queue queue, Job<?, ?> job, Cause cause, DeployDbBuildAction action) {
+        final DeployDbTrigger trigger = DeployDbTrigger.forJob(job);
+        final int quietPeriod = trigger == null ? 0 : trigger.getQuietPeriod();
+        final int maxBuildsPerHour = trigger == null ? 0 : trigger.getMaxBuildsPerHour();
+
+        // Further webhooks for a service are merged into a build for the same service which is still queued
+        if (quietPeriod > 0 && mergeIntoQueued(queue, job, action)) {
+            return Outcome.COALESCED;
+        }
+        if (maxBuildsPerHour > 0 && !rateLimiter.tryAcquire(job.getFullName(), action.getService(), maxBuildsPerHour)) {
+            return quietPeriod == 0 && mergeIntoQueued(queue, job, action) ? Outcome.COALESCED : Outcome.RATE_LIMITED;
+        }
+        return queueBuild(job, quietPeriod, new CauseAction(cause), action) ? Outcome.SCHEDULED : Outcome.NOT_SCHEDULED;
+    }
+
+    /**
+     * Schedules a build of the given job, which may be of any type that can be triggered, adding the default parameter
+     * values if the job is parameterised.
+     *
+     * @param job A job implementing {@link ParameterizedJobMixIn.ParameterizedJob}, as all indexed jobs do.
+     * @return {@code true} if the build was scheduled, or was merged into one already queued.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static boolean queueBuild(final Job job, int quietPeriod, Action... actions) {
+        return new ParameterizedJobMixIn() {
+            @Override
+            protected Job asJob() {
+                return job;
+            }
+        }.scheduleBuild2(quietPeriod, actions) != null;
     }
 
-    /** @return A list of jobs which should be triggered by the given webhook. */
+    /**
+     * Merges the deployment of the given action into a build of the given job which is queued for the same event type
+     * and service, if there is one, so that the deployment is also reported on when that build completes.
+     *
+     * @return Whether the deployment was merged into a queued build.
+     */
+    private static boolean mergeIntoQueued(Queue queue, Job<?, ?> job, DeployDbBuildAction action) {
+        for (Queue.Item item : queue.getItems((Queue.Task) job)) {
+            for (DeployDbBuildAction queuedAction : item.getActions(DeployDbBuildAction.class)) {
+                if (action.isSameServiceEvent(queuedAction)) {
+                    item.replaceAction(queuedAction.withMergedDeployment(action));
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return Whether the given Content-Type is one accepted for batches, ignoring case and any parameters. */
+    private static boolean isBatchMimeType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final int parametersStart = contentType.indexOf(';');
+        final String mediaType = parametersStart < 0 ? contentType : contentType.substring(0, parametersStart);
+        return BATCH_MIME_TYPES.contains(mediaType.trim().toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Creates the response to a rejected webhook, which first discards whatever remains of the request body, so that
+     * the connection can be reused. Bodies which are larger than the payload limit are not read; the connection is
+     * closed instead.
+     *
+     * @param status HTTP error status code.
+     * @param message Plain text response body.
+     */
+    private HttpResponse reject(int status, String message) {
+        return reject(status, message, config.getMaxPayloadBytes());
+    }
+
+    /**
+     * @param maxBytes Size limit of the request body.
+     * @see #reject(int, String)
+     */
+    private static HttpResponse reject(int status, String message, final long maxBytes) {
+        final HttpResponse error = HttpResponses.errorWithoutStack(status, message);
+        return new HttpResponse() {
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+                    throws IOException, ServletException {
+                boolean drained;
+                try {
+                    drained = req.getContentLength() <= maxBytes && discard(req.getInputStream(), maxBytes);
+                } catch (IOException e) {
+                    drained = false;
+                }
+                if (!drained) {
+                    rsp.setHeader("Connection", "close");
+                }
+                error.generateResponse(req, rsp, node);
+            }
+        };
+    }
+
+    /**
+     * Records the rejection of a webhook for the given reason.
+     *
+     * @return An exception carrying the response to the rejected webhook.
+     * @see #reject(int, String, long)
+     */
+    private RejectedException reject(PipelineMetrics.Rejection reason, int status, String message, long maxBytes) {
+        metrics.recordHookRejected(reason);
+        return new RejectedException(reject(status, message, maxBytes));
+    }
+
+    /**
+     * Reads and throws away up to the given number of bytes from the given stream, without buffering them.
+     *
+     * @return {@code true} if the end of the stream was reached.
+     */
+    static boolean discard(InputStream in, long maxBytes) throws IOException {
+        long remaining = maxBytes;
+        while (remaining > 0) {
+            final int n = in.read(DISCARD_BUFFER, 0, (int) Math.min(DISCARD_BUFFER.length, remaining));
+            if (n < 0) {
+                return true;
+            }
+            remaining -= n;
+        }
+        return in.read() < 0;
+    }
+
+    /**
+     * @param status HTTP status code.
+     * @param message Plain text response body.
+     * @param retryAfterSeconds Value of the Retry-After header, if not {@code null}.
+     */
+    private static HttpResponse plainText(final int status, final String message, final Integer retryAfterSeconds) {
+        return new HttpResponse() {
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException {
+                rsp.setStatus(status);
+                if (retryAfterSeconds != null) {
+                    rsp.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+                }
+                rsp.setContentType("text/plain;charset=UTF-8");
+                rsp.getWriter().print(message);
+            }
+        };
+    }
+
+    /**
+     * @param status HTTP status code.
+     * @param receipt Receipt for the batch, if it is being processed in the background.
+     * @param results Result of each event in the batch, in the order they were received.
+     * @param retryAfterSeconds Number of seconds after which the client should retry, if the batch was not accepted.
+     */
+    private static HttpResponse batchResponse(final int status, final String receipt,
+                                              final List<BatchResult> results, final Integer retryAfterSeconds) {
+        return new HttpResponse() {
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException {
+                rsp.setStatus(status);
+                if (retryAfterSeconds != null) {
+                    rsp.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+                }
+                rsp.setContentType("application/json;charset=UTF-8");
+                final JsonGenerator generator = Json.FACTORY.createGenerator(rsp.getWriter());
+                try {
+                    generator.writeStartObject();
+                    if (receipt != null) {
+                        generator.writeStringField("receipt", receipt);
+                    }
+                    generator.writeArrayFieldStart("events");
+                    for (BatchResult result : results) {
+                        result.write(generator);
+                    }
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                } finally {
+                    generator.close();
+                }
+            }
+        };
+    }
+
+    /** @return A list of jobs which should be triggered by the given webhook, according to the given index. */
     @Nonnull
-    private static List<AbstractProject<?, ?>> findJobsToTriggerForWebhook(TriggerWebhook hook) {
-        List<AbstractProject<?, ?>> jobsToTrigger = new ArrayList<AbstractProject<?, ?>>();
+    private List<Job<?, ?>> findJobsToTriggerForWebhook(TriggerWebhook hook, TriggerIndex.Snapshot index) {
+        List<Job<?, ?>> jobsToTrigger = new ArrayList<Job<?, ?>>();
+
+        // If the hook provides no service name, no jobs can match
+        final String service = fixEmptyAndTrim(hook.getService());
+        if (service == null) {
+            return jobsToTrigger;
+        }
 
         // Run this block with system privileges so we can find and launch jobs that may require privileged user access
         SecurityContext old = ACL.impersonate(ACL.SYSTEM);
         try {
-            for (AbstractProject<?, ?> job : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
-                // We're only interested in jobs configured with the DeployDB trigger
-                DeployDbTrigger trigger = job.getTrigger(DeployDbTrigger.class);
-                if (trigger == null) {
-                    continue;
-                }
-
+            // Find the jobs whose trigger criteria match this type of event and service, in a single pass
+            for (Job<?, ?> job : index.findJobs(hook.getEventType(), service)) {
                 // Ignore disabled or not-yet-configured jobs
-                if (!job.isBuildable()) {
-                    continue;
-                }
-
-                // Check whether the given webhook satisfies the trigger's criteria
-                if (trigger.accepts(job, hook)) {
+                if (job.isBuildable()) {
                     jobsToTrigger.add(job);
                 }
             }
@@ -108,6 +657,140 @@ public class TriggerEndpoint implements UnprotectedRootAction {
         return jobsToTrigger;
     }
 
+    /** Reads a request body, in a way that depends on the kind of request. */
+    private interface BodyReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    /** Thrown when a request is rejected while its body is being read. */
+    private static final class RejectedException extends Exception {
+
+        private final HttpResponse response;
+
+        RejectedException(HttpResponse response) {
+            this.response = response;
+        }
+
+        /** @return The response to send to the client. */
+        HttpResponse getResponse() {
+            return response;
+        }
+
+    }
+
+    /** The builds which a webhook should trigger, and what became of them once they were scheduled. */
+    private static final class PendingBuilds {
+
+        final TriggerWebhook hook;
+        final List<Job<?, ?>> jobs;
+        final List<TriggerKey> keys;
+
+        /** The cause and the build action are immutable, so every build triggered by the hook can share them. */
+        final Cause cause = new DeployDbCause();
+        final DeployDbBuildAction action;
+
+        /** Number of jobs skipped, as they were already triggered by the same event. */
+        int duplicates;
+
+        Outcome[] outcomes;
+
+        PendingBuilds(TriggerWebhook hook, int expectedJobs) {
+            this.hook = hook;
+            this.jobs = new ArrayList<Job<?, ?>>(expectedJobs);
+            this.keys = new ArrayList<TriggerKey>(expectedJobs);
+            this.action = new DeployDbBuildAction(hook);
+        }
+
+    }
+
+    /** Result of an event in a batch, as reported to the client. */
+    private static final class BatchResult {
+
+        private final String type;
+        private final TriggerWebhook hook;
+
+        /** Why the event was rejected, if it was. */
+        String error;
+
+        /** Number of builds scheduled, if known. */
+        Integer triggered;
+
+        BatchResult(String type, TriggerWebhook hook) {
+            this(type, hook, null);
+        }
+
+        private BatchResult(String type, TriggerWebhook hook, String error) {
+            this.type = type;
+            this.hook = hook;
+            this.error = error;
+        }
+
+        static BatchResult error(String type, String message) {
+            return new BatchResult(type, null, message);
+        }
+
+        void write(JsonGenerator generator) throws IOException {
+            generator.writeStartObject();
+            if (type != null) {
+                generator.writeStringField("type", type);
+            }
+            if (hook != null) {
+                generator.writeNumberField("id", hook.getId());
+                generator.writeStringField("service", hook.getService());
+            }
+            if (error != null) {
+                generator.writeStringField("error", error);
+            } else if (triggered != null) {
+                generator.writeNumberField("triggered", triggered);
+            } else {
+                generator.writeBooleanField("accepted", true);
+            }
+            generator.writeEndObject();
+        }
+
+    }
+
+    /** What became of the build of a job matched by a webhook. */
+    private enum Outcome {
+        SCHEDULED,
+        /** The webhook was merged into a build of the job which was already queued, and will be reported on with it. */
+        COALESCED,
+        /** The webhook was ignored, as it would exceed the rate limit of the job's trigger. */
+        RATE_LIMITED,
+        /** The queue refused the build. */
+        NOT_SCHEDULED
+    }
+
+    /** Identifies a build triggered by a particular DeployDB event. */
+    private static final class TriggerKey {
+
+        private final EventType eventType;
+        private final long deploymentId;
+        private final String jobName;
+
+        TriggerKey(TriggerWebhook hook, String jobName) {
+            this.eventType = hook.getEventType();
+            this.deploymentId = hook.getId();
+            this.jobName = jobName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TriggerKey)) {
+                return false;
+            }
+            final TriggerKey other = (TriggerKey) o;
+            return eventType == other.eventType && deploymentId == other.deploymentId
+                    && jobName.equals(other.jobName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(eventType, deploymentId, jobName);
+        }
+
+    }
+
     // Not needed; this is not a UI-facing Action
 
     @Override
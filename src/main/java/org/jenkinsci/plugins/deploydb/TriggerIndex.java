@@ -0,0 +1,354 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.jenkinsci.plugins.deploydb.model.EventType;
+import org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the jobs configured with a {@link DeployDbTrigger}, grouped by the event types they listen for.
+ * <p/>
+ * The index is kept up-to-date by listening for job lifecycle and configuration events, so that routing an incoming
+ * webhook only needs to look at the jobs which could possibly match, rather than every job on the instance.
+ * <p/>
+ * When a webhook's service name needs to be evaluated against many regexes, the evaluation is spread across a bounded
+ * pool of threads, one per processor.
+ */
+@Extension
+public class TriggerIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(TriggerIndex.class.getName());
+
+    /** Number of threads evaluating service name regexes in parallel. */
+    private static final int EVALUATION_THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Inject private DeployDbConfig config;
+
+    /** Evaluates chunks of service name regexes in parallel; if busy, the requesting thread evaluates them itself. */
+    private final ThreadPoolExecutor evaluator = createEvaluator();
+
+    /** Trigger configuration of each indexed job, keyed by the job's full name. Guarded by {@code this}. */
+    private final SortedMap<String, IndexEntry> entries = new TreeMap<String, IndexEntry>();
+
+    /** Matchers for the indexed jobs, grouped by event type. Replaced whenever the index changes. */
+    private volatile Map<EventType, ServiceNameMatcher<Job<?, ?>>> matchers = buildMatchers();
+
+    /**
+     * @param eventType Type of an incoming webhook.
+     * @return The jobs which are configured to be triggered by the given event type, ordered by full name.
+     */
+    @Nonnull
+    @VisibleForTesting
+    List<Job<?, ?>> getJobs(EventType eventType) {
+        ServiceNameMatcher<Job<?, ?>> matcher = matchers.get(eventType);
+        return matcher == null ? Collections.<Job<?, ?>>emptyList() : matcher.getTargets();
+    }
+
+    /**
+     * @param eventType Type of an incoming webhook.
+     * @param service Trimmed, non-empty service name from an incoming webhook.
+     * @return The jobs with a trigger event of the given type whose service name criteria match the given service,
+     *         ordered by full name.
+     */
+    @Nonnull
+    public List<Job<?, ?>> findJobs(EventType eventType, String service) {
+        return snapshot().findJobs(eventType, service);
+    }
+
+    /**
+     * @return The index as it is now, which is unaffected by any jobs being changed later, e.g. so that a batch of
+     *         webhooks can all be routed in the same way.
+     */
+    @Nonnull
+    public Snapshot snapshot() {
+        return new Snapshot(matchers);
+    }
+
+    /** The jobs in the index at a particular moment. */
+    public final class Snapshot {
+
+        private final Map<EventType, ServiceNameMatcher<Job<?, ?>>> matchers;
+
+        private Snapshot(Map<EventType, ServiceNameMatcher<Job<?, ?>>> matchers) {
+            this.matchers = matchers;
+        }
+
+        /** @see TriggerIndex#findJobs */
+        @Nonnull
+        public List<Job<?, ?>> findJobs(EventType eventType, String service) {
+            ServiceNameMatcher<Job<?, ?>> matcher = matchers.get(eventType);
+            if (matcher == null) {
+                return Collections.emptyList();
+            }
+            return matcher.match(service, inCurrentSecurityContext(evaluator), config.getParallelMatchThreshold());
+        }
+
+    }
+
+    /**
+     * @return An executor which runs tasks on the given executor, with the security context of the calling thread,
+     *         e.g. so that work done on behalf of a thread impersonating {@link ACL#SYSTEM} is also done as the system.
+     */
+    static Executor inCurrentSecurityContext(final Executor executor) {
+        final SecurityContext context = SecurityContextHolder.getContext();
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final SecurityContext old = SecurityContextHolder.getContext();
+                        SecurityContextHolder.setContext(context);
+                        try {
+                            task.run();
+                        } finally {
+                            SecurityContextHolder.setContext(old);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private static ThreadPoolExecutor createEvaluator() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(EVALUATION_THREADS, EVALUATION_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(EVALUATION_THREADS),
+                new NamingThreadFactory(new DaemonThreadFactory(), "DeployDB trigger evaluation"),
+                new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Stops the evaluation threads when Jenkins shuts down. */
+    @Terminator
+    public void shutdown() {
+        evaluator.shutdownNow();
+    }
+
+    /** Discards the current index, and rebuilds it from every job on the instance. */
+    synchronized void rebuild() {
+        entries.clear();
+
+        // Run with system privileges, so that we can see jobs which may require privileged user access
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            // Freestyle, Pipeline and other job types are all found in the same walk of the item tree
+            for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                IndexEntry entry = IndexEntry.forJob(job);
+                if (entry != null) {
+                    entries.put(job.getFullName(), entry);
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+
+        publish();
+        LOGGER.fine(String.format("Indexed %d job(s) with a DeployDB trigger.", entries.size()));
+    }
+
+    /** Adds, updates or removes the given item from the index, depending on its current trigger configuration. */
+    synchronized void update(Item item) {
+        if (!(item instanceof Job)) {
+            return;
+        }
+
+        final String name = item.getFullName();
+        final IndexEntry entry = IndexEntry.forJob((Job<?, ?>) item);
+        final IndexEntry previous = entry == null ? entries.remove(name) : entries.put(name, entry);
+
+        // Avoid rebuilding the grouped view if nothing relevant to routing has changed
+        if (entry == null ? previous != null : !entry.isEquivalentTo(previous)) {
+            publish();
+        }
+    }
+
+    /** Removes the given item from the index, along with any jobs nested within it. */
+    synchronized void remove(Item item) {
+        final String fullName = item.getFullName();
+        boolean changed = entries.remove(fullName) != null;
+
+        // Folders and other item groups may contain indexed jobs
+        if (item instanceof ItemGroup) {
+            final String childPrefix = fullName + '/';
+            Iterator<String> it = entries.tailMap(childPrefix).keySet().iterator();
+            while (it.hasNext() && it.next().startsWith(childPrefix)) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            publish();
+        }
+    }
+
+    /** Re-indexes the given item, which was previously known by another name. */
+    synchronized void move(Item item, String oldFullName) {
+        if (entries.remove(oldFullName) != null) {
+            publish();
+        }
+        update(item);
+    }
+
+    /** Replaces the matchers with ones reflecting the current entries. Must hold the lock. */
+    private void publish() {
+        matchers = buildMatchers();
+    }
+
+    private Map<EventType, ServiceNameMatcher<Job<?, ?>>> buildMatchers() {
+        Map<EventType, ServiceNameMatcher.Builder<Job<?, ?>>> builders =
+                new EnumMap<EventType, ServiceNameMatcher.Builder<Job<?, ?>>>(EventType.class);
+        for (EventType type : EventType.values()) {
+            builders.put(type, ServiceNameMatcher.<Job<?, ?>>builder());
+        }
+
+        // Entries are sorted by job name, so matching jobs will always be returned in the same order
+        for (IndexEntry entry : entries.values()) {
+            for (DeployDbTriggerEvent event : entry.events) {
+                builders.get(event.getEventType())
+                        .add(event.getServiceNameRegex(), event.getServiceNamePattern(), entry.job);
+            }
+        }
+
+        Map<EventType, ServiceNameMatcher<Job<?, ?>>> matchers =
+                new EnumMap<EventType, ServiceNameMatcher<Job<?, ?>>>(EventType.class);
+        for (Map.Entry<EventType, ServiceNameMatcher.Builder<Job<?, ?>>> builder : builders.entrySet()) {
+            matchers.put(builder.getKey(), builder.getValue().build());
+        }
+        return matchers;
+    }
+
+    /** Routing-relevant state of a single job, as of the last time it was indexed. */
+    private static final class IndexEntry {
+
+        private final Job<?, ?> job;
+        private final List<DeployDbTriggerEvent> events;
+
+        private IndexEntry(Job<?, ?> job, List<DeployDbTriggerEvent> events) {
+            this.job = job;
+            this.events = events;
+        }
+
+        /** @return An entry for the given job, or {@code null} if the job can never be triggered by DeployDB. */
+        static IndexEntry forJob(Job<?, ?> job) {
+            if (!(job instanceof ParameterizedJobMixIn.ParameterizedJob)) {
+                return null;
+            }
+            DeployDbTrigger trigger = DeployDbTrigger.forJob(job);
+            if (trigger == null) {
+                return null;
+            }
+
+            List<DeployDbTriggerEvent> events = trigger.getTriggerEventTypes();
+            if (events == null || events.isEmpty()) {
+                return null;
+            }
+            return new IndexEntry(job, new ArrayList<DeployDbTriggerEvent>(events));
+        }
+
+        /** @return {@code true} if the given entry would route webhooks in exactly the same way as this one. */
+        boolean isEquivalentTo(IndexEntry other) {
+            if (other == null || job != other.job || events.size() != other.events.size()) {
+                return false;
+            }
+            for (int i = 0; i < events.size(); i++) {
+                DeployDbTriggerEvent a = events.get(i);
+                DeployDbTriggerEvent b = other.events.get(i);
+                if (a.getEventType() != b.getEventType()
+                        || !Objects.equal(a.getServiceNameRegex(), b.getServiceNameRegex())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /** Keeps the index up-to-date as jobs are loaded, created, copied, moved or deleted. */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+
+        @Inject private TriggerIndex index;
+
+        @Override
+        public void onLoaded() {
+            index.rebuild();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            index.update(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            index.update(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            index.update(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            index.remove(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // Called for renames and moves, and also for each item nested within a renamed folder
+            index.move(item, oldFullName);
+        }
+
+    }
+
+    /** Keeps the index up-to-date as job configuration is changed, including when jobs are enabled or disabled. */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+
+        @Inject private TriggerIndex index;
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                index.update((Item) o);
+            }
+        }
+
+    }
+
+}
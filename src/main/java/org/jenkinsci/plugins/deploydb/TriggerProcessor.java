@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.deploydb;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes accepted webhooks in the background, when the {@link TriggerEndpoint} is configured for async mode.
+ * <p/>
+ * Webhooks wait in a bounded queue, so that a burst of incoming requests can't exhaust memory or request threads;
+ * once the queue is full, further webhooks are refused rather than accepted and then silently dropped.
+ */
+@Extension
+public class TriggerProcessor {
+
+    private static final Logger LOGGER = Logger.getLogger(TriggerProcessor.class.getName());
+
+    /** How long to wait for accepted webhooks to be processed when Jenkins shuts down. */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    @Inject private DeployDbConfig config;
+
+    /** Executor matching the current configuration, created on first use. Guarded by {@code this}. */
+    private ThreadPoolExecutor executor;
+
+    /** Settings the current executor was created with. Guarded by {@code this}. */
+    private int workers;
+    private int capacity;
+
+    /**
+     * Queues the given task for processing.
+     *
+     * @param task Processing to be done for an incoming webhook.
+     * @return A receipt identifying the accepted webhook, or {@code null} if the queue is full.
+     */
+    @CheckForNull
+    public String submit(final Runnable task) {
+        final String receipt = UUID.randomUUID().toString();
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    LOGGER.fine(String.format("Processing webhook %s.", receipt));
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, String.format("Failed to process webhook %s.", receipt), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return receipt;
+    }
+
+    /** @return The number of accepted webhooks waiting to be processed. */
+    public synchronized int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /** @return An executor matching the current configuration. */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        final int workers = config.getTriggerWorkers();
+        final int capacity = config.getTriggerQueueCapacity();
+        if (executor == null || workers != this.workers || capacity != this.capacity) {
+            // Webhooks already accepted by a previous executor are still processed, as it winds down
+            if (executor != null) {
+                executor.shutdown();
+            }
+            executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(capacity),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "DeployDB webhook processor"));
+            executor.allowCoreThreadTimeOut(true);
+            this.workers = workers;
+            this.capacity = capacity;
+        }
+        return executor;
+    }
+
+    /** Gives accepted webhooks a chance to be processed before Jenkins shuts down. */
+    @Terminator
+    public void shutdown() throws InterruptedException {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            List<Runnable> dropped = executor.shutdownNow();
+            LOGGER.warning(String.format("Discarded %d accepted webhook(s) at shutdown.", dropped.size()));
+        }
+    }
+
+}
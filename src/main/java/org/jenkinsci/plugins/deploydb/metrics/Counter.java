@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A count of events, which can be incremented concurrently without allocating or blocking. */
+public final class Counter {
+
+    private final String name;
+    private final String help;
+    private final String labelName;
+    private final String labelValue;
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * @param name Name of the metric, in Prometheus style, e.g. {@code deploydb_builds_scheduled_total}.
+     * @param help Short description of what is counted.
+     */
+    Counter(String name, String help) {
+        this(name, help, null, null);
+    }
+
+    /**
+     * @param name Name of the metric, shared by all counters which only differ in their label value.
+     * @param help Short description of what is counted.
+     * @param labelName Name of the label distinguishing this counter from others with the same name.
+     * @param labelValue Value of the label for this counter.
+     */
+    Counter(String name, String help, String labelName, String labelValue) {
+        this.name = name;
+        this.help = help;
+        this.labelName = labelName;
+        this.labelValue = labelValue;
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long amount) {
+        count.addAndGet(amount);
+    }
+
+    public long get() {
+        return count.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /** @return The label name, or {@code null} if this counter has no label. */
+    public String getLabelName() {
+        return labelName;
+    }
+
+    /** @return The label value, or {@code null} if this counter has no label. */
+    public String getLabelValue() {
+        return labelValue;
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+import javax.inject.Inject;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Makes the {@link PipelineMetrics} available via the Metrics plugin, when it is installed. */
+@Extension(optional = true)
+public class DeployDbMetricProvider extends MetricProvider {
+
+    /**
+     * How long a histogram snapshot is reused for. Each histogram is exposed as several gauges, which are read one after
+     * the other, so they share one snapshot, rather than each merging and copying the histogram again.
+     */
+    static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    @Inject private PipelineMetrics metrics;
+
+    @Override
+    public MetricSet getMetricSet() {
+        final Map<String, Metric> gauges = new LinkedHashMap<String, Metric>();
+        for (final Counter counter : metrics.getCounters()) {
+            final String name = counter.getLabelValue() == null
+                    ? counter.getName() : counter.getName() + "." + counter.getLabelValue();
+            gauges.put(name, new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return counter.get();
+                }
+            });
+        }
+
+        gauges.put(MetricsWriter.QUEUE_DEPTH, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return metrics.getReportQueueDepth();
+            }
+        });
+
+        for (final ValueHistogram histogram : metrics.getHistograms()) {
+            final Supplier<ValueHistogram.Snapshot> snapshot = Suppliers.memoizeWithExpiration(
+                    new Supplier<ValueHistogram.Snapshot>() {
+                        @Override
+                        public ValueHistogram.Snapshot get() {
+                            return histogram.snapshot();
+                        }
+                    }, SNAPSHOT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS);
+            gauges.put(histogram.getName() + ".count", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return snapshot.get().getCount();
+                }
+            });
+            for (final double percentile : MetricsWriter.PERCENTILES) {
+                gauges.put(String.format(Locale.ENGLISH, "%s.p%.0f", histogram.getName(), percentile),
+                        new Gauge<Double>() {
+                            @Override
+                            public Double getValue() {
+                                return snapshot.get().getRecent().getValueAtPercentile(percentile)
+                                        * histogram.getScale();
+                            }
+                        });
+            }
+        }
+
+        return new MetricSet() {
+            @Override
+            public Map<String, Metric> getMetrics() {
+                return gauges;
+            }
+        };
+    }
+
+}
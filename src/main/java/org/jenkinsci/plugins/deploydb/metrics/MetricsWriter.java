@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.HdrHistogram.Histogram;
+import org.jenkinsci.plugins.deploydb.model.Json;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/** Writes the current values of the {@link PipelineMetrics} as JSON, or in the Prometheus text format. */
+public final class MetricsWriter {
+
+    /** Content type of the Prometheus text exposition format. */
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain;version=0.0.4;charset=UTF-8";
+
+    /** Name of the gauge giving the number of reports waiting to be delivered. */
+    static final String QUEUE_DEPTH = "deploydb_report_queue_depth";
+
+    /** Percentiles reported for each histogram. */
+    static final double[] PERCENTILES = {50, 90, 99};
+
+    private MetricsWriter() {}
+
+    /**
+     * Writes the metrics as a JSON object. Counters with a label are written as an object keyed by label value, and
+     * histograms as an object with their count, and the mean, maximum, and percentiles of their recent values.
+     */
+    public static void writeJson(PipelineMetrics metrics, Writer out) throws IOException {
+        final JsonGenerator json = Json.FACTORY.createGenerator(out);
+        json.useDefaultPrettyPrinter();
+        json.writeStartObject();
+
+        String group = null;
+        for (Counter counter : metrics.getCounters()) {
+            if (group != null && !group.equals(counter.getName())) {
+                json.writeEndObject();
+                group = null;
+            }
+            if (counter.getLabelValue() == null) {
+                json.writeNumberField(counter.getName(), counter.get());
+                continue;
+            }
+            if (group == null) {
+                json.writeObjectFieldStart(counter.getName());
+                group = counter.getName();
+            }
+            json.writeNumberField(counter.getLabelValue(), counter.get());
+        }
+        if (group != null) {
+            json.writeEndObject();
+        }
+
+        json.writeNumberField(QUEUE_DEPTH, metrics.getReportQueueDepth());
+
+        for (ValueHistogram histogram : metrics.getHistograms()) {
+            final ValueHistogram.Snapshot snapshot = histogram.snapshot();
+            final Histogram recent = snapshot.getRecent();
+            final double scale = histogram.getScale();
+            json.writeObjectFieldStart(histogram.getName());
+            json.writeNumberField("count", snapshot.getCount());
+            json.writeNumberField("mean", recent.getMean() * scale);
+            json.writeNumberField("max", recent.getMaxValue() * scale);
+            for (double percentile : PERCENTILES) {
+                json.writeNumberField(String.format(Locale.ENGLISH, "p%.0f", percentile),
+                        recent.getValueAtPercentile(percentile) * scale);
+            }
+            json.writeEndObject();
+        }
+
+        json.writeEndObject();
+        json.flush();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format: counters and gauges as they are, and histograms as summaries
+     * with quantiles of their recent values, and the sum and count of all values.
+     */
+    public static void writePrometheus(PipelineMetrics metrics, Writer writer) {
+        final PrintWriter out = new PrintWriter(writer);
+
+        String previous = null;
+        for (Counter counter : metrics.getCounters()) {
+            if (!counter.getName().equals(previous)) {
+                writeHeader(out, counter.getName(), counter.getHelp(), "counter");
+                previous = counter.getName();
+            }
+            if (counter.getLabelName() == null) {
+                out.printf(Locale.ENGLISH, "%s %d\n", counter.getName(), counter.get());
+            } else {
+                out.printf(Locale.ENGLISH, "%s{%s=\"%s\"} %d\n", counter.getName(), counter.getLabelName(),
+                        counter.getLabelValue(), counter.get());
+            }
+        }
+
+        writeHeader(out, QUEUE_DEPTH, "Reports waiting to be delivered to DeployDB", "gauge");
+        out.printf(Locale.ENGLISH, "%s %d\n", QUEUE_DEPTH, metrics.getReportQueueDepth());
+
+        for (ValueHistogram histogram : metrics.getHistograms()) {
+            final ValueHistogram.Snapshot snapshot = histogram.snapshot();
+            final double scale = histogram.getScale();
+            final String name = histogram.getName();
+            writeHeader(out, name, histogram.getHelp(), "summary");
+            for (double percentile : PERCENTILES) {
+                out.printf(Locale.ENGLISH, "%s{quantile=\"%s\"} %s\n", name, percentile / 100,
+                        snapshot.getRecent().getValueAtPercentile(percentile) * scale);
+            }
+            out.printf(Locale.ENGLISH, "%s_sum %s\n", name, snapshot.getSum() * scale);
+            out.printf(Locale.ENGLISH, "%s_count %d\n", name, snapshot.getCount());
+        }
+        out.flush();
+    }
+
+    private static void writeHeader(PrintWriter out, String name, String help, String type) {
+        out.printf("# HELP %s %s\n", name, help);
+        out.printf("# TYPE %s %s\n", name, type);
+    }
+
+}
@@ -0,0 +1,197 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import hudson.Extension;
+import org.jenkinsci.plugins.deploydb.ReportPublisher;
+import org.jenkinsci.plugins.deploydb.model.EventType;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and histograms covering each stage of the webhook pipeline: from webhooks being received and parsed, to
+ * the matching jobs being found and their builds scheduled, to reports being queued and delivered back to DeployDB.
+ * <p/>
+ * Recording never allocates or blocks, so it can be done on every request. The values can be read via the
+ * {@code /deploydb/metrics} endpoint, or via the Metrics plugin, if installed.
+ */
+@Extension
+public class PipelineMetrics {
+
+    /** Highest duration recorded, in nanoseconds; anything slower is recorded as this. */
+    private static final long MAX_DURATION_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /** Highest number of candidate jobs recorded for a single webhook. */
+    private static final long MAX_CANDIDATE_JOBS = 1000000;
+
+    /** Converts durations recorded in nanoseconds to seconds. */
+    private static final double NANOS_TO_SECONDS = 1e-9;
+
+    /** Reasons for which webhooks are rejected. */
+    public enum Rejection {
+        /** The payload exceeded the configured size limits. */
+        TOO_LARGE,
+        /** The payload could not be read or parsed. */
+        MALFORMED,
+        /** The Content-Type did not name a known event type. */
+        UNSUPPORTED_TYPE,
+        /** Too many webhooks were already waiting to be processed. */
+        QUEUE_FULL,
+        /** The payload was not signed with the configured secret. */
+        UNAUTHENTICATED
+    }
+
+    /** Reasons for which matching jobs are not triggered by a webhook, as configured in their trigger. */
+    public enum Suppression {
+        /** A build of the job for the same service was already queued, so the webhook was merged into it. */
+        COALESCED,
+        /** The job's rate limit for the service had been reached, and no build was queued to merge into. */
+        RATE_LIMITED
+    }
+
+    private final Counter[] hooksReceived = new Counter[EventType.values().length];
+    private final Counter[] hooksRejected = new Counter[Rejection.values().length];
+    private final Counter[] triggersSuppressed = new Counter[Suppression.values().length];
+    private final Counter buildsScheduled = new Counter("deploydb_builds_scheduled_total",
+            "Builds scheduled by webhooks");
+    private final Counter duplicateTriggers = new Counter("deploydb_duplicate_triggers_total",
+            "Builds not scheduled, as the same webhook had already triggered them");
+    private final Counter reportsDelivered = new Counter("deploydb_reports_delivered_total",
+            "Reports delivered to DeployDB");
+    private final Counter reportsFailed = new Counter("deploydb_reports_failed_total",
+            "Reports given up on after repeated delivery failures");
+    private final Counter reportsDiscarded = new Counter("deploydb_reports_discarded_total",
+            "Reports discarded as too many were waiting to be delivered");
+    private final Counter reportRetries = new Counter("deploydb_report_retries_total",
+            "Repeated attempts to deliver reports");
+
+    private final ValueHistogram parseTime = new ValueHistogram("deploydb_hook_parse_seconds",
+            "Time taken to read and parse webhook payloads", MAX_DURATION_NANOS, NANOS_TO_SECONDS);
+    private final ValueHistogram routingTime = new ValueHistogram("deploydb_hook_routing_seconds",
+            "Time taken to find the jobs to trigger for each webhook", MAX_DURATION_NANOS, NANOS_TO_SECONDS);
+    private final ValueHistogram candidateJobs = new ValueHistogram("deploydb_hook_candidate_jobs",
+            "Number of jobs found to trigger for each webhook", MAX_CANDIDATE_JOBS, 1);
+    private final ValueHistogram queueInsertionTime = new ValueHistogram("deploydb_queue_insertion_seconds",
+            "Time taken to add the builds triggered by each webhook to the build queue", MAX_DURATION_NANOS,
+            NANOS_TO_SECONDS);
+    private final ValueHistogram reportEnqueueTime = new ValueHistogram("deploydb_report_enqueue_seconds",
+            "Time taken to persist and queue each report", MAX_DURATION_NANOS, NANOS_TO_SECONDS);
+    private final ValueHistogram reportDeliveryTime = new ValueHistogram("deploydb_report_delivery_seconds",
+            "Time taken by each attempt to deliver a report", MAX_DURATION_NANOS, NANOS_TO_SECONDS);
+
+    private final List<Counter> counters;
+    private final List<ValueHistogram> histograms;
+
+    @Inject private ReportPublisher publisher;
+
+    public PipelineMetrics() {
+        for (EventType type : EventType.values()) {
+            hooksReceived[type.ordinal()] = new Counter("deploydb_hooks_received_total",
+                    "Webhooks received, by event type", "type", type.name().toLowerCase(Locale.ENGLISH));
+        }
+        for (Rejection rejection : Rejection.values()) {
+            hooksRejected[rejection.ordinal()] = new Counter("deploydb_hooks_rejected_total",
+                    "Webhooks rejected, by reason", "reason", rejection.name().toLowerCase(Locale.ENGLISH));
+        }
+        for (Suppression suppression : Suppression.values()) {
+            triggersSuppressed[suppression.ordinal()] = new Counter("deploydb_triggers_suppressed_total",
+                    "Builds not scheduled due to the quiet period or rate limit of their trigger, by reason", "reason",
+                    suppression.name().toLowerCase(Locale.ENGLISH));
+        }
+
+        final List<Counter> counters = new ArrayList<Counter>();
+        counters.addAll(Arrays.asList(hooksReceived));
+        counters.addAll(Arrays.asList(hooksRejected));
+        counters.addAll(Arrays.asList(triggersSuppressed));
+        counters.addAll(Arrays.asList(buildsScheduled, duplicateTriggers, reportsDelivered, reportsFailed,
+                reportsDiscarded, reportRetries));
+        this.counters = Collections.unmodifiableList(counters);
+        this.histograms = Collections.unmodifiableList(Arrays.asList(parseTime, routingTime, candidateJobs,
+                queueInsertionTime, reportEnqueueTime, reportDeliveryTime));
+    }
+
+    /** Records the time taken to read and parse a webhook payload. */
+    public void recordHookParsed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    /** Records that a valid webhook of the given type was received. */
+    public void recordHookReceived(EventType type) {
+        hooksReceived[type.ordinal()].increment();
+    }
+
+    /** Records that a webhook was rejected for the given reason. */
+    public void recordHookRejected(Rejection reason) {
+        hooksRejected[reason.ordinal()].increment();
+    }
+
+    /** Records the time taken to find the jobs to trigger for a webhook, and how many were found. */
+    public void recordHookRouted(long nanos, int candidates) {
+        routingTime.record(nanos);
+        candidateJobs.record(candidates);
+    }
+
+    /** Records that a matching job was not triggered by a webhook for the given reason. */
+    public void recordTriggerSuppressed(Suppression reason) {
+        triggersSuppressed[reason.ordinal()].increment();
+    }
+
+    /** Records the time taken to add all of the builds triggered by a webhook to the build queue. */
+    public void recordBuildsQueued(long nanos) {
+        queueInsertionTime.record(nanos);
+    }
+
+    /**
+     * @param scheduled Number of builds scheduled for a webhook.
+     * @param duplicates Number of builds not scheduled, as they had already been triggered by the same webhook.
+     */
+    public void recordBuildsScheduled(int scheduled, int duplicates) {
+        buildsScheduled.add(scheduled);
+        duplicateTriggers.add(duplicates);
+    }
+
+    /** Records the time taken to persist and queue a report for delivery. */
+    public void recordReportEnqueued(long nanos) {
+        reportEnqueueTime.record(nanos);
+    }
+
+    /** Records the time taken by an attempt to deliver a report, whether or not it succeeded. */
+    public void recordReportAttempt(long nanos) {
+        reportDeliveryTime.record(nanos);
+    }
+
+    public void recordReportRetry() {
+        reportRetries.increment();
+    }
+
+    public void recordReportsDelivered(int reports) {
+        reportsDelivered.add(reports);
+    }
+
+    public void recordReportsFailed(int reports) {
+        reportsFailed.add(reports);
+    }
+
+    public void recordReportDiscarded() {
+        reportsDiscarded.increment();
+    }
+
+    /** @return All counters, with those of the same name next to each other. */
+    public List<Counter> getCounters() {
+        return counters;
+    }
+
+    public List<ValueHistogram> getHistograms() {
+        return histograms;
+    }
+
+    /** @return The number of reports currently waiting to be delivered. */
+    public int getReportQueueDepth() {
+        return publisher == null ? 0 : publisher.getQueueDepth();
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of recorded values, such as latencies, backed by an HDR histogram.
+ * <p/>
+ * Values are recorded into a {@link Recorder}, which neither allocates nor blocks, so recording can be done on any
+ * thread. Reading takes the values recorded since the last read, and adds them to the count and sum of all values, and
+ * to a rolling window of recent values, from which the distribution is read. The window is made up of a few intervals,
+ * the oldest of which is discarded as each new one begins, so the distribution reflects current behaviour rather than
+ * everything since Jenkins started. Values are placed in the interval in which they are read.
+ */
+public final class ValueHistogram {
+
+    /** Number of significant decimal digits kept for each value. */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /** Number of intervals in the window of recent values. */
+    static final int WINDOW_INTERVALS = 5;
+
+    /** Length of each interval in the window of recent values. */
+    static final long INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final String name;
+    private final String help;
+    private final long highestValue;
+    private final double scale;
+    private final Recorder recorder;
+
+    /** Values recorded in each interval of the window, used in rotation. Guarded by {@code this}. */
+    private final Histogram[] window = new Histogram[WINDOW_INTERVALS];
+
+    /** Index in {@link #window} of the current interval. Guarded by {@code this}. */
+    private int current;
+
+    /** When the current interval began, according to {@link System#nanoTime()}. Guarded by {@code this}. */
+    private long currentStart;
+
+    /** Number of values recorded up to the last read. Guarded by {@code this}. */
+    private long count;
+
+    /** Sum of the values recorded up to the last read. Guarded by {@code this}. */
+    private double sum;
+
+    /** Values recorded since the last read, recycled between reads. Guarded by {@code this}. */
+    private Histogram interval;
+
+    /**
+     * @param name Name of the metric, in Prometheus style, e.g. {@code deploydb_hook_parse_seconds}.
+     * @param help Short description of what is recorded.
+     * @param highestValue Highest value to be recorded; any higher values are recorded as this value.
+     * @param scale Factor by which recorded values are multiplied when read, e.g. to convert nanoseconds to seconds.
+     */
+    ValueHistogram(String name, String help, long highestValue, double scale) {
+        this.name = name;
+        this.help = help;
+        this.highestValue = highestValue;
+        this.scale = scale;
+        this.recorder = new Recorder(highestValue, SIGNIFICANT_DIGITS);
+        for (int i = 0; i < window.length; i++) {
+            window[i] = new Histogram(highestValue, SIGNIFICANT_DIGITS);
+        }
+        this.currentStart = System.nanoTime();
+    }
+
+    /** Records the given value, without allocating. */
+    public void record(long value) {
+        recorder.recordValue(value < 0 ? 0 : Math.min(value, highestValue));
+    }
+
+    /** @return The count and sum of all values recorded so far, and a copy of the recent values. */
+    public Snapshot snapshot() {
+        return snapshot(System.nanoTime());
+    }
+
+    @VisibleForTesting
+    synchronized Snapshot snapshot(long now) {
+        interval = recorder.getIntervalHistogram(interval);
+        count += interval.getTotalCount();
+        sum += interval.getMean() * interval.getTotalCount();
+
+        if (now - currentStart >= INTERVAL_NANOS * WINDOW_INTERVALS) {
+            // Every interval in the window has passed
+            for (Histogram histogram : window) {
+                histogram.reset();
+            }
+            currentStart = now;
+        }
+        while (now - currentStart >= INTERVAL_NANOS) {
+            current = (current + 1) % window.length;
+            window[current].reset();
+            currentStart += INTERVAL_NANOS;
+        }
+        window[current].add(interval);
+
+        final Histogram recent = new Histogram(highestValue, SIGNIFICANT_DIGITS);
+        for (Histogram histogram : window) {
+            recent.add(histogram);
+        }
+        return new Snapshot(count, sum, recent);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /** @return Factor by which recorded values should be multiplied for display. */
+    public double getScale() {
+        return scale;
+    }
+
+    /** The values of a {@link ValueHistogram}, as of a single read; values are unscaled. */
+    public static final class Snapshot {
+
+        private final long count;
+        private final double sum;
+        private final Histogram recent;
+
+        Snapshot(long count, double sum, Histogram recent) {
+            this.count = count;
+            this.sum = sum;
+            this.recent = recent;
+        }
+
+        /** @return Number of values recorded since Jenkins started. */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return Sum of the values recorded since Jenkins started, to within the histogram's precision. */
+        public double getSum() {
+            return sum;
+        }
+
+        /** @return The values recorded within the last few minutes. */
+        public Histogram getRecent() {
+            return recent;
+        }
+
+    }
+
+}
@@ -2,6 +2,10 @@ package org.jenkinsci.plugins.deploydb.model;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 public enum EventType {
 
     DEPLOYMENT_CREATED("application/vnd.deploydb.deploymentcreated.v1+json"),
@@ -9,6 +13,25 @@ public enum EventType {
     DEPLOYMENT_COMPLETED("application/vnd.deploydb.deploymentcompleted.v1+json"),
     PROMOTION_COMPLETED("application/vnd.deploydb.promotioncompleted.v1+json");
 
+    /** Start of the vendor-specific MIME types used by DeployDB, which is followed by the event name and version. */
+    private static final String VENDOR_PREFIX = "application/vnd.deploydb.";
+
+    /** End of the vendor-specific MIME types used by DeployDB. */
+    private static final String VENDOR_SUFFIX = "+json";
+
+    /** Event types by their MIME type, as sent by DeployDB. */
+    private static final Map<String, EventType> BY_MIME_TYPE = new HashMap<String, EventType>();
+
+    /** Event types by the event name within their MIME type, e.g. {@code deploymentcreated}. */
+    private static final Map<String, EventType> BY_EVENT_NAME = new HashMap<String, EventType>();
+
+    static {
+        for (EventType type : values()) {
+            BY_MIME_TYPE.put(type.mimeType, type);
+            BY_EVENT_NAME.put(type.mimeType.substring(VENDOR_PREFIX.length(), type.mimeType.lastIndexOf(".v")), type);
+        }
+    }
+
     private final String mimeType;
 
     private EventType(String mimeType) {
@@ -21,18 +44,54 @@ public enum EventType {
     }
 
     /**
-     * Returns the appropriate event type for a given MIME type.
+     * Returns the appropriate event type for a given MIME type, e.g. from a Content-Type header.
+     * <p/>
+     * Case and any parameters, such as {@code charset}, are ignored; and any version of the DeployDB types is accepted,
+     * e.g. {@code application/vnd.deploydb.deploymentcreated.v2+json}.
      *
      * @param mimeType MIME type value.
      * @return The matching value, or {@code null} if no match could be made.
      */
     public static EventType forMimeType(String mimeType) {
-        for (EventType e : values()) {
-            if (e.mimeType.equalsIgnoreCase(mimeType)) {
-                return e;
+        if (mimeType == null) {
+            return null;
+        }
+
+        // DeployDB sends exactly the known types, so try those first
+        EventType type = BY_MIME_TYPE.get(mimeType);
+        if (type != null) {
+            return type;
+        }
+
+        // Otherwise ignore any parameters, surrounding whitespace and case
+        final int parametersStart = mimeType.indexOf(';');
+        final String mediaType = (parametersStart < 0 ? mimeType : mimeType.substring(0, parametersStart)).trim()
+                .toLowerCase(Locale.ENGLISH);
+        type = BY_MIME_TYPE.get(mediaType);
+        if (type != null || !mediaType.startsWith(VENDOR_PREFIX) || !mediaType.endsWith(VENDOR_SUFFIX)) {
+            return type;
+        }
+
+        // Look up the event name from types with other versions
+        final int versionEnd = mediaType.length() - VENDOR_SUFFIX.length();
+        final int versionStart = mediaType.lastIndexOf(".v", versionEnd);
+        if (versionStart <= VENDOR_PREFIX.length() || !isVersion(mediaType, versionStart + 2, versionEnd)) {
+            return null;
+        }
+        return BY_EVENT_NAME.get(mediaType.substring(VENDOR_PREFIX.length(), versionStart));
+    }
+
+    /** @return Whether the given part of the string is a version number, starting at one, without leading zeros. */
+    private static boolean isVersion(String s, int start, int end) {
+        if (start >= end || s.charAt(start) < '1' || s.charAt(start) > '9') {
+            return false;
+        }
+        for (int i = start + 1; i < end; i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
             }
         }
-        return null;
+        return true;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Plugin-wide JSON configuration for the webhooks exchanged with DeployDB.
+ * <p/>
+ * These are created once and are immutable and thread-safe, so Jackson's (de)serialiser caches are only ever built
+ * once, rather than for every incoming webhook or completed build.
+ */
+public final class Json {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            // Streams are owned, and closed, by whoever opened them
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    /** Creates the streaming parsers used to read {@link TriggerWebhook} payloads sent by DeployDB. */
+    public static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    /** Writes {@link ReportWebhook} payloads to be sent to DeployDB. */
+    public static final ObjectWriter REPORT_WEBHOOK_WRITER = MAPPER.writerWithType(ReportWebhook.class);
+
+    private Json() {}
+
+}
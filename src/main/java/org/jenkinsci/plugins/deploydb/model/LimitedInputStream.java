@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Stream which fails as soon as more than a given number of bytes have been read from it. */
+class LimitedInputStream extends FilterInputStream {
+
+    private final long maxBytes;
+    private long count;
+
+    LimitedInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // Never read more than one byte beyond the limit, which is enough to know that it has been exceeded
+        int n = super.read(b, off, (int) Math.min(len, maxBytes - count + 1));
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, maxBytes - count + 1));
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) throws PayloadTooLargeException {
+        count += n;
+        if (count > maxBytes) {
+            throw new PayloadTooLargeException(String.format("Payload is larger than %d bytes.", maxBytes));
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import java.io.IOException;
+
+/** Thrown when a webhook payload exceeds the configured limits on its size or complexity. */
+public class PayloadTooLargeException extends IOException {
+
+    public PayloadTooLargeException(String message) {
+        super(message);
+    }
+
+}
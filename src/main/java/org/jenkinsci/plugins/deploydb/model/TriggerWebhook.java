@@ -1,20 +1,45 @@
 package org.jenkinsci.plugins.deploydb.model;
 
-import com.fasterxml.jackson.annotation.JsonAnySetter;
-
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
-/** Represents a webhook sent from DeployDB in order to trigger Jenkins builds. */
+/**
+ * Represents a webhook sent from DeployDB in order to trigger Jenkins builds.
+ * <p/>
+ * Payload fields other than the ID and service name are kept in a flattened form: nested object keys are joined with
+ * an underscore, e.g. {@code artifact_sourceUrl}, and every value is stored as a string.
+ *
+ * @see TriggerWebhookParser
+ */
 public class TriggerWebhook {
 
+    private static final String[] EMPTY = new String[0];
+
     private EventType eventType;
     private long id;
     private String service;
+
+    /** Flattened keys of the other payload fields, in the order they appeared. */
+    private String[] keys = EMPTY;
+
+    /** String values of the other payload fields, at the same index as their key. */
+    private String[] values = EMPTY;
+
+    /** @deprecated Nested payload values, as persisted by previous versions; replaced by {@link #keys}/{@link #values}. */
+    @Deprecated
     private Map<String, Object> map;
 
-    private TriggerWebhook() {
-        this.map = new HashMap<String, Object>();
+    public TriggerWebhook(long id, String service, List<String> keys, List<String> values) {
+        this.id = id;
+        this.service = service;
+        this.keys = keys.toArray(EMPTY);
+        this.values = values.toArray(EMPTY);
     }
 
     public long getId() {
@@ -40,15 +65,47 @@ public class TriggerWebhook {
         return eventType != null;
     }
 
-    /** Allows Jackson to set hook key/values we're not explicitly interested in. */
-    @JsonAnySetter
-    public void setOtherValue(String name, Object value) {
-        map.put(name, value);
+    /** Sets the event type for this hook, as already determined from its MIME type. */
+    public void setEventType(EventType eventType) {
+        this.eventType = eventType;
+    }
+
+    /**
+     * @return An unmodifiable map of the payload fields we're not explicitly interested in, keyed by flattened name,
+     *         in the order they appeared in the payload.
+     */
+    public Map<String, String> getOtherValues() {
+        return new FlatMap(keys, values);
+    }
+
+    /** Migrates hooks persisted by previous versions, which stored other payload values as nested maps. */
+    protected Object readResolve() {
+        if (keys == null || values == null) {
+            List<String> flatKeys = new ArrayList<String>();
+            List<String> flatValues = new ArrayList<String>();
+            flatten(map, "", flatKeys, flatValues);
+            keys = flatKeys.toArray(EMPTY);
+            values = flatValues.toArray(EMPTY);
+        }
+        map = null;
+        return this;
     }
 
-    /** @return A map of the payload fields we're not explicitly interested in. */
-    public Map<String, Object> getOtherValues() {
-        return map;
+    @SuppressWarnings("unchecked")
+    private static void flatten(Map<String, Object> values, String prefix, List<String> flatKeys,
+                                List<String> flatValues) {
+        if (values == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                flatten((Map<String, Object>) value, prefix + entry.getKey() + "_", flatKeys, flatValues);
+            } else {
+                flatKeys.add(prefix + entry.getKey());
+                flatValues.add(String.valueOf(value));
+            }
+        }
     }
 
     @Override
@@ -56,4 +113,53 @@ public class TriggerWebhook {
         return String.format("Webhook{type=%s, id=%s, service=%s}", eventType, id, service);
     }
 
+    /** Read-only map view over parallel key and value arrays. */
+    private static final class FlatMap extends AbstractMap<String, String> {
+
+        private final String[] keys;
+        private final String[] values;
+
+        FlatMap(String[] keys, String[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            final int i = next++;
+                            return new SimpleImmutableEntry<String, String>(keys[i], values[i]);
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+        }
+
+    }
+
 }
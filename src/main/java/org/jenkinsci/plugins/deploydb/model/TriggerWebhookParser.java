@@ -0,0 +1,356 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.fasterxml.jackson.core.JsonToken.END_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
+
+/**
+ * Reads {@link TriggerWebhook} payloads directly from a stream of JSON tokens, enforcing limits on the payload size.
+ * <p/>
+ * The {@code id} and {@code service} fields are read directly, while all other fields are flattened as they are read:
+ * nested objects contribute their keys, joined with an underscore, and arrays are kept as a single string value.
+ * No intermediate tree of maps and lists is ever built, and reading stops as soon as any limit is exceeded.
+ * <p/>
+ * Instances are immutable and thread-safe.
+ */
+public final class TriggerWebhookParser {
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_DEPTH = 16;
+    public static final int DEFAULT_MAX_FIELDS = 1000;
+
+    private final long maxBytes;
+    private final int maxDepth;
+    private final int maxFields;
+
+    /** Creates a parser with the default limits. */
+    public TriggerWebhookParser() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_DEPTH, DEFAULT_MAX_FIELDS);
+    }
+
+    /**
+     * @param maxBytes Maximum size of a payload, in bytes.
+     * @param maxDepth Maximum nesting depth of objects and arrays, where the top-level object has a depth of one.
+     * @param maxFields Maximum number of object fields and array elements, at any depth.
+     */
+    public TriggerWebhookParser(long maxBytes, int maxDepth, int maxFields) {
+        this.maxBytes = maxBytes;
+        this.maxDepth = maxDepth;
+        this.maxFields = maxFields;
+    }
+
+    /**
+     * Reads a webhook payload from the given stream, which is not closed.
+     *
+     * @return The webhook, without its event type having been set.
+     * @throws PayloadTooLargeException If the payload exceeds any of the configured limits.
+     * @throws JsonParseException If the payload is not a well-formed JSON object, or has invalid {@code id} or
+     *         {@code service} values.
+     * @throws IOException If reading from the stream failed.
+     */
+    public TriggerWebhook parse(InputStream in) throws IOException {
+        JsonParser parser = Json.FACTORY.createParser(new LimitedInputStream(in, maxBytes));
+        try {
+            return new State(parser).readHook();
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Reads a batch of webhooks from the given stream, which is not closed.
+     * <p/>
+     * The batch is either a JSON array, or a sequence of JSON values such as newline-delimited JSON. Each value is an
+     * envelope containing an event payload, along with the MIME type of the event, in the form
+     * {@code {"type": "<MIME type>", "event": {...}}}; any other envelope fields are ignored. Events are read one at a
+     * time, and each is subject to the configured limits, as well as the whole batch being subject to its own limits.
+     * <p/>
+     * An event which exceeds the configured limits, or has invalid {@code id} or {@code service} values, is skipped and
+     * returned with an error, without affecting the other events in the batch.
+     *
+     * @param maxEvents Maximum number of events in the batch.
+     * @param maxBatchBytes Maximum size of the whole batch, in bytes.
+     * @return The envelopes in the batch, in order.
+     * @throws PayloadTooLargeException If the batch exceeds the given limits.
+     * @throws JsonParseException If the batch is not well-formed.
+     * @throws IOException If reading from the stream failed.
+     */
+    public List<Envelope> parseBatch(InputStream in, int maxEvents, long maxBatchBytes) throws IOException {
+        JsonParser parser = Json.FACTORY.createParser(new LimitedInputStream(in, maxBatchBytes));
+        try {
+            final List<Envelope> envelopes = new ArrayList<Envelope>();
+            final boolean array = parser.nextToken() == START_ARRAY;
+            for (JsonToken token = array ? parser.nextToken() : parser.getCurrentToken();
+                 token != null && !(array && token == END_ARRAY); token = parser.nextToken()) {
+                if (envelopes.size() == maxEvents) {
+                    throw new PayloadTooLargeException(String.format("Batch has more than %d events.", maxEvents));
+                }
+                envelopes.add(readEnvelope(parser));
+            }
+            if (array && parser.nextToken() != null) {
+                throw new JsonParseException("Unexpected content after the batch.", parser.getCurrentLocation());
+            }
+            return envelopes;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /** Reads the envelope at the current token, up to and including its closing token. */
+    private Envelope readEnvelope(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != START_OBJECT) {
+            throw new JsonParseException("Expected a JSON object.", parser.getCurrentLocation());
+        }
+        final JsonStreamContext envelope = parser.getParsingContext();
+        String type = null;
+        TriggerWebhook hook = null;
+        String error = null;
+        boolean tooLarge = false;
+        while (parser.nextToken() == FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("type".equals(name) && token == VALUE_STRING) {
+                type = parser.getText();
+            } else if ("event".equals(name) && token == START_OBJECT) {
+                // The batch as a whole is limited by the stream, so the size of each event is checked once it's read
+                final long start = parser.getTokenLocation().getByteOffset();
+                try {
+                    hook = new State(parser).readCurrentHook();
+                    if (parser.getCurrentLocation().getByteOffset() - start > maxBytes) {
+                        throw new EventTooLargeException(String.format("Event is larger than %d bytes.", maxBytes));
+                    }
+                } catch (EventTooLargeException e) {
+                    hook = null;
+                    error = e.getMessage();
+                    tooLarge = true;
+                    skipToEnvelope(parser, envelope);
+                } catch (InvalidEventException e) {
+                    hook = null;
+                    error = e.getOriginalMessage();
+                    skipToEnvelope(parser, envelope);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new Envelope(type, hook, error, tooLarge);
+    }
+
+    /** Skips the rest of a rejected event, up to and including its closing token, within the given envelope. */
+    private static void skipToEnvelope(JsonParser parser, JsonStreamContext envelope) throws IOException {
+        while (parser.getParsingContext() != envelope) {
+            if (parser.nextToken() == null) {
+                throw new JsonParseException("Unexpected end of the batch.", parser.getCurrentLocation());
+            }
+        }
+    }
+
+    /** An event read from a batch, along with the MIME type naming its event type. */
+    public static final class Envelope {
+
+        private final String type;
+        private final TriggerWebhook hook;
+        private final String error;
+        private final boolean tooLarge;
+
+        Envelope(String type, TriggerWebhook hook, String error, boolean tooLarge) {
+            this.type = type;
+            this.hook = hook;
+            this.error = error;
+            this.tooLarge = tooLarge;
+        }
+
+        /** @return The MIME type of the event, or {@code null} if none was given. */
+        @CheckForNull
+        public String getType() {
+            return type;
+        }
+
+        /** @return The event, without its event type having been set; or {@code null} if none was given or read. */
+        @CheckForNull
+        public TriggerWebhook getHook() {
+            return hook;
+        }
+
+        /** @return Why the event could not be read, or {@code null} if it was read, or none was given. */
+        @CheckForNull
+        public String getError() {
+            return error;
+        }
+
+        /** @return Whether the event could not be read as it exceeds the configured limits. */
+        public boolean isTooLarge() {
+            return tooLarge;
+        }
+
+    }
+
+    /** Thrown when a payload, rather than the batch containing it, exceeds the limits on its size or complexity. */
+    private static final class EventTooLargeException extends PayloadTooLargeException {
+
+        EventTooLargeException(String message) {
+            super(message);
+        }
+
+    }
+
+    /** Thrown when a payload is well-formed, but has invalid {@code id} or {@code service} values. */
+    private static final class InvalidEventException extends JsonParseException {
+
+        InvalidEventException(String message, JsonLocation location) {
+            super(message, location);
+        }
+
+    }
+
+    /** State for a single payload being parsed. */
+    private final class State {
+
+        private final JsonParser parser;
+        private final List<String> keys = new ArrayList<String>();
+        private final List<String> values = new ArrayList<String>();
+        private int fields;
+        private long id;
+        private String service;
+
+        State(JsonParser parser) {
+            this.parser = parser;
+        }
+
+        TriggerWebhook readHook() throws IOException {
+            if (parser.nextToken() != START_OBJECT) {
+                throw new JsonParseException("Expected a JSON object.", parser.getCurrentLocation());
+            }
+            return readCurrentHook();
+        }
+
+        /** Reads the payload object at the current token, up to and including its closing token. */
+        TriggerWebhook readCurrentHook() throws IOException {
+            readObject("", 1);
+            return new TriggerWebhook(id, service, keys, values);
+        }
+
+        /** Reads the fields of the current object, up to and including its closing token. */
+        private void readObject(String prefix, int depth) throws IOException {
+            while (parser.nextToken() == FIELD_NAME) {
+                countField();
+                final String name = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if (depth == 1 && "id".equals(name)) {
+                    id = readId();
+                } else if (depth == 1 && "service".equals(name)) {
+                    service = readService();
+                } else if (token == START_OBJECT) {
+                    checkDepth(depth + 1);
+                    readObject(prefix + name + "_", depth + 1);
+                } else {
+                    StringBuilder value = new StringBuilder();
+                    appendValue(value, depth);
+                    keys.add(prefix + name);
+                    values.add(value.toString());
+                }
+            }
+        }
+
+        /**
+         * Appends the current value in the same form as the original map-based payload representation, i.e. arrays
+         * and objects are rendered like {@link java.util.List#toString} and {@link java.util.Map#toString}.
+         */
+        private void appendValue(StringBuilder out, int depth) throws IOException {
+            switch (parser.getCurrentToken()) {
+                case START_ARRAY:
+                    checkDepth(depth + 1);
+                    out.append('[');
+                    for (int i = 0; parser.nextToken() != END_ARRAY; i++) {
+                        countField();
+                        if (i > 0) {
+                            out.append(", ");
+                        }
+                        appendValue(out, depth + 1);
+                    }
+                    out.append(']');
+                    break;
+                case START_OBJECT:
+                    checkDepth(depth + 1);
+                    out.append('{');
+                    for (int i = 0; parser.nextToken() == FIELD_NAME; i++) {
+                        countField();
+                        if (i > 0) {
+                            out.append(", ");
+                        }
+                        out.append(parser.getCurrentName()).append('=');
+                        parser.nextToken();
+                        appendValue(out, depth + 1);
+                    }
+                    out.append('}');
+                    break;
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    out.append(parser.getNumberValue());
+                    break;
+                case VALUE_NULL:
+                    out.append("null");
+                    break;
+                default:
+                    out.append(parser.getText());
+            }
+        }
+
+        private long readId() throws IOException {
+            switch (parser.getCurrentToken()) {
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    return parser.getLongValue();
+                case VALUE_NULL:
+                    return 0;
+                case VALUE_STRING:
+                    try {
+                        return Long.parseLong(parser.getText().trim());
+                    } catch (NumberFormatException e) {
+                        // Fall through
+                    }
+                default:
+                    throw new InvalidEventException("Expected a numeric 'id' value.", parser.getCurrentLocation());
+            }
+        }
+
+        private String readService() throws IOException {
+            final JsonToken token = parser.getCurrentToken();
+            if (token == JsonToken.VALUE_NULL) {
+                return null;
+            }
+            if (!token.isScalarValue()) {
+                throw new InvalidEventException("Expected a string 'service' value.", parser.getCurrentLocation());
+            }
+            return parser.getText();
+        }
+
+        private void countField() throws PayloadTooLargeException {
+            if (++fields > maxFields) {
+                throw new EventTooLargeException(String.format("Payload has more than %d fields.", maxFields));
+            }
+        }
+
+        private void checkDepth(int depth) throws PayloadTooLargeException {
+            if (depth > maxDepth) {
+                throw new EventTooLargeException(String.format("Payload is nested deeper than %d levels.", maxDepth));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import javax.annotation.CheckForNull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Signs and verifies webhook payloads with HMAC-SHA256, using a secret shared with DeployDB.
+ * <p/>
+ * Payloads are signed as they are read, so that they are verified in the same pass in which they are parsed. Setting up
+ * a {@link Mac} with a key is relatively expensive, so each thread keeps one, which is reused for every payload.
+ */
+public final class WebhookSignature {
+
+    /** HTTP header containing the signature of a webhook payload, e.g. {@code sha256=} followed by 64 hex digits. */
+    public static final String HEADER = "X-DeployDB-Signature";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String PREFIX = "sha256=";
+    private static final int SIGNATURE_BYTES = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The secret from which the key was made. */
+    private final String secret;
+
+    private final SecretKeySpec key;
+
+    /** A {@link Mac} for each thread, initialised with the key. */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                // Every Java platform is required to support HmacSHA256
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** @param secret Non-empty secret shared with DeployDB. */
+    public WebhookSignature(String secret) {
+        this.secret = secret;
+        this.key = new SecretKeySpec(secret.getBytes(UTF_8), ALGORITHM);
+    }
+
+    /** @return Whether this signs and verifies payloads with the given secret. */
+    public boolean isFor(String secret) {
+        return this.secret.equals(secret);
+    }
+
+    /**
+     * @param in Stream from which to read a payload.
+     * @return A stream which signs the payload as it is read. It must only be read by the calling thread, and only until
+     *         another payload is signed by the same thread.
+     */
+    public SigningInputStream sign(InputStream in) {
+        final Mac mac = macs.get();
+        mac.reset();
+        return new SigningInputStream(in, mac);
+    }
+
+    /** @return The value of the {@link #HEADER} for the given payload. */
+    public String sign(byte[] payload) {
+        final Mac mac = macs.get();
+        mac.reset();
+        final byte[] signature = mac.doFinal(payload);
+        final StringBuilder header = new StringBuilder(PREFIX.length() + SIGNATURE_BYTES * 2).append(PREFIX);
+        for (byte b : signature) {
+            header.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return header.toString();
+    }
+
+    /**
+     * @param header Value of the {@link #HEADER} of an incoming webhook, if any.
+     * @return The signature given in the header, or {@code null} if there is no well-formed signature.
+     */
+    @CheckForNull
+    public static byte[] parse(@CheckForNull String header) {
+        if (header == null) {
+            return null;
+        }
+        final String value = header.trim();
+        if (value.length() != PREFIX.length() + SIGNATURE_BYTES * 2 || !value.regionMatches(true, 0, PREFIX, 0,
+                PREFIX.length())) {
+            return null;
+        }
+
+        final byte[] signature = new byte[SIGNATURE_BYTES];
+        for (int i = 0; i < SIGNATURE_BYTES; i++) {
+            final int high = Character.digit(value.charAt(PREFIX.length() + i * 2), 16);
+            final int low = Character.digit(value.charAt(PREFIX.length() + i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            signature[i] = (byte) (high << 4 | low);
+        }
+        return signature;
+    }
+
+    /** Stream which passes everything read from it through a {@link Mac}. */
+    public static final class SigningInputStream extends FilterInputStream {
+
+        private final Mac mac;
+        private long count;
+
+        SigningInputStream(InputStream in, Mac mac) {
+            super(in);
+            this.mac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mac.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                mac.update(b, off, n);
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still need to be signed
+            final int skipped = read(new byte[(int) Math.min(n, 512)]);
+            return Math.max(skipped, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads the rest of the payload, e.g. any whitespace after a JSON object, and checks its signature.
+         *
+         * @param signature Signature which the payload should have.
+         * @param maxBytes Maximum size of the whole payload; larger payloads are not read to the end.
+         * @return {@code true} if the payload was no larger than the given size, and has the given signature.
+         * @throws IOException If reading from the stream failed.
+         */
+        public boolean verify(byte[] signature, long maxBytes) throws IOException {
+            final byte[] buffer = new byte[256];
+            while (count <= maxBytes && read(buffer) != -1) {
+                // Keep reading
+            }
+            // Compare in constant time, so as not to reveal how much of a forged signature is correct
+            return count <= maxBytes && MessageDigest.isEqual(mac.doFinal(), signature);
+        }
+
+    }
+
+}
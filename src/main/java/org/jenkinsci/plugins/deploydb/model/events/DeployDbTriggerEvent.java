@@ -1,8 +1,8 @@
 package org.jenkinsci.plugins.deploydb.model.events;
 
 import hudson.model.AbstractDescribableImpl;
-import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.deploydb.Messages;
@@ -24,8 +24,14 @@ public abstract class DeployDbTriggerEvent extends AbstractDescribableImpl<Deplo
 
     private static final Logger LOGGER = Logger.getLogger(DeployDbTriggerEvent.class.getName());
 
+    /** Placeholder for a service name regex which is either empty, or which does not compile. */
+    private static final Pattern NO_PATTERN = Pattern.compile("(?!)");
+
     private String serviceNameRegex;
 
+    /** Compiled form of {@link #serviceNameRegex}; {@code null} until first used after deserialisation. */
+    private transient volatile Pattern serviceNamePattern;
+
     public String getServiceNameRegex() {
         return serviceNameRegex;
     }
@@ -33,10 +39,40 @@ public abstract class DeployDbTriggerEvent extends AbstractDescribableImpl<Deplo
     @DataBoundSetter
     public void setServiceNameRegex(String serviceNameRegex) {
         this.serviceNameRegex = serviceNameRegex;
+        this.serviceNamePattern = compileServiceNameRegex();
+    }
+
+    /** @return The compiled service name regex, or {@code null} if the configured value is empty or invalid. */
+    public Pattern getServiceNamePattern() {
+        Pattern pattern = serviceNamePattern;
+        if (pattern == null) {
+            pattern = serviceNamePattern = compileServiceNameRegex();
+        }
+        return pattern == NO_PATTERN ? null : pattern;
+    }
+
+    /** Compiles the regex once the configuration has been loaded from disk, so that any problems are logged once. */
+    protected Object readResolve() {
+        serviceNamePattern = compileServiceNameRegex();
+        return this;
+    }
+
+    private Pattern compileServiceNameRegex() {
+        if (fixEmpty(serviceNameRegex) == null) {
+            return NO_PATTERN;
+        }
+
+        try {
+            return Pattern.compile(serviceNameRegex);
+        } catch (PatternSyntaxException e) {
+            LOGGER.warning(String.format("%s trigger has been configured with an invalid regular expression '%s'; " +
+                    "it will never match.", getClass().getSimpleName(), serviceNameRegex));
+            return NO_PATTERN;
+        }
     }
 
     /** @return {@code true} if the given webhook matches the criteria configured for this instance. */
-    public boolean accepts(AbstractProject<?, ?> job, TriggerWebhook hook) {
+    public boolean accepts(Job<?, ?> job, TriggerWebhook hook) {
         // If no regex has been configured, the hook can't match
         if (fixEmpty(serviceNameRegex) == null) {
             LOGGER.info(String.format("Job '%s' %s trigger will never match, as no regex has been configured.",
@@ -44,13 +80,9 @@ public abstract class DeployDbTriggerEvent extends AbstractDescribableImpl<Deplo
             return false;
         }
 
-        // If the regex is invalid, the hook can't match
-        try {
-            Pattern.compile(serviceNameRegex);
-        } catch (PatternSyntaxException e) {
-            LOGGER.warning(
-                    String.format("Job '%s' %s trigger has been configured with an invalid regular expression '%s'.",
-                            job.getDisplayName(), getClass().getSimpleName(), serviceNameRegex));
+        // If the regex is invalid, the hook can't match; this was already logged when the regex was loaded
+        final Pattern pattern = getServiceNamePattern();
+        if (pattern == null) {
             return false;
         }
 
@@ -66,7 +98,7 @@ public abstract class DeployDbTriggerEvent extends AbstractDescribableImpl<Deplo
         }
 
         // Check whether the hook's service name matches exactly, or matches the configured regular expression
-        return service.equalsIgnoreCase(serviceNameRegex) || service.matches(serviceNameRegex);
+        return service.equalsIgnoreCase(serviceNameRegex) || pattern.matcher(service).matches();
     }
 
     /** @return The enum value corresponding to the event type the subclass represents. */
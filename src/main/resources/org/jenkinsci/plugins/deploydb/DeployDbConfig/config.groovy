@@ -8,4 +8,94 @@ f.section(title:_("DeployDB")) {
         f.textbox()
     }
 
+    f.entry(field: 'webhookSecret', title:_("Webhook secret")) {
+        f.password()
+    }
+
+    def hosts = instance?.reportDeliveryHosts
+    if (hosts) {
+        f.entry(title:_("Report delivery status")) {
+            table(class: 'pane sortable bigtable') {
+                tr {
+                    th(_("Host"))
+                    th(_("State"))
+                    th(_("Concurrency limit"))
+                    th(_("In flight"))
+                    th(_("Consecutive failures"))
+                    th(_("Error rate (%)"))
+                    th(_("Latency (ms)"))
+                }
+                hosts.each { host ->
+                    tr {
+                        td(host.name)
+                        td(host.state)
+                        td(host.limit)
+                        td(host.inFlight)
+                        td(host.consecutiveFailures)
+                        td(host.errorPercentage)
+                        td(host.latencyMillis)
+                    }
+                }
+            }
+        }
+    }
+
+    f.advanced {
+        f.entry(field: 'asyncTriggers', title:_("Process webhooks asynchronously")) {
+            f.checkbox()
+        }
+
+        f.entry(field: 'triggerQueueCapacity', title:_("Webhook queue capacity")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'triggerWorkers', title:_("Webhook processing threads")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'parallelMatchThreshold', title:_("Parallel trigger evaluation threshold")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'maxBatchEvents', title:_("Maximum events per webhook batch")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'maxBatchBytes', title:_("Maximum webhook batch size (bytes)")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'reportQueueCapacity', title:_("Report queue capacity")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'reportWorkers', title:_("Report delivery threads")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'reportBatchPath', title:_("Report batch endpoint path")) {
+            f.textbox()
+        }
+
+        f.entry(field: 'reportBatchSize', title:_("Maximum reports per batch")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'reportBatchLinger', title:_("Batch linger time (milliseconds)")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'maxPayloadBytes', title:_("Maximum webhook payload size (bytes)")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'maxPayloadDepth', title:_("Maximum webhook payload nesting depth")) {
+            f.number(clazz: 'positive-number')
+        }
+
+        f.entry(field: 'maxPayloadFields', title:_("Maximum webhook payload fields")) {
+            f.number(clazz: 'positive-number')
+        }
+    }
+
 }
@@ -9,4 +9,14 @@ f.entry(field: 'silentMode', title: _('Silent mode')) {
 f.entry(title: _("Event types")) {
     f.hetero_list(descriptors: descriptor.eventDescriptors, items: instance?.triggerEventTypes,
                   name: 'triggerEventTypes', hasHeader: true)
+}
+
+f.advanced {
+    f.entry(field: 'quietPeriod', title: _('Quiet period (seconds)')) {
+        f.number(clazz: 'non-negative-number', default: 0)
+    }
+
+    f.entry(field: 'maxBuildsPerHour', title: _('Maximum builds per hour, per service')) {
+        f.number(clazz: 'non-negative-number', default: 0)
+    }
 }
\ No newline at end of file
@@ -1,11 +1,8 @@
 package org.jenkinsci.plugins.deploydb;
 
-import com.github.lookout.whoas.AbstractHookQueue;
-import com.github.lookout.whoas.AbstractHookRunner;
-import com.github.lookout.whoas.HookRequest;
-import com.github.lookout.whoas.WhoasFactory;
 import hudson.model.AbstractBuild;
 import hudson.model.Cause;
+import hudson.model.CauseAction;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
@@ -13,8 +10,9 @@ import hudson.model.listeners.RunListener;
 import jenkins.model.GlobalConfiguration;
 import org.jenkinsci.plugins.deploydb.model.ReportWebhook;
 import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
-import org.junit.After;
-import org.junit.Before;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -22,14 +20,10 @@ import org.jvnet.hudson.test.MockBuilder;
 import org.mockito.ArgumentCaptor;
 
 import java.util.concurrent.Future;
-import java.util.logging.Handler;
-import java.util.logging.Level;
-import java.util.logging.LogRecord;
 
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.startsWith;
-import static org.jenkinsci.plugins.deploydb.BuildCompletionListener.MAX_DELIVERY_ATTEMPTS;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -50,49 +44,68 @@ public class BuildCompletionListenerTest {
 
     @Rule public final JenkinsRule jenkins = new JenkinsRule();
 
-    private Handler logHandler;
-    private ArgumentCaptor<LogRecord> logCaptor;
-
-    @Before public void setUp() {
-        // Hook into the logger, so we can assert on logging events
-        logHandler = mock(Handler.class);
-        logCaptor = ArgumentCaptor.forClass(LogRecord.class);
-        BuildCompletionListener.LOGGER.addHandler(logHandler);
-    }
-
-    @After public void tearDown() {
-        BuildCompletionListener.LOGGER.removeHandler(logHandler);
-    }
-
     @Test public void regularBuildShouldNotSendReportWebhook() throws Exception {
         // Given that the DeployDB plugin has been configured
-        final AbstractHookQueue webhookQueue = createWebhookQueue();
-        setUpBuildCompletionListener(webhookQueue);
+        final ReportPublisher publisher = createPublisher();
+        setUpBuildCompletionListener(publisher);
 
         // When a build is executed, which was not triggered by DeployDB
         FreeStyleProject job = jenkins.createFreeStyleProject();
         jenkins.buildAndAssertSuccess(job);
 
         // Then no webhooks should have been sent
-        assertWebhookDeliveryAttempts(webhookQueue, 0);
+        assertWebhookDeliveryAttempts(publisher, 0);
     }
 
     @Test public void deployDbTriggeredBuildShouldSendReportWebhook() throws Exception {
         // Given that the DeployDB plugin has been configured
-        final AbstractHookQueue webhookQueue = createWebhookQueue();
-        setUpBuildCompletionListener(webhookQueue);
+        final ReportPublisher publisher = createPublisher();
+        setUpBuildCompletionListener(publisher);
 
         // When a build is executed, which was triggered by DeployDB
         triggerDeployDbBuildAndAssertSuccess();
 
         // Then a webhook should have been sent
-        assertWebhookDeliveryAttempts(webhookQueue, 1);
+        assertWebhookDeliveryAttempts(publisher, 1);
+    }
+
+    @Test public void deployDbTriggeredBuildShouldSendReportWebhookForEachMergedDeployment() throws Exception {
+        // Given that the DeployDB plugin has been configured
+        final ReportPublisher publisher = createPublisher();
+        setUpBuildCompletionListener(publisher);
+
+        // When a build is executed, into which the webhook of another deployment was merged while it was queued
+        FreeStyleProject job = jenkins.createFreeStyleProject(JOB_NAME);
+        DeployDbBuildAction action = createTriggerAction().withMergedDeployment(createTriggerAction(456));
+        jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0, new Cause.UserIdCause(), action));
+
+        // Then a webhook should have been sent for each deployment
+        ArgumentCaptor<ReportRequest> requests = ArgumentCaptor.forClass(ReportRequest.class);
+        verify(publisher, times(2)).publish(requests.capture());
+        assertThat(requests.getAllValues().get(0).getUrl(), endsWith("/api/deployments/123/promotions"));
+        assertThat(requests.getAllValues().get(1).getUrl(), endsWith("/api/deployments/456/promotions"));
+    }
+
+    @Test public void deployDbTriggeredPipelineBuildShouldSendReportWebhook() throws Exception {
+        // Given that the DeployDB plugin has been configured
+        final ReportPublisher publisher = createPublisher();
+        setUpBuildCompletionListener(publisher);
+
+        // When a build of a Pipeline job is executed, which was triggered by DeployDB
+        WorkflowJob job = jenkins.getInstance().createProject(WorkflowJob.class, JOB_NAME);
+        job.setDefinition(new CpsFlowDefinition("echo 'Deploying'"));
+        Future<WorkflowRun> build = job.scheduleBuild2(0, new CauseAction(new Cause.UserIdCause()),
+                createTriggerAction());
+        jenkins.assertBuildStatusSuccess(build);
+
+        // Then a webhook should have been sent
+        assertWebhookDeliveryAttempts(publisher, 1);
     }
 
     @Test public void deployDbTriggeredBuildWithSilentModeShouldNotSendReportWebhook() throws Exception {
         // Given that the DeployDB plugin has been configured
-        final AbstractHookQueue webhookQueue = createWebhookQueue();
-        setUpBuildCompletionListener(webhookQueue);
+        final ReportPublisher publisher = createPublisher();
+        setUpBuildCompletionListener(publisher);
 
         // And there is a job configured with silent mode enabled
         FreeStyleProject job = jenkins.createFreeStyleProject(JOB_NAME);
@@ -105,7 +118,7 @@ public class BuildCompletionListenerTest {
         jenkins.assertBuildStatusSuccess(build);
 
         // Then a webhook should not have been sent
-        assertWebhookDeliveryAttempts(webhookQueue, 0);
+        assertWebhookDeliveryAttempts(publisher, 0);
     }
 
     @Test public void successfulDeployDbTriggeredBuildShouldReportSuccess() throws Exception {
@@ -157,42 +170,14 @@ public class BuildCompletionListenerTest {
 
     private void assertWebhookNotSentForInvalidBaseUrl(String invalidBaseUrl) throws Exception {
         // Given that the DeployDB plugin has been configured with some sort of invalid base URL
-        final AbstractHookQueue webhookQueue = createWebhookQueue();
-        setUpBuildCompletionListener(webhookQueue, invalidBaseUrl);
+        final ReportPublisher publisher = createPublisher();
+        setUpBuildCompletionListener(publisher, invalidBaseUrl);
 
         // When a build is executed, which was triggered by DeployDB
         triggerDeployDbBuildAndAssertSuccess();
 
         // Then no webhooks should have been sent
-        assertWebhookDeliveryAttempts(webhookQueue, 0);
-    }
-
-    @Test public void deployDbTriggeredBuildShouldRetrySendingWebhook() throws Exception {
-        // Given that the DeployDB plugin has been configured with a queue that sometimes fails to accept messages
-        final AbstractHookQueue webhookQueue = createWebhookQueue(false, true, true);
-        setUpBuildCompletionListener(webhookQueue);
-
-        // When a build is executed, which was triggered by DeployDB
-        triggerDeployDbBuildAndAssertSuccess();
-
-        // Then we should have attempted multiple times until the hook was queued
-        assertWebhookDeliveryAttempts(webhookQueue, 2);
-    }
-
-    @Test public void deployDbTriggeredBuildShouldEventuallyGiveUpSendingWebhook() throws Exception {
-        // Given that the DeployDB plugin has been configured with a queue that always fails to accept messages
-        final AbstractHookQueue webhookQueue = createWebhookQueue(false, false, false, false);
-        setUpBuildCompletionListener(webhookQueue);
-
-        // When a build is executed, which was triggered by DeployDB
-        triggerDeployDbBuildAndAssertSuccess();
-
-        // Then we should have attempted several times to deliver, but no more than the limit
-        assertWebhookDeliveryAttempts(webhookQueue, MAX_DELIVERY_ATTEMPTS);
-
-        // And a warning should have been written to the log
-        verify(logHandler).publish(logCaptor.capture());
-        assertThat(logCaptor.getValue().getLevel(), is(Level.WARNING));
+        assertWebhookDeliveryAttempts(publisher, 0);
     }
 
     // Helper methods
@@ -220,68 +205,41 @@ public class BuildCompletionListenerTest {
         return jenkins.assertBuildStatus(result, build.get());
     }
 
-    /** Verifies that there were the given number of attempts to push a webhook into the queue. */
-    private static void assertWebhookDeliveryAttempts(AbstractHookQueue queue, int expectedDeliveryAttempts) {
-        verify(queue, times(expectedDeliveryAttempts)).push(any(HookRequest.class));
+    /** Verifies that the given number of webhooks were handed to the publisher. */
+    private static void assertWebhookDeliveryAttempts(ReportPublisher publisher, int expectedDeliveryAttempts) {
+        verify(publisher, times(expectedDeliveryAttempts)).publish(any(ReportRequest.class));
     }
 
     /** @return A build action containing a trigger webhook which has a fixed deployment ID. */
     private static DeployDbBuildAction createTriggerAction() {
-        TriggerWebhook hook = mock(TriggerWebhook.class);
-        when(hook.getId()).thenReturn(HOOK_DEPLOYMENT_ID);
-        return new DeployDbBuildAction(hook);
+        return createTriggerAction(HOOK_DEPLOYMENT_ID);
     }
 
-    /** @return A mock webhook queue which always accepts hooks added to it. */
-    private static AbstractHookQueue createWebhookQueue() {
-        return createWebhookQueue(true);
+    /** @return A build action containing a trigger webhook which has the given deployment ID. */
+    private static DeployDbBuildAction createTriggerAction(long deploymentId) {
+        TriggerWebhook hook = mock(TriggerWebhook.class);
+        when(hook.getId()).thenReturn(deploymentId);
+        return new DeployDbBuildAction(hook);
     }
 
-    /**
-     * @param initialResponse Whether the initial attempt to add to the queue should succeed.
-     * @param furtherResponses Whether subsequent attempts should succeed.
-     * @return A mock webhook queue which accepts hooks as configured.
-     */
-    private static AbstractHookQueue createWebhookQueue(boolean initialResponse, Boolean... furtherResponses) {
-        AbstractHookQueue queue = mock(AbstractHookQueue.class);
-        when(queue.push(any(HookRequest.class))).thenReturn(initialResponse, furtherResponses);
-        return queue;
+    /** @return A mock report publisher, which records the hooks published to it. */
+    private static ReportPublisher createPublisher() {
+        return mock(ReportPublisher.class);
     }
 
-    private static BuildCompletionListener setUpBuildCompletionListener(AbstractHookQueue webhookQueue) {
-        return setUpBuildCompletionListener(webhookQueue, REPORTING_BASE_URL);
+    private static BuildCompletionListener setUpBuildCompletionListener(ReportPublisher publisher) {
+        return setUpBuildCompletionListener(publisher, REPORTING_BASE_URL);
     }
 
-    private static BuildCompletionListener setUpBuildCompletionListener(AbstractHookQueue webhookQueue, String baseUrl) {
+    private static BuildCompletionListener setUpBuildCompletionListener(ReportPublisher publisher, String baseUrl) {
         // Ensure that a base URL has been configured so hooks can be delivered
         DeployDbConfig ddbConfig = GlobalConfiguration.all().get(DeployDbConfig.class);
         ddbConfig.setBaseUrl(baseUrl);
 
-        // Set up the listener with an observable webhook queue
+        // Set up the listener with an observable publisher
         BuildCompletionListener listener = RunListener.all().get(BuildCompletionListener.class);
-        listener.setWhoasFactory(new NoopWhoasFactory(webhookQueue));
+        listener.setPublisher(publisher);
         return listener;
     }
 
-    /** WhoasFactory which won't deliver any webhooks pushed to its queue. */
-    private static final class NoopWhoasFactory extends WhoasFactory {
-
-        private AbstractHookQueue queue;
-
-        private NoopWhoasFactory(AbstractHookQueue queue) {
-            this.queue = queue;
-        }
-
-        @Override
-        public AbstractHookQueue buildQueue() {
-            return queue;
-        }
-
-        @Override
-        public AbstractHookRunner buildRunner(AbstractHookQueue hookQueue) {
-            return mock(AbstractHookRunner.class);
-        }
-
-    }
-
 }
\ No newline at end of file
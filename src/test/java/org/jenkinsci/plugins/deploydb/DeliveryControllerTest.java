@@ -0,0 +1,215 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.jenkinsci.plugins.deploydb.DeliveryController.FAILURE_THRESHOLD;
+import static org.jenkinsci.plugins.deploydb.DeliveryController.OPEN_MILLIS;
+import static org.junit.Assert.assertThat;
+
+public class DeliveryControllerTest {
+
+    private static final String URL = "http://ddb.example.com:8080/api/deployments/1/promotions";
+
+    private static final int MAX_LIMIT = 8;
+
+    private FakeTicker ticker;
+    private DeliveryController controller;
+    private DeliveryController.Host host;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        controller = new DeliveryController(ticker);
+        host = controller.getHost(URL);
+    }
+
+    @Test public void urlsForTheSameHostShouldShareState() {
+        // Given a URL on the same host and port as another
+        String otherUrl = "http://ddb.example.com:8080/api/deployments/2/promotions";
+
+        // When its state is looked up
+        DeliveryController.Host other = controller.getHost(otherUrl);
+
+        // Then it should be the same as the other URL's
+        assertThat(other, is(host));
+        assertThat(host.getName(), is("ddb.example.com:8080"));
+        assertThat(controller.getHosts(), contains(host));
+    }
+
+    @Test public void concurrencyShouldInitiallyBeLimitedToTheMaximum() {
+        // Given a host which has not been delivered to before
+        // When as many deliveries as possible are acquired
+        int acquired = acquireAll();
+
+        // Then the maximum should be allowed
+        assertThat(acquired, is(MAX_LIMIT));
+        assertThat(host.getInFlight(), is(MAX_LIMIT));
+    }
+
+    @Test public void failureShouldHalveConcurrencyLimit() {
+        // Given a host at full concurrency
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+
+        // When a delivery fails
+        host.release(false, 0);
+
+        // Then the limit should be halved
+        assertThat(host.getLimit(), is(MAX_LIMIT / 2));
+        assertThat(acquireAll(), is(MAX_LIMIT / 2));
+    }
+
+    @Test public void successesShouldIncreaseConcurrencyLimitGradually() {
+        // Given a host whose limit has dropped to one, after repeated failures
+        for (int i = 0; i < 3; i++) {
+            deliver(false);
+        }
+        assertThat(host.getLimit(), is(1));
+
+        // When deliveries succeed
+        deliver(true);
+        deliver(true);
+
+        // Then the limit should increase by about one for each limit's worth of successes
+        assertThat(host.getLimit(), is(2));
+        deliver(true);
+        assertThat(host.getLimit(), is(2));
+        deliver(true);
+        assertThat(host.getLimit(), is(3));
+    }
+
+    @Test public void concurrencyLimitShouldNotExceedMaximum() {
+        // Given a host at full concurrency
+        // When many deliveries succeed
+        for (int i = 0; i < 100; i++) {
+            deliver(true);
+        }
+
+        // Then the limit should not exceed the maximum
+        assertThat(host.getLimit(), is(MAX_LIMIT));
+    }
+
+    @Test public void repeatedFailuresShouldOpenCircuit() {
+        // Given a host to which deliveries keep failing
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            deliver(false);
+        }
+        assertThat(host.getState(), is(DeliveryController.State.CLOSED));
+
+        // When the failure threshold is reached
+        deliver(false);
+
+        // Then the circuit should open, and no deliveries should be allowed
+        assertThat(host.getState(), is(DeliveryController.State.OPEN));
+        assertThat(host.getConsecutiveFailures(), is(FAILURE_THRESHOLD));
+        assertThat(host.tryAcquire(MAX_LIMIT), is(false));
+    }
+
+    @Test public void openCircuitShouldAllowSingleProbeOnceCooledOff() {
+        // Given the circuit has opened, and the cooling-off period has passed
+        openCircuit();
+        ticker.advance(OPEN_MILLIS);
+
+        // When deliveries are acquired
+        int acquired = acquireAll();
+
+        // Then only a single probe should be allowed
+        assertThat(acquired, is(1));
+        assertThat(host.getState(), is(DeliveryController.State.HALF_OPEN));
+    }
+
+    @Test public void successfulProbeShouldCloseCircuit() {
+        // Given the circuit is half-open, with a probe in flight
+        openCircuit();
+        ticker.advance(OPEN_MILLIS);
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+
+        // When the probe succeeds
+        host.release(true, 0);
+
+        // Then the circuit should close
+        assertThat(host.getState(), is(DeliveryController.State.CLOSED));
+        assertThat(host.getConsecutiveFailures(), is(0));
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+    }
+
+    @Test public void failedProbeShouldReopenCircuitForLonger() {
+        // Given the circuit is half-open, with a probe in flight
+        openCircuit();
+        ticker.advance(OPEN_MILLIS);
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+
+        // When the probe fails
+        host.release(false, 0);
+
+        // Then the circuit should open again, for twice as long
+        assertThat(host.getState(), is(DeliveryController.State.OPEN));
+        ticker.advance(OPEN_MILLIS);
+        assertThat(host.tryAcquire(MAX_LIMIT), is(false));
+        ticker.advance(OPEN_MILLIS);
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+    }
+
+    @Test public void rejectedReportsShouldNotCountAgainstHost() {
+        assertThat(DeliveryController.isHealthy(null), is(true));
+        assertThat(DeliveryController.isHealthy(new ReportRejectedException(400)), is(true));
+        assertThat(DeliveryController.isHealthy(new ReportRejectedException(503)), is(false));
+        assertThat(DeliveryController.isHealthy(new IOException("Connection refused")), is(false));
+    }
+
+    @Test public void latencyAndErrorRateShouldBeTracked() {
+        // Given a host which has not been delivered to before
+        // When a slow delivery fails
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+        host.release(false, TimeUnit.MILLISECONDS.toNanos(1000));
+
+        // Then the moving averages should move towards the new values
+        assertThat(host.getLatencyMillis(), is(200L));
+        assertThat(host.getErrorPercentage(), is(20));
+    }
+
+    // Helper methods
+
+    private int acquireAll() {
+        int acquired = 0;
+        while (host.tryAcquire(MAX_LIMIT)) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    private void deliver(boolean healthy) {
+        assertThat(host.tryAcquire(MAX_LIMIT), is(true));
+        host.release(healthy, 0);
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            deliver(false);
+        }
+        assertThat(host.getState(), is(DeliveryController.State.OPEN));
+    }
+
+    /** Ticker which only moves when told to. */
+    private static final class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+    }
+
+}
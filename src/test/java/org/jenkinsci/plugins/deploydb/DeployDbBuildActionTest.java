@@ -1,13 +1,28 @@
 package org.jenkinsci.plugins.deploydb;
 
 import hudson.EnvVars;
+import hudson.model.Action;
+import hudson.model.CauseAction;
+import hudson.util.XStream2;
+import org.jenkinsci.plugins.deploydb.model.EventType;
 import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.jenkinsci.plugins.deploydb.Util.getWebhook;
+import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_COMPLETED;
+import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_STARTED;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
 
 public class DeployDbBuildActionTest {
 
@@ -66,4 +81,153 @@ public class DeployDbBuildActionTest {
         assertThat(env.get("DDB_FOO_BAR_CHILD_NESTED_ITEM_LEAF"), is("true"));
     }
 
-}
\ No newline at end of file
+    @Test public void repeatedExportsShouldProduceTheSameEnvironment() throws Exception {
+        // Given a build action has been created from a JSON webhook payload
+        DeployDbBuildAction action = new DeployDbBuildAction(getWebhook("hook_trigger_nested.json"));
+
+        // When we generate the environment variables multiple times
+        final EnvVars first = new EnvVars();
+        action.buildEnvVars(null, first);
+        final EnvVars second = new EnvVars("EXISTING", "value");
+        action.buildEnvVars(null, second);
+
+        // Then the same variables should be exported each time, alongside any existing variables
+        assertThat(first.size(), is(6));
+        assertThat(second.size(), is(7));
+        assertThat(second.get("EXISTING"), is("value"));
+        assertThat(second.get("DDB_FOO_BAR_CHILD_NESTED_ITEM_LEAF"), is("true"));
+    }
+
+    @Test public void hookDetailsShouldBeKept() throws Exception {
+        // Given a build action has been created from a JSON webhook payload
+        TriggerWebhook hook = getWebhook("hook_trigger_deployment_started.json", DEPLOYMENT_STARTED);
+        DeployDbBuildAction action = new DeployDbBuildAction(hook);
+
+        // Then the details of the hook needed later should be available
+        assertThat(action.getEventType(), is(DEPLOYMENT_STARTED));
+        assertThat(action.getDeploymentId(), is(1L));
+        assertThat(action.getService(), is("faas"));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test public void hookShouldBeRebuiltFromKeptValues() throws Exception {
+        // Given a build action has been created from a JSON webhook payload
+        TriggerWebhook hook = getWebhook("hook_trigger_nested.json", DEPLOYMENT_STARTED);
+        DeployDbBuildAction action = new DeployDbBuildAction(hook);
+
+        // When the webhook is requested
+        TriggerWebhook rebuilt = action.getHook();
+
+        // Then it should have the details of the original hook
+        assertThat(rebuilt.getEventType(), is(DEPLOYMENT_STARTED));
+        assertThat(rebuilt.getId(), is(1L));
+        assertThat(rebuilt.getService(), is("faas"));
+
+        // And the other values, keyed by their environment variable names
+        assertThat(rebuilt.getOtherValues().size(), is(4));
+        assertThat(rebuilt.getOtherValues().get("DDB_FOO_BAR_CHILD_NESTED_ITEM_LEAF"), is("true"));
+    }
+
+    @Test public void actionPersistedByPreviousVersionShouldBeMigrated() {
+        // Given an action as persisted by a previous version, containing the full webhook
+        String xml = "<org.jenkinsci.plugins.deploydb.DeployDbBuildAction><hook>"
+                + "<eventType>DEPLOYMENT_STARTED</eventType><id>1</id><service>faas</service>"
+                + "<map><entry><string>artifact</string><linked-hash-map>"
+                + "<entry><string>sourceUrl</string><string>http://example.com/</string></entry>"
+                + "</linked-hash-map></entry></map>"
+                + "</hook></org.jenkinsci.plugins.deploydb.DeployDbBuildAction>";
+
+        // When it is loaded
+        DeployDbBuildAction action = (DeployDbBuildAction) new XStream2().fromXML(xml);
+
+        // Then the hook details should have been kept
+        assertThat(action.getEventType(), is(DEPLOYMENT_STARTED));
+        assertThat(action.getDeploymentId(), is(1L));
+
+        // And the same environment should be exported as before
+        final EnvVars env = new EnvVars();
+        action.buildEnvVars(null, env);
+        assertThat(env.size(), is(3));
+        assertThat(env.get("DDB_EVENT_ID"), is("1"));
+        assertThat(env.get("DDB_SERVICE"), is("faas"));
+        assertThat(env.get("DDB_ARTIFACT_SOURCE_URL"), is("http://example.com/"));
+
+        // And the webhook should no longer be persisted
+        assertThat(new XStream2().toXML(action), not(containsString("<hook>")));
+    }
+
+    @Test public void loadedActionsShouldShareEnvironmentVariableNames() throws Exception {
+        // Given an action has been persisted
+        TriggerWebhook hook = getWebhook("hook_trigger_deployment_started.json");
+        String xml = new XStream2().toXML(new DeployDbBuildAction(hook));
+
+        // When it is loaded multiple times
+        DeployDbBuildAction first = (DeployDbBuildAction) new XStream2().fromXML(xml);
+        DeployDbBuildAction second = (DeployDbBuildAction) new XStream2().fromXML(xml);
+
+        // Then each environment variable name should be the same instance
+        EnvVars firstEnv = new EnvVars();
+        first.buildEnvVars(null, firstEnv);
+        EnvVars secondEnv = new EnvVars();
+        second.buildEnvVars(null, secondEnv);
+        Iterator<String> secondKeys = secondEnv.keySet().iterator();
+        for (String key : firstEnv.keySet()) {
+            assertThat(secondKeys.next(), is(sameInstance(key)));
+        }
+    }
+
+    @Test public void buildForTheSameEventShouldBeMergedInQueue() {
+        // Given a build has been queued for a DeployDB event
+        DeployDbBuildAction queued = createAction(DEPLOYMENT_STARTED, 1);
+
+        // When another build is scheduled for the same event
+        DeployDbBuildAction duplicate = createAction(DEPLOYMENT_STARTED, 1);
+
+        // Then it should be merged with the queued build
+        assertThat(queued.shouldSchedule(Arrays.<Action>asList(new CauseAction(new DeployDbCause()), duplicate)), is(false));
+    }
+
+    @Test public void buildsForOtherEventsShouldBeScheduledSeparately() {
+        // Given a build has been queued for a DeployDB event
+        DeployDbBuildAction queued = createAction(DEPLOYMENT_STARTED, 1);
+
+        // When builds are scheduled for other deployments, other event types, or not by DeployDB
+        // Then each should be scheduled separately
+        assertThat(queued.shouldSchedule(Arrays.<Action>asList(createAction(DEPLOYMENT_STARTED, 2))), is(true));
+        assertThat(queued.shouldSchedule(Arrays.<Action>asList(createAction(DEPLOYMENT_COMPLETED, 1))), is(true));
+        assertThat(queued.shouldSchedule(Collections.<Action>emptyList()), is(true));
+    }
+
+    @Test public void buildsForEventsWithoutIdShouldBeScheduledSeparately() {
+        // Given a build has been queued for a DeployDB event which has no ID
+        DeployDbBuildAction queued = createAction(DEPLOYMENT_STARTED, 0);
+
+        // When another build is scheduled for a similar event
+        // Then it should be scheduled separately, as the events can't be told apart
+        assertThat(queued.shouldSchedule(Arrays.<Action>asList(createAction(DEPLOYMENT_STARTED, 0))), is(true));
+    }
+
+    @Test public void mergedDeploymentsShouldBeCarriedByACopy() {
+        // Given a build has been queued for a DeployDB event
+        DeployDbBuildAction queued = createAction(DEPLOYMENT_STARTED, 1);
+
+        // When other deployments are merged into it, including one twice
+        DeployDbBuildAction merged = queued.withMergedDeployment(createAction(DEPLOYMENT_STARTED, 2))
+                .withMergedDeployment(createAction(DEPLOYMENT_STARTED, 3))
+                .withMergedDeployment(createAction(DEPLOYMENT_STARTED, 2));
+
+        // Then the new action should carry each deployment once, in order
+        assertThat(merged.getDeploymentId(), is(1L));
+        assertArrayEquals(new long[] { 1, 2, 3 }, merged.getDeploymentIds());
+
+        // And the queued action, which may be shared with other builds, should be unchanged
+        assertArrayEquals(new long[] { 1 }, queued.getDeploymentIds());
+    }
+
+    private static DeployDbBuildAction createAction(EventType eventType, long deploymentId) {
+        TriggerWebhook hook = Util.createWebhook(eventType);
+        when(hook.getId()).thenReturn(deploymentId);
+        return new DeployDbBuildAction(hook);
+    }
+
+}
@@ -2,6 +2,7 @@ package org.jenkinsci.plugins.deploydb;
 
 import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import com.gargoylesoftware.htmlunit.html.HtmlInput;
+import hudson.util.Secret;
 import jenkins.model.GlobalConfiguration;
 import org.junit.Rule;
 import org.junit.Test;
@@ -47,4 +48,17 @@ public class DeployDbConfigTest {
         assertThat(field.getValueAttribute(), is(baseUrl));
     }
 
+    @Test public void changingWebhookSecretShouldReplaceSignatureVerifier() throws Exception {
+        // Given that a webhook secret has been configured and used
+        DeployDbConfig ddbConfig = GlobalConfiguration.all().get(DeployDbConfig.class);
+        ddbConfig.setWebhookSecret(Secret.fromString("old secret"));
+        assertThat(ddbConfig.getWebhookSignature().isFor("old secret"), is(true));
+
+        // When the secret is changed
+        ddbConfig.setWebhookSecret(Secret.fromString("new secret"));
+
+        // Then webhooks should be verified with the new secret
+        assertThat(ddbConfig.getWebhookSignature().isFor("new secret"), is(true));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.deploydb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HttpReportSenderTest {
+
+    private StubDeployDbServer server;
+    private HttpReportSender sender;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubDeployDbServer();
+        sender = new HttpReportSender();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test public void reportShouldBePostedAsJson() throws Exception {
+        // When a report is sent
+        sender.send(createRequest(123));
+
+        // Then DeployDB should have received it as a JSON POST request
+        List<StubDeployDbServer.Request> requests = server.getRequests();
+        assertThat(requests, hasSize(1));
+        assertThat(requests.get(0).getMethod(), is("POST"));
+        assertThat(requests.get(0).getPath(), is("/api/deployments/123/promotions"));
+        assertThat(requests.get(0).getContentType(), is("application/json"));
+        assertThat(requests.get(0).getBody(), is("{\"id\":123}"));
+    }
+
+    @Test(expected = IOException.class)
+    public void unsuccessfulResponseShouldFail() throws Exception {
+        // Given DeployDB is responding with errors
+        server.setStatus(500);
+
+        // Then sending a report should fail
+        sender.send(createRequest(1));
+    }
+
+    @Test public void connectionShouldBeReusedForSubsequentReports() throws Exception {
+        // When multiple reports are sent, one after the other
+        sender.send(createRequest(1));
+        sender.send(createRequest(2));
+        sender.send(createRequest(3));
+
+        // Then they should all have been sent over the same connection
+        List<StubDeployDbServer.Request> requests = server.getRequests();
+        assertThat(requests.get(1).getRemotePort(), is(requests.get(0).getRemotePort()));
+        assertThat(requests.get(2).getRemotePort(), is(requests.get(0).getRemotePort()));
+    }
+
+    private ReportRequest createRequest(long deploymentId) {
+        String url = String.format("%s/api/deployments/%d/promotions", server.getBaseUrl(), deploymentId);
+        return new ReportRequest(url, String.format("{\"id\":%d}", deploymentId), "Report");
+    }
+
+}
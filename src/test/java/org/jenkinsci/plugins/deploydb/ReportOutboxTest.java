@@ -0,0 +1,257 @@
+package org.jenkinsci.plugins.deploydb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.jenkinsci.plugins.deploydb.ReportOutbox.MAX_SEALED_SEGMENTS;
+import static org.junit.Assert.assertThat;
+
+public class ReportOutboxTest {
+
+    @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private ReportOutbox outbox;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(folder.getRoot(), "outbox");
+        outbox = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        outbox.close();
+    }
+
+    @Test public void emptyOutboxShouldRecoverNothing() throws Exception {
+        // Given an outbox which has never been used
+        // When it is opened
+        // Then no reports should be recovered
+        assertThat(outbox.takeRecovered(), is(empty()));
+    }
+
+    @Test public void appendedReportsShouldBeRecoveredInOrder() throws Exception {
+        // Given some reports have been appended
+        appendAndSync("first", "second", "third");
+
+        // When the outbox is reopened
+        List<ReportRequest> recovered = reopen().takeRecovered();
+
+        // Then all reports should be recovered, in the order they were appended
+        assertThat(descriptions(recovered), contains("first", "second", "third"));
+        assertThat(recovered.get(0).getUrl(), is("http://ddb.example.com/api/deployments/1/promotions"));
+        assertThat(recovered.get(0).getJson(), is("{\"name\": \"first\"}"));
+    }
+
+    @Test public void acknowledgedReportsShouldNotBeRecovered() throws Exception {
+        // Given some reports have been appended, and the second has been acknowledged
+        List<ReportRequest> appended = appendAndSync("first", "second", "third");
+        outbox.acknowledge(appended.get(1).getSequence());
+
+        // When the outbox is reopened
+        List<ReportRequest> recovered = reopen().takeRecovered();
+
+        // Then only the unacknowledged reports should be recovered
+        assertThat(descriptions(recovered), contains("first", "third"));
+    }
+
+    @Test public void recoveredReportsShouldOnlyBeTakenOnce() throws Exception {
+        // Given a report was recovered when the outbox was opened
+        appendAndSync("first");
+        ReportOutbox reopened = reopen();
+        assertThat(reopened.takeRecovered(), hasSize(1));
+
+        // When the recovered reports are taken again
+        // Then there should be none
+        assertThat(reopened.takeRecovered(), is(empty()));
+    }
+
+    @Test public void reportsAppendedAfterReopeningShouldKeepIncreasingSequenceNumbers() throws Exception {
+        // Given a report was appended before the outbox was reopened
+        ReportRequest before = appendAndSync("first").get(0);
+
+        // When another report is appended after reopening
+        reopen();
+        ReportRequest after = appendAndSync("second").get(0);
+
+        // Then it should have a later sequence number
+        assertThat(after.getSequence() > before.getSequence(), is(true));
+    }
+
+    @Test public void incompleteRecordShouldBeIgnored() throws Exception {
+        // Given two reports have been appended, but the last was only partially written
+        appendAndSync("first", "second");
+        outbox.close();
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 5);
+        } finally {
+            file.close();
+        }
+
+        // When the outbox is reopened
+        List<ReportRequest> recovered = reopen().takeRecovered();
+
+        // Then only the complete report should be recovered
+        assertThat(descriptions(recovered), contains("first"));
+    }
+
+    @Test public void acknowledgedSegmentsShouldBeDeleted() throws Exception {
+        // Given an outbox with small segments, to which many reports have been appended
+        outbox.close();
+        outbox = new ReportOutbox(directory, 256);
+        outbox.open();
+        List<ReportRequest> appended = appendAndSync(names(20));
+        int segmentsBefore = outbox.getSegmentCount();
+
+        // When all reports are acknowledged
+        for (ReportRequest request : appended) {
+            outbox.acknowledge(request.getSequence());
+        }
+
+        // Then only the current segment should remain
+        assertThat(segmentsBefore > 1, is(true));
+        assertThat(outbox.getSegmentCount(), is(1));
+        assertThat(directory.listFiles().length, is(1));
+    }
+
+    @Test public void unacknowledgedReportsShouldBeCopiedForwardFromOldSegments() throws Exception {
+        // Given an outbox with small segments, where only the very first report is never acknowledged
+        outbox.close();
+        outbox = new ReportOutbox(directory, 256);
+        outbox.open();
+        appendAndSync("stuck");
+
+        // When many more reports are appended and acknowledged
+        for (String name : names(50)) {
+            ReportRequest request = appendAndSync(name).get(0);
+            outbox.acknowledge(request.getSequence());
+        }
+
+        // Then the number of segments should remain bounded
+        assertThat(outbox.getSegmentCount(), is(lessThanOrEqualTo(MAX_SEALED_SEGMENTS + 1)));
+
+        // And the unacknowledged report should still be recovered, exactly once
+        assertThat(descriptions(reopen().takeRecovered()), contains("stuck"));
+    }
+
+    @Test public void concurrentlyAppendedReportsShouldAllBeSynced() throws Exception {
+        // Given several threads appending and syncing reports at the same time
+        final int threads = 8;
+        final int reportsPerThread = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < reportsPerThread; j++) {
+                        ReportRequest request = outbox.append(createRequest("report"));
+                        outbox.sync(request.getSequence());
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // When they have all finished
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+
+        // Then every report should be recovered after reopening
+        assertThat(reopen().takeRecovered(), hasSize(threads * reportsPerThread));
+    }
+
+    @Test public void syncShouldForceSegmentClosedByInterruptedThread() throws Exception {
+        // Given a report has been appended, but not synced
+        final ReportRequest first = outbox.append(createRequest("first"));
+
+        // And the segment's channel has been closed by a thread interrupted while writing to it
+        final ReportRequest second = outbox.append(createRequest("second"));
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                interrupt();
+                try {
+                    outbox.acknowledge(second.getSequence());
+                } catch (IOException expected) {
+                }
+            }
+        };
+        writer.start();
+        writer.join();
+
+        // When the first report is synced by another thread
+        outbox.sync(first.getSequence());
+
+        // Then both reports should be recovered after reopening, as the interrupted acknowledgement was discarded
+        assertThat(descriptions(reopen().takeRecovered()), contains("first", "second"));
+    }
+
+    // Helper methods
+
+    private ReportOutbox open() throws IOException {
+        ReportOutbox outbox = new ReportOutbox(directory);
+        outbox.open();
+        return outbox;
+    }
+
+    private ReportOutbox reopen() throws IOException {
+        outbox.close();
+        outbox = open();
+        return outbox;
+    }
+
+    private List<ReportRequest> appendAndSync(String... names) throws IOException {
+        List<ReportRequest> appended = new ArrayList<ReportRequest>();
+        for (String name : names) {
+            appended.add(outbox.append(createRequest(name)));
+        }
+        outbox.sync(appended.get(appended.size() - 1).getSequence());
+        return appended;
+    }
+
+    private static String[] names(int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "report-" + i;
+        }
+        return names;
+    }
+
+    private static List<String> descriptions(List<ReportRequest> requests) {
+        List<String> descriptions = new ArrayList<String>();
+        for (ReportRequest request : requests) {
+            descriptions.add(request.getDescription());
+        }
+        return descriptions;
+    }
+
+    private static ReportRequest createRequest(String name) {
+        return new ReportRequest("http://ddb.example.com/api/deployments/1/promotions",
+                String.format("{\"name\": \"%s\"}", name), name);
+    }
+
+}
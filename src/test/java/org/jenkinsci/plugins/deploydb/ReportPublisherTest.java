@@ -0,0 +1,472 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.jenkinsci.plugins.deploydb.ReportPublisher.MAX_OVERFLOW_RETRY_DELAY;
+import static org.jenkinsci.plugins.deploydb.ReportPublisher.OUTBOX_PATH;
+import static org.jenkinsci.plugins.deploydb.ReportPublisher.OVERFLOW_RETRY_DELAY;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ReportPublisherTest {
+
+    @Rule public final JenkinsRule jenkins = new JenkinsRule();
+
+    private DeployDbConfig config;
+    private ReportPublisher publisher;
+
+    @Before
+    public void setUp() {
+        config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        publisher = jenkins.getInstance().getExtensionList(ReportPublisher.class).get(0);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        publisher.shutdown();
+    }
+
+    @Test public void reportsShouldBeDeliveredConcurrently() throws Exception {
+        // Given there are multiple workers, and a sender which only completes once all workers are sending at once
+        final int workers = 4;
+        config.setReportWorkers(workers);
+        final CyclicBarrier allSending = new CyclicBarrier(workers);
+        final CountDownLatch delivered = new CountDownLatch(workers);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                try {
+                    allSending.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                delivered.countDown();
+            }
+        });
+
+        // When as many reports as workers are published
+        for (int i = 0; i < workers; i++) {
+            assertTrue(publisher.offer(createRequest()));
+        }
+
+        // Then they should all be delivered at the same time
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test public void failedDeliveryShouldBeRetried() throws Exception {
+        // Given a sender which fails on the first attempt
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch delivered = new CountDownLatch(1);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IOException("Connection refused");
+                }
+                delivered.countDown();
+            }
+        });
+
+        // When a report is published
+        publisher.offer(createRequest());
+
+        // Then it should be delivered on the second attempt
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        assertThat(attempts.get(), is(2));
+    }
+
+    @Test public void reportsShouldBeRejectedOnceQueueIsFull() throws Exception {
+        // Given a single worker, with room for one waiting report, and a sender which blocks
+        config.setReportWorkers(1);
+        config.setReportQueueCapacity(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+
+        try {
+            // When the worker is busy sending a report
+            assertTrue(publisher.offer(createRequest()));
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+            // Then one more report should be queued, but no more
+            assertThat(publisher.offer(createRequest()), is(true));
+            assertThat(publisher.offer(createRequest()), is(false));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test public void reportsShouldOverflowOnceQueueIsFullAndBeDeliveredInOrder() throws Exception {
+        // Given a single worker, with room for one waiting report, and a sender which blocks until released
+        config.setReportWorkers(1);
+        config.setReportQueueCapacity(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> delivered = new CopyOnWriteArrayList<String>();
+        final CountDownLatch allDelivered = new CountDownLatch(3);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                delivered.add(request.getDescription());
+                allDelivered.countDown();
+            }
+        });
+
+        // When the worker is busy, and more reports are published than the queue can hold
+        publisher.publish(createRequest("first"));
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        publisher.publish(createRequest("second"));
+        publisher.publish(createRequest("third"));
+
+        // Then the extra report should be held back, rather than rejected
+        assertThat(publisher.getQueueDepth(), is(2));
+
+        // And once the worker is free again, all reports should be delivered in the order they were published
+        release.countDown();
+        assertTrue(allDelivered.await(10, TimeUnit.SECONDS));
+        assertThat(delivered, contains("first", "second", "third"));
+        assertThat(publisher.getQueueDepth(), is(0));
+    }
+
+    @Test public void reportsShouldBeDiscardedOnceOverflowIsFull() throws Exception {
+        // Given a single worker, with room for one waiting report, and a sender which blocks until released
+        config.setReportWorkers(1);
+        config.setReportQueueCapacity(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+
+        try {
+            // When the worker is busy, and both the queue and the overflow buffer are filled
+            publisher.publish(createRequest("sending"));
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            publisher.publish(createRequest("queued"));
+            publisher.publish(createRequest("overflowed"));
+
+            // Then any further reports should be discarded
+            publisher.publish(createRequest("discarded"));
+            assertThat(publisher.getQueueDepth(), is(2));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test public void undeliveredReportsShouldRemainInOutboxAfterShutdown() throws Exception {
+        // Given a single worker, and a sender which blocks until Jenkins shuts down
+        config.setReportWorkers(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                sending.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        });
+
+        // When two reports are published, but not delivered before shutdown
+        publisher.publish(createRequest("first"));
+        publisher.publish(createRequest("second"));
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        publisher.shutdown();
+
+        // Then both reports should be recovered from the outbox
+        ReportOutbox outbox = new ReportOutbox(new File(jenkins.getInstance().getRootDir(), OUTBOX_PATH));
+        outbox.open();
+        try {
+            List<String> recovered = new ArrayList<String>();
+            for (ReportRequest request : outbox.takeRecovered()) {
+                recovered.add(request.getDescription());
+            }
+            assertThat(recovered, contains("first", "second"));
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test public void reportsPublishedAfterShutdownShouldNotReopenOutbox() throws Exception {
+        // Given Jenkins has shut down, after a report was published
+        final List<String> sent = new CopyOnWriteArrayList<String>();
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) {
+                sent.add(request.getDescription());
+            }
+        });
+        publisher.publish(createRequest("first"));
+        publisher.shutdown();
+
+        // When a report is published afterwards, e.g. by a build aborted during shutdown
+        publisher.publish(createRequest("late"));
+
+        // Then it should neither be delivered, nor written to the outbox
+        Thread.sleep(100);
+        assertThat(sent, not(hasItem("late")));
+        ReportOutbox outbox = new ReportOutbox(new File(jenkins.getInstance().getRootDir(), OUTBOX_PATH));
+        outbox.open();
+        try {
+            for (ReportRequest request : outbox.takeRecovered()) {
+                assertThat(request.getDescription(), is("first"));
+            }
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test public void deliveredReportsShouldBeRemovedFromOutbox() throws Exception {
+        // Given a single worker, and a sender which delivers the first report, then blocks until Jenkins shuts down
+        config.setReportWorkers(1);
+        final CountDownLatch sendingSecond = new CountDownLatch(1);
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) throws IOException {
+                if (request.getDescription().equals("first")) {
+                    return;
+                }
+                sendingSecond.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        });
+
+        // When the first report has been delivered, and Jenkins shuts down while the second is being sent
+        publisher.publish(createRequest("first"));
+        publisher.publish(createRequest("second"));
+        assertTrue(sendingSecond.await(10, TimeUnit.SECONDS));
+        publisher.shutdown();
+
+        // Then only the undelivered report should be recovered from the outbox
+        ReportOutbox outbox = new ReportOutbox(new File(jenkins.getInstance().getRootDir(), OUTBOX_PATH));
+        outbox.open();
+        try {
+            List<ReportRequest> recovered = outbox.takeRecovered();
+            assertThat(recovered, hasSize(1));
+            assertThat(recovered.get(0).getDescription(), is("second"));
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test public void queuedReportsShouldBeKeptWhenQueueCapacityChanges() throws Exception {
+        // Given a single worker, with room for three waiting reports, and a sender which blocks on the first report
+        config.setReportWorkers(1);
+        config.setReportQueueCapacity(3);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(5);
+        final List<String> descriptions = new CopyOnWriteArrayList<String>();
+        publisher.setSender(new ReportSender() {
+            @Override
+            public void send(ReportRequest request) {
+                if (request.getDescription().equals("first")) {
+                    sending.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+                descriptions.add(request.getDescription());
+                delivered.countDown();
+            }
+        });
+
+        try {
+            // And the queue is full while the worker is busy
+            assertTrue(publisher.offer(createRequest("first")));
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            for (String description : Arrays.asList("second", "third", "fourth")) {
+                assertTrue(publisher.offer(createRequest(description)));
+            }
+
+            // When the queue capacity is reduced, and another report is published
+            config.setReportQueueCapacity(1);
+            publisher.publish(createRequest("fifth"));
+        } finally {
+            release.countDown();
+        }
+
+        // Then every report should still be delivered, once each
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        assertThat(descriptions, containsInAnyOrder("first", "second", "third", "fourth", "fifth"));
+    }
+
+    @Test public void reportsForTheSameDeploymentShouldBeDeliveredInBatches() throws Exception {
+        StubDeployDbServer server = new StubDeployDbServer();
+        try {
+            // Given a batch endpoint, with a single worker lingering long enough to gather every report
+            config.setReportBatchPath("/batch");
+            config.setReportWorkers(1);
+            config.setReportBatchLinger(1000);
+
+            // When many reports for two deployments are published at once
+            final int reports = 20;
+            for (int i = 0; i < reports; i++) {
+                publisher.publish(createRequest(server.getBaseUrl(), i % 2, i));
+            }
+
+            // Then every report should be delivered
+            List<StubDeployDbServer.Request> requests = awaitReports(server, reports);
+
+            // And far fewer requests should have been made, each to the batch endpoint of one deployment
+            assertThat(requests.size(), is(lessThan(reports)));
+            for (StubDeployDbServer.Request request : requests) {
+                assertThat(request.getPath(), endsWith("/promotions/batch"));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test public void reportsShouldBeDeliveredSinglyIfNoBatchEndpointIsConfigured() throws Exception {
+        StubDeployDbServer server = new StubDeployDbServer();
+        try {
+            // Given no batch endpoint has been configured
+            config.setReportWorkers(1);
+
+            // When several reports for the same deployment are published at once
+            final int reports = 5;
+            for (int i = 0; i < reports; i++) {
+                publisher.publish(createRequest(server.getBaseUrl(), 0, i));
+            }
+
+            // Then every report should be delivered individually
+            List<StubDeployDbServer.Request> requests = awaitReports(server, reports);
+            assertThat(requests, hasSize(reports));
+            for (StubDeployDbServer.Request request : requests) {
+                assertThat(request.getPath(), endsWith("/promotions"));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test public void batchShouldBeJsonArrayOfReports() {
+        // Given reports for the same deployment
+        List<ReportRequest> reports = Arrays.asList(createRequest("http://ddb", 1, 1),
+                createRequest("http://ddb", 1, 2));
+
+        // When they are combined into a batch
+        ReportRequest batch = ReportPublisher.createBatch(reports, "/batch");
+
+        // Then it should be sent to the batch endpoint, containing each report
+        assertThat(batch.getUrl(), is("http://ddb/api/deployments/1/promotions/batch"));
+        assertThat(batch.getJson(), is("[{\"number\": 1},{\"number\": 2}]"));
+    }
+
+    @Test public void overflowRetryDelayShouldBackOffWithJitter() {
+        long previousMaximum = 0;
+        for (int failures = 0; failures < 20; failures++) {
+            // Given a number of failed attempts to empty the overflow buffer, and the expected delay without jitter
+            final long maximum = Math.min(MAX_OVERFLOW_RETRY_DELAY, OVERFLOW_RETRY_DELAY << failures);
+
+            // When the next delay is calculated
+            final long delay = ReportPublisher.getRetryDelay(failures);
+
+            // Then it should be at least half, and at most all, of the expected delay
+            assertThat(delay, greaterThanOrEqualTo(maximum / 2));
+            assertThat(delay, lessThanOrEqualTo(maximum));
+
+            // And the expected delay should never decrease
+            assertThat(maximum, greaterThanOrEqualTo(previousMaximum));
+            previousMaximum = maximum;
+        }
+        assertThat(previousMaximum, is(MAX_OVERFLOW_RETRY_DELAY));
+    }
+
+    private static ReportRequest createRequest() {
+        return createRequest("Report");
+    }
+
+    private static ReportRequest createRequest(String description) {
+        return new ReportRequest("http://ddb.example.com/api/deployments/1/promotions", "{}", description);
+    }
+
+    private static ReportRequest createRequest(String baseUrl, long deploymentId, int number) {
+        return new ReportRequest(String.format("%s/api/deployments/%d/promotions", baseUrl, deploymentId),
+                String.format("{\"number\": %d}", number), "Report " + number);
+    }
+
+    /**
+     * Waits until the given server has received the given number of reports, whether batched or not.
+     *
+     * @return The requests received.
+     */
+    private static List<StubDeployDbServer.Request> awaitReports(StubDeployDbServer server, int expectedReports)
+            throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (true) {
+            List<StubDeployDbServer.Request> requests = server.getRequests();
+            int received = 0;
+            for (StubDeployDbServer.Request request : requests) {
+                JsonNode body = mapper.readTree(request.getBody());
+                received += body.isArray() ? body.size() : 1;
+            }
+            if (received >= expectedReports || System.currentTimeMillis() > deadline) {
+                assertThat(received, is(expectedReports));
+                return requests;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.deploydb;
+
+import hudson.model.AbstractProject;
+import org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent;
+import org.jenkinsci.plugins.deploydb.model.events.DeploymentStartedEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.jenkinsci.plugins.deploydb.Util.createWebhook;
+import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_STARTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ServiceNameMatcherTest {
+
+    /** Service name criteria, covering plain names, various regex constructs, and invalid values. */
+    private static final List<String> REGEXES = Arrays.asList(
+            null, "", "foo(bar", "faas", "FaaS-Service", "foo.bar", "foo-.+", "foo(ba[rz])?-\\d{2,4}", "^api-\\w+",
+            "(?i)web-.*", "ab*c", "abc?", "x{2}y", "service|other", "[a-c]+-svc", ".*-prod", "foo\\.bar\\d*");
+
+    /** Service names from incoming webhooks. */
+    private static final List<String> SERVICES = Arrays.asList(
+            "faas", "FAAS", "faas-service", "foo.bar", "FOO.BAR", "fooXbar", "foo-", "foo-1", "foobar-123",
+            "foobaz-9876", "foobar-0", "api-gateway", "API-gateway", "WEB-frontend", "ac", "abbbc", "ab", "abc", "xxy",
+            "xy", "service", "other", "abc-svc", "d-svc", "billing-prod", "foo.bar42", "foo.bar(");
+
+    @Test public void matcherShouldAgreeWithTriggerEvents() {
+        // Given a number of jobs, each with a trigger event configured with different criteria
+        AbstractProject<?, ?> job = mock(AbstractProject.class);
+        List<DeployDbTriggerEvent> events = new ArrayList<DeployDbTriggerEvent>();
+        ServiceNameMatcher.Builder<DeployDbTriggerEvent> builder = ServiceNameMatcher.builder();
+        for (String regex : REGEXES) {
+            DeployDbTriggerEvent event = new DeploymentStartedEvent();
+            event.setServiceNameRegex(regex);
+            events.add(event);
+            builder.add(regex, event.getServiceNamePattern(), event);
+        }
+        ServiceNameMatcher<DeployDbTriggerEvent> matcher = builder.build();
+
+        // Then the combined matcher should find exactly the same events as evaluating each event individually
+        for (String service : SERVICES) {
+            List<DeployDbTriggerEvent> expected = new ArrayList<DeployDbTriggerEvent>();
+            for (DeployDbTriggerEvent event : events) {
+                if (event.accepts(job, createWebhook(DEPLOYMENT_STARTED, service))) {
+                    expected.add(event);
+                }
+            }
+            assertEquals("Matches for service " + service, expected, matcher.match(service));
+        }
+    }
+
+    @Test public void targetWithMultipleMatchingRegexesShouldBeReturnedOnce() {
+        // Given a target with multiple regexes, all matching the same service
+        ServiceNameMatcher<String> matcher = ServiceNameMatcher.<String>builder()
+                .add("foo", Pattern.compile("foo"), "a")
+                .add("fo+", Pattern.compile("fo+"), "a")
+                .add("f.*", Pattern.compile("f.*"), "a")
+                .build();
+
+        // Then it should only be returned once
+        assertThat(matcher.match("foo"), contains("a"));
+    }
+
+    @Test public void targetsShouldBeReturnedInOrderAdded() {
+        // Given multiple targets, added in a certain order
+        ServiceNameMatcher<String> matcher = ServiceNameMatcher.<String>builder()
+                .add("c.*", Pattern.compile("c.*"), "c")
+                .add("cat", Pattern.compile("cat"), "a")
+                .add("ca.", Pattern.compile("ca."), "b")
+                .build();
+
+        // Then matching targets should be returned in that same order
+        assertThat(matcher.match("cat"), contains("c", "a", "b"));
+        assertThat(matcher.getTargets(), contains("c", "a", "b"));
+    }
+
+    @Test public void targetsWithoutValidRegexShouldNeverMatch() {
+        // Given a target without a valid regex
+        ServiceNameMatcher<String> matcher = ServiceNameMatcher.<String>builder().add("foo(", null, "a").build();
+
+        // Then it should be known, but never match
+        assertThat(matcher.getTargets(), contains("a"));
+        assertThat(matcher.match("foo("), is(empty()));
+    }
+
+    @Test public void parallelMatchingShouldAgreeWithSerialMatching() {
+        // Given many targets with regexes which can't be filtered by prefix, only some of which match
+        ServiceNameMatcher.Builder<String> builder = ServiceNameMatcher.builder();
+        for (int i = 0; i < ServiceNameMatcher.MIN_CHUNK_SIZE * 8; i++) {
+            String regex = String.format("(team-%d|service)-[a-z]+-%d", i, i % 7);
+            builder.add(regex, Pattern.compile(regex), "job-" + i);
+        }
+        ServiceNameMatcher<String> matcher = builder.build();
+
+        // And an executor which records how many chunks it was given
+        final AtomicInteger chunks = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                chunks.incrementAndGet();
+                new Thread(task).start();
+            }
+        };
+
+        // When a service name is matched in parallel
+        List<String> matches = matcher.match("service-foo-3", executor, 1);
+
+        // Then the same targets should be found, in the same order, as when matching serially
+        assertThat(matches, is(matcher.match("service-foo-3")));
+        assertThat(matches.isEmpty(), is(false));
+
+        // And the work should have been shared with the executor, as long as there is more than one processor
+        assertThat(chunks.get() > 0, is(Runtime.getRuntime().availableProcessors() > 1));
+    }
+
+    @Test public void matchingShouldCompleteIfExecutorRejectsWork() {
+        // Given many targets with regexes which can't be filtered by prefix
+        ServiceNameMatcher.Builder<String> builder = ServiceNameMatcher.builder();
+        for (int i = 0; i < ServiceNameMatcher.MIN_CHUNK_SIZE * 8; i++) {
+            builder.add(".*-" + i, Pattern.compile(".*-" + i), "job-" + i);
+        }
+        ServiceNameMatcher<String> matcher = builder.build();
+
+        // When a service name is matched in parallel, with an executor which never runs anything
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable task) {}
+        };
+        List<String> matches = matcher.match("service-300", executor, 1);
+
+        // Then all chunks should have been evaluated by the calling thread
+        assertThat(matches, contains("job-300"));
+    }
+
+    @Test public void literalPrefixShouldOnlyIncludeRequiredCharacters() {
+        assertThat(ServiceNameMatcher.literalPrefix("foo-.+"), is("foo-"));
+        assertThat(ServiceNameMatcher.literalPrefix("^api-\\w+"), is("api-"));
+        assertThat(ServiceNameMatcher.literalPrefix("abc?"), is("ab"));
+        assertThat(ServiceNameMatcher.literalPrefix("ab*c"), is("a"));
+        assertThat(ServiceNameMatcher.literalPrefix("ab+c"), is("ab"));
+        assertThat(ServiceNameMatcher.literalPrefix("x{2}y"), is(""));
+        assertThat(ServiceNameMatcher.literalPrefix("(?i)web-.*"), is(""));
+        assertThat(ServiceNameMatcher.literalPrefix("foo-.*|bar"), is(""));
+    }
+
+}
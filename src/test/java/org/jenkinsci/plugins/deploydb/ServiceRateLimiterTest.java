@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ServiceRateLimiterTest {
+
+    private static final String JOB = "deploy";
+    private static final String SERVICE = "basic-service";
+
+    private static final int BUILDS_PER_HOUR = 4;
+
+    private FakeTicker ticker;
+    private ServiceRateLimiter limiter;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        limiter = new ServiceRateLimiter(ticker);
+    }
+
+    @Test public void burstShouldBeLimitedToAnHoursWorthOfBuilds() {
+        // Given a job which has not been triggered before
+        // When it is triggered repeatedly for a service
+        int acquired = acquireAll(JOB, SERVICE);
+
+        // Then only an hour's worth of builds should be allowed
+        assertThat(acquired, is(BUILDS_PER_HOUR));
+    }
+
+    @Test public void buildsShouldBeAllowedAgainAtTheConfiguredRate() {
+        // Given a job which has reached its limit for a service
+        acquireAll(JOB, SERVICE);
+
+        // When a quarter of an hour passes
+        ticker.advance(TimeUnit.MINUTES.toNanos(15));
+
+        // Then a single further build should be allowed
+        assertThat(acquireAll(JOB, SERVICE), is(1));
+    }
+
+    @Test public void bucketShouldNotRefillBeyondItsCapacity() {
+        // Given a job which has reached its limit for a service
+        acquireAll(JOB, SERVICE);
+
+        // When a whole day passes
+        ticker.advance(TimeUnit.DAYS.toNanos(1));
+
+        // Then no more than an hour's worth of builds should be allowed
+        assertThat(acquireAll(JOB, SERVICE), is(BUILDS_PER_HOUR));
+    }
+
+    @Test public void servicesAndJobsShouldBeLimitedSeparately() {
+        // Given a job which has reached its limit for a service
+        acquireAll(JOB, SERVICE);
+
+        // When it is triggered for another service, or another job is triggered for the same service
+        // Then builds should be allowed
+        assertThat(limiter.tryAcquire(JOB, "other-service", BUILDS_PER_HOUR), is(true));
+        assertThat(limiter.tryAcquire("other-job", SERVICE, BUILDS_PER_HOUR), is(true));
+    }
+
+    @Test public void loweredLimitShouldApplyImmediately() {
+        // Given a job which has not been triggered before
+        // When its limit is lowered to a single build per hour
+        // Then only a single build should be allowed
+        assertThat(limiter.tryAcquire(JOB, SERVICE, 1), is(true));
+        assertThat(limiter.tryAcquire(JOB, SERVICE, 1), is(false));
+    }
+
+    // Helper methods
+
+    private int acquireAll(String job, String service) {
+        int acquired = 0;
+        while (acquired < 100 && limiter.tryAcquire(job, service, BUILDS_PER_HOUR)) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    /** Ticker which only moves when told to. */
+    private static final class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        void advance(long nanos) {
+            this.nanos += nanos;
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/** Minimal stand-in for a DeployDB server, which records every request it receives. */
+public class StubDeployDbServer implements Closeable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    private volatile int status = 200;
+    private volatile long latencyMillis;
+
+    public StubDeployDbServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    final Request request = new Request(exchange);
+                    requests.add(request);
+                    if (latencyMillis > 0) {
+                        Thread.sleep(latencyMillis);
+                    }
+                    exchange.sendResponseHeaders(status, 0);
+                } catch (InterruptedException e) {
+                    exchange.sendResponseHeaders(503, 0);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** @return The base URL of this server, without a trailing slash. */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** @return A copy of the requests received so far, in the order they were received. */
+    public List<Request> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<Request>(requests);
+        }
+    }
+
+    /** Sets the HTTP status code to respond with. */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /** Sets how long to wait before responding to each request. */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** A request received by the server. */
+    public static final class Request {
+
+        private final String method;
+        private final String path;
+        private final String contentType;
+        private final String body;
+        private final int remotePort;
+
+        Request(HttpExchange exchange) throws IOException {
+            method = exchange.getRequestMethod();
+            path = exchange.getRequestURI().getPath();
+            contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            body = IOUtils.toString(exchange.getRequestBody(), UTF_8);
+            remotePort = exchange.getRemoteAddress().getPort();
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /** @return The client port the request was sent from, which identifies the connection used. */
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+    }
+
+}
@@ -0,0 +1,255 @@
+package org.jenkinsci.plugins.deploydb;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import org.HdrHistogram.Histogram;
+import org.jenkinsci.plugins.deploydb.metrics.PipelineMetrics;
+import org.jenkinsci.plugins.deploydb.metrics.ValueHistogram;
+import org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent;
+import org.jenkinsci.plugins.deploydb.model.events.DeploymentCompletedEvent;
+import org.jenkinsci.plugins.deploydb.model.events.DeploymentCreatedEvent;
+import org.jenkinsci.plugins.deploydb.model.events.DeploymentStartedEvent;
+import org.jenkinsci.plugins.deploydb.model.events.PromotionCompletedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load test for the trigger endpoint, which sends storms of webhooks to a Jenkins instance with many jobs configured
+ * with the DeployDB trigger, and logs the throughput, request latency, time until the triggered builds are queued, and
+ * time taken to insert them into the queue.
+ * Builds run as normal, and report back to a stub DeployDB server, which logs how long it took to receive the reports.
+ * <p/>
+ * Creating tens of thousands of jobs takes a long time, so this only runs if the {@code deploydb.loadTest} system
+ * property is set, e.g. {@code ./gradlew test -Ddeploydb.loadTest=true --tests '*LoadTest'}. It can be tuned with:
+ * <ul>
+ *     <li>{@code deploydb.loadTest.jobs}: numbers of jobs to test with, comma-separated; default 1000,10000,50000</li>
+ *     <li>{@code deploydb.loadTest.hooks}: number of webhooks to send for each number of jobs; default 2000</li>
+ *     <li>{@code deploydb.loadTest.threads}: number of webhooks to send at once; default 16</li>
+ *     <li>{@code deploydb.loadTest.executors}: number of executors to run the builds; default 4</li>
+ *     <li>{@code deploydb.loadTest.replay}: a file of captured webhooks, in the format described by
+ *     {@link WebhookLoadGenerator}, to replay instead of a bundled sample capture</li>
+ * </ul>
+ */
+public class TriggerEndpointLoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger(TriggerEndpointLoadTest.class.getName());
+
+    private static final String PROPERTY_PREFIX = "deploydb.loadTest";
+
+    /** How long to wait for the builds and reports resulting from each storm of webhooks. */
+    private static final long SETTLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    @Rule public final JenkinsRule jenkins = new JenkinsRule();
+
+    {
+        // Creating this many jobs takes far longer than the default test timeout
+        jenkins.timeout = 0;
+    }
+
+    private StubDeployDbServer deployDb;
+    private WebhookLoadGenerator generator;
+
+    /** Number of jobs created so far, named {@code job-0} to {@code job-<n-1>}. */
+    private int jobCount;
+
+    @BeforeClass
+    public static void checkEnabled() {
+        // Skip before Jenkins is even started
+        assumeTrue(Boolean.getBoolean(PROPERTY_PREFIX));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Report build results to a stub DeployDB
+        deployDb = new StubDeployDbServer();
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setBaseUrl(deployDb.getBaseUrl());
+
+        Jenkins j = jenkins.getInstance();
+        j.setNumExecutors(Integer.getInteger(PROPERTY_PREFIX + ".executors", 4));
+        j.setNodes(j.getNodes());
+
+        generator = new WebhookLoadGenerator(new URL(jenkins.getURL(), "deploydb/trigger"),
+                Integer.getInteger(PROPERTY_PREFIX + ".threads", 16));
+        getRecorder().setGenerator(generator);
+    }
+
+    @After
+    public void tearDown() {
+        if (deployDb != null) {
+            deployDb.close();
+        }
+    }
+
+    @Test public void generatedWebhookStorms() throws Exception {
+        final int hooks = Integer.getInteger(PROPERTY_PREFIX + ".hooks", 2000);
+        long nextId = 1;
+        for (int jobs : getJobCounts()) {
+            // Given there are this many jobs, each triggered by webhooks for its own service
+            createJobs(jobs);
+
+            // When a storm of webhooks for random services is sent
+            List<WebhookLoadGenerator.Webhook> storm = WebhookLoadGenerator.generate(hooks, jobs, nextId);
+            nextId += hooks;
+
+            // Then they should all be accepted
+            run(String.format(Locale.ENGLISH, "%d jobs", jobs), storm);
+        }
+    }
+
+    @Test public void replayedWebhookStorm() throws Exception {
+        // Given there are as many jobs as in the first generated storm
+        createJobs(getJobCounts().get(0));
+
+        // When captured webhooks are replayed
+        final String capture = System.getProperty(PROPERTY_PREFIX + ".replay");
+        List<WebhookLoadGenerator.Webhook> storm = capture == null
+                ? WebhookLoadGenerator.replay(getClass().getResourceAsStream("load_test_capture.ndjson"))
+                : WebhookLoadGenerator.replay(new File(capture));
+
+        // Then they should all be accepted
+        run(capture == null ? "sample capture" : capture, storm);
+    }
+
+    /** Sends the given webhooks, waits for the resulting builds and reports, and logs the outcome. */
+    private void run(String label, List<WebhookLoadGenerator.Webhook> hooks) throws Exception {
+        final QueuedBuildRecorder recorder = getRecorder();
+        recorder.reset();
+        final int reportsBefore = deployDb.getRequests().size();
+
+        final WebhookLoadGenerator.Result result = generator.send(hooks);
+        LOGGER.info(String.format("%s: %s", label, result));
+        assertThat(result.getFailed(), is(0));
+
+        // Wait for the builds to run, and for their results to be reported
+        final long start = System.nanoTime();
+        jenkins.waitUntilNoActivityUpTo((int) SETTLE_TIMEOUT_MILLIS);
+        final int builds = recorder.getCount();
+        final long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+        while (deployDb.getRequests().size() - reportsBefore < builds && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        final int reports = deployDb.getRequests().size() - reportsBefore;
+
+        final Histogram queued = recorder.getLatencies();
+        // The metrics only keep the last few minutes of insertion times, so these may include those of earlier runs
+        final Histogram insertions = getQueueInsertionTimes().snapshot().getRecent();
+        LOGGER.info(String.format(Locale.ENGLISH, "%s: %d builds queued, p50 %.1f ms and p99 %.1f ms after the "
+                + "webhook was sent, recently taking p50 %.1f ms and p99 %.1f ms per webhook to insert into the queue; "
+                + "%d reports received %.1f s after the last webhook", label, builds,
+                queued.getValueAtPercentile(50) / 1000.0, queued.getValueAtPercentile(99) / 1000.0,
+                insertions.getValueAtPercentile(50) / 1e6, insertions.getValueAtPercentile(99) / 1e6, reports,
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    /** Creates jobs until there are the given number, each triggered by all event types for its own service. */
+    private void createJobs(int count) throws Exception {
+        for (; jobCount < count; jobCount++) {
+            // Most triggers name a single service; some match it with a regex, as is common for canary services
+            final String service = jobCount % 10 == 0
+                    ? String.format(Locale.ENGLISH, "service-%d(-canary)?", jobCount)
+                    : String.format(Locale.ENGLISH, "service-%d", jobCount);
+            final List<DeployDbTriggerEvent> events = Arrays.asList(new DeploymentCreatedEvent(),
+                    new DeploymentStartedEvent(), new DeploymentCompletedEvent(), new PromotionCompletedEvent());
+            for (DeployDbTriggerEvent event : events) {
+                event.setServiceNameRegex(service);
+            }
+            DeployDbTrigger trigger = new DeployDbTrigger();
+            trigger.setTriggerEventTypes(events);
+
+            FreeStyleProject job = jenkins.createFreeStyleProject("job-" + jobCount);
+            job.addTrigger(trigger);
+        }
+    }
+
+    private static List<Integer> getJobCounts() {
+        final List<Integer> counts = new ArrayList<Integer>();
+        for (String count : System.getProperty(PROPERTY_PREFIX + ".jobs", "1000,10000,50000").split(",")) {
+            counts.add(Integer.parseInt(count.trim()));
+        }
+        return counts;
+    }
+
+    /** @return The time taken to add the builds triggered by each webhook to the queue, in nanoseconds. */
+    private ValueHistogram getQueueInsertionTimes() {
+        for (ValueHistogram histogram : jenkins.getInstance().getExtensionList(PipelineMetrics.class).get(0)
+                .getHistograms()) {
+            if (histogram.getName().equals("deploydb_queue_insertion_seconds")) {
+                return histogram;
+            }
+        }
+        throw new IllegalStateException("Queue insertion times are not recorded");
+    }
+
+    private QueuedBuildRecorder getRecorder() {
+        return jenkins.getInstance().getExtensionList(QueuedBuildRecorder.class).get(0);
+    }
+
+    /** Records how long after its webhook was sent each DeployDB-triggered build entered the queue. */
+    @TestExtension
+    public static class QueuedBuildRecorder extends QueueListener {
+
+        private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+        private volatile WebhookLoadGenerator generator;
+
+        /** Guarded by {@code this}. */
+        private Histogram latencies = new Histogram(MAX_LATENCY_MICROS, 3);
+
+        void setGenerator(WebhookLoadGenerator generator) {
+            this.generator = generator;
+        }
+
+        synchronized void reset() {
+            latencies = new Histogram(MAX_LATENCY_MICROS, 3);
+        }
+
+        synchronized int getCount() {
+            return (int) latencies.getTotalCount();
+        }
+
+        synchronized Histogram getLatencies() {
+            return latencies.copy();
+        }
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem item) {
+            final long now = System.nanoTime();
+            final WebhookLoadGenerator generator = this.generator;
+            if (generator == null) {
+                return;
+            }
+            for (DeployDbBuildAction action : item.getActions(DeployDbBuildAction.class)) {
+                final Long sent = generator.getSendTime(action.getDeploymentId());
+                if (sent != null) {
+                    synchronized (this) {
+                        latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - sent),
+                                MAX_LATENCY_MICROS));
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -1,41 +1,61 @@
 package org.jenkinsci.plugins.deploydb;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
 import com.gargoylesoftware.htmlunit.WebRequestSettings;
 import com.gargoylesoftware.htmlunit.WebResponse;
 import hudson.Util;
-import hudson.model.AbstractProject;
 import hudson.model.FreeStyleProject;
 import hudson.model.Queue;
+import hudson.util.Secret;
 import jenkins.model.Jenkins;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.deploydb.model.EventType;
-import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
+import org.jenkinsci.plugins.deploydb.model.WebhookSignature;
+import org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent;
+import org.jenkinsci.plugins.deploydb.model.events.DeploymentCreatedEvent;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
 
 import static com.gargoylesoftware.htmlunit.HttpMethod.POST;
+import static java.net.HttpURLConnection.HTTP_ACCEPTED;
 import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
 import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 import static java.net.HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.mockito.Matchers.any;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
 
 public class TriggerEndpointTest {
 
     /** Relative URL path from Jenkins root to the {@link TriggerEndpoint}. */
     private static final String ENDPOINT = "deploydb/trigger";
 
+    /** Relative URL path from Jenkins root to the batch action of the {@link TriggerEndpoint}. */
+    private static final String BATCH_ENDPOINT = "deploydb/triggerBatch";
+
+    /** Secret shared with DeployDB, for tests which require webhooks to be signed. */
+    private static final String SECRET = "It's a Secret to Everybody";
+
     @Rule public final JenkinsRule jenkins = new JenkinsRule();
 
     private JenkinsRule.WebClient webClient;
@@ -73,6 +93,120 @@ public class TriggerEndpointTest {
         assertWebhookRequestWithBadMimeTypeIsRejected("application/json");
     }
 
+    @Test public void hookWithBadMimeTypeIsRejectedBeforeParsingBody() throws IOException {
+        try {
+            // When a malformed payload is posted with an unrecognised MIME type
+            submitWebhookRequest("hook_malformed.json", "application/json");
+            fail("Should have thrown 415 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should reject the request due to its type, rather than its payload
+            assertEquals(HTTP_UNSUPPORTED_TYPE, e.getStatusCode());
+        }
+    }
+
+    @Test public void hookWithMimeTypeParametersShouldTriggerMatchingJob() throws Exception {
+        // Given we have a job configured with the DeployDB trigger
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+
+        // When a JSON webhook is posted with a charset parameter in its Content-Type header
+        WebResponse response = submitWebhookRequest("hook_trigger_deployment_started.json",
+                EventType.DEPLOYMENT_CREATED.getMimeType() + "; charset=UTF-8");
+
+        // Then a build of that job should have been scheduled
+        assertJobsTriggered(response, jobA);
+    }
+
+    @Test public void discardingBodyShouldReadToEndOfStream() throws IOException {
+        // Given a request body larger than the discard buffer
+        InputStream body = new ByteArrayInputStream(new byte[20000]);
+
+        // When it is discarded, with a limit larger than the body
+        boolean drained = TriggerEndpoint.discard(body, 100000);
+
+        // Then the whole body should have been read
+        assertTrue(drained);
+        assertEquals(-1, body.read());
+    }
+
+    @Test public void discardingBodyShouldStopAtLimit() throws IOException {
+        // Given a request body
+        InputStream body = new ByteArrayInputStream(new byte[20000]);
+
+        // When it is discarded, with a limit smaller than the body
+        boolean drained = TriggerEndpoint.discard(body, 10000);
+
+        // Then reading should have stopped just after the limit
+        assertFalse(drained);
+        assertEquals(20000 - 10001, body.available());
+    }
+
+    @Test public void signedHookShouldTriggerMatchingJob() throws Exception {
+        // Given a webhook secret has been configured, and a job configured with the DeployDB trigger
+        configureWebhookSecret();
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+
+        // When a JSON webhook is posted, correctly signed with the secret
+        WebResponse response = submitSignedWebhookRequest("hook_trigger_deployment_started.json", SECRET);
+
+        // Then a build of that job should have been scheduled
+        assertJobsTriggered(response, jobA);
+    }
+
+    @Test public void unsignedHookShouldBeRejectedWhenSecretIsConfigured() throws Exception {
+        // Given a webhook secret has been configured, and a job configured with the DeployDB trigger
+        configureWebhookSecret();
+        configureDeployDbTriggeredJob("a", true);
+
+        try {
+            // When a JSON webhook is posted without a signature
+            submitWebhookRequest("hook_trigger_deployment_started.json");
+            fail("Should have thrown 403 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should reject the request
+            assertEquals(HTTP_FORBIDDEN, e.getStatusCode());
+        }
+
+        // And no builds should have been scheduled
+        assertEquals(0, jenkins.getInstance().getQueue().getItems().length);
+    }
+
+    @Test public void hookSignedWithWrongSecretShouldBeRejected() throws Exception {
+        // Given a webhook secret has been configured, and a job configured with the DeployDB trigger
+        configureWebhookSecret();
+        configureDeployDbTriggeredJob("a", true);
+
+        try {
+            // When a JSON webhook is posted, signed with another secret
+            submitSignedWebhookRequest("hook_trigger_deployment_started.json", "not the secret");
+            fail("Should have thrown 403 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should reject the request
+            assertEquals(HTTP_FORBIDDEN, e.getStatusCode());
+        }
+
+        // And no builds should have been scheduled
+        assertEquals(0, jenkins.getInstance().getQueue().getItems().length);
+    }
+
+    @Test public void oversizedHookIsRejected() throws Exception {
+        // Given the maximum payload size is smaller than the webhook to be sent
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setMaxPayloadBytes(16);
+        configureDeployDbTriggeredJob("a", true);
+
+        try {
+            // When a JSON webhook for a service deployment is posted
+            submitWebhookRequest("hook_trigger_deployment_started.json");
+            fail("Should have thrown 413 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should reject the request
+            assertEquals(HTTP_ENTITY_TOO_LARGE, e.getStatusCode());
+        }
+
+        // And no builds should have been scheduled
+        assertEquals(0, jenkins.getInstance().getQueue().getItems().length);
+    }
+
     @Test public void unmatchedHookShouldTriggerNoBuilds() throws IOException {
         // When an empty JSON webhook is posted
         WebResponse response = submitWebhookRequest("hook_empty.json");
@@ -127,6 +261,43 @@ public class TriggerEndpointTest {
         assertJobsTriggered(response, jobA, jobC);
     }
 
+    @Test public void hookShouldTriggerMatchingPipelineJobWithWebhookEnvironment() throws Exception {
+        // Given we have a Pipeline job configured with the DeployDB trigger, which echoes the service name
+        DeployDbTriggerEvent event = new DeploymentCreatedEvent();
+        event.setServiceNameRegex(".+");
+        DeployDbTrigger trigger = new DeployDbTrigger();
+        trigger.setTriggerEventTypes(Collections.singletonList(event));
+        WorkflowJob job = jenkins.getInstance().createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(new CpsFlowDefinition("echo \"Deploying ${env.DDB_SERVICE}\""));
+        job.addTrigger(trigger);
+
+        // When a JSON webhook for a service deployment is posted
+        WebResponse response = submitWebhookRequest("hook_trigger_deployment_started.json");
+
+        // Then a build of the Pipeline should have been scheduled
+        assertEquals(Messages.TriggeredBuilds(1), response.getContentAsString().trim());
+
+        // And the webhook values should have been exported to its environment
+        jenkins.waitUntilNoActivity();
+        jenkins.assertLogContains("Deploying faas", job.getLastBuild());
+    }
+
+    @Test public void buildsTriggeredByTheSameHookShouldShareCauseAndAction() throws Exception {
+        // Given we have multiple jobs configured with the DeployDB trigger
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        FreeStyleProject jobB = configureDeployDbTriggeredJob("b", true);
+
+        // When a JSON webhook for a service deployment is posted
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA, jobB);
+
+        // Then both queued builds should share the same cause and build action, rather than each having a copy
+        Queue.Item buildA = jenkins.getInstance().getQueue().getItem(jobA);
+        Queue.Item buildB = jenkins.getInstance().getQueue().getItem(jobB);
+        assertSame(buildA.getCauses().get(0), buildB.getCauses().get(0));
+        assertSame(buildA.getActions(DeployDbBuildAction.class).get(0),
+                buildB.getActions(DeployDbBuildAction.class).get(0));
+    }
+
     @Test public void hookShouldNotTriggerDisabledMatchingJob() throws Exception {
         // Given we have multiple jobs configured, all of which could be triggered by an incoming webhook
         FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
@@ -143,6 +314,295 @@ public class TriggerEndpointTest {
         assertJobsTriggered(response, jobB, jobC);
     }
 
+    @Test public void repeatedHookShouldNotTriggerFurtherBuilds() throws Exception {
+        // Given a webhook has already triggered a build of a job
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA);
+
+        // When DeployDB delivers the same webhook again
+        WebResponse response = submitWebhookRequest("hook_trigger_deployment_started.json");
+
+        // Then no further builds should have been scheduled
+        assertEquals(Messages.TriggeredBuilds(0), response.getContentAsString().trim());
+        assertEquals(1, jenkins.getInstance().getQueue().getItems().length);
+    }
+
+    @Test public void hookForAnotherDeploymentShouldTriggerAnotherBuild() throws Exception {
+        // Given a webhook has already triggered a build of a job, which is still queued
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA);
+
+        // When a webhook for another deployment of the same service arrives
+        WebResponse response = submitWebhookRequest("hook_trigger_another_deployment_started.json");
+
+        // Then another build should have been queued, rather than being merged with the first
+        assertEquals(Messages.TriggeredBuilds(1), response.getContentAsString().trim());
+        assertEquals(2, jenkins.getInstance().getQueue().getItems().length);
+    }
+
+    @Test public void hookDuringQuietPeriodShouldBeMergedIntoQueuedBuild() throws Exception {
+        // Given a job with a quiet period, which has been triggered by a webhook and is still queued
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        jobA.getTrigger(DeployDbTrigger.class).setQuietPeriod(60);
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA);
+
+        // When a webhook for another deployment of the same service arrives
+        WebResponse response = submitWebhookRequest("hook_trigger_another_deployment_started.json");
+
+        // Then it should have been merged into the queued build
+        assertEquals(Messages.TriggeredBuilds(0), response.getContentAsString().trim());
+        assertEquals(1, jenkins.getInstance().getQueue().getItems().length);
+
+        // And both deployments should be reported on when the build completes
+        Queue.Item item = jenkins.getInstance().getQueue().getItem(jobA);
+        assertArrayEquals(new long[] { 1, 3 }, item.getAction(DeployDbBuildAction.class).getDeploymentIds());
+    }
+
+    @Test public void hookExceedingRateLimitShouldBeIgnored() throws Exception {
+        // Given a job limited to one build per hour for each service, which has already been triggered
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        jobA.getTrigger(DeployDbTrigger.class).setMaxBuildsPerHour(1);
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA);
+        jenkins.getInstance().getQueue().clear();
+
+        // When a webhook for another deployment of the same service arrives
+        WebResponse response = submitWebhookRequest("hook_trigger_another_deployment_started.json");
+
+        // Then no build should have been scheduled
+        assertNoJobsTriggered(response);
+
+        // And the reason should have been counted
+        WebResponse metricsResponse = webClient.goTo("deploydb/metrics", "application/json").getWebResponse();
+        JsonNode metrics = new ObjectMapper().readTree(metricsResponse.getContentAsString());
+        assertEquals(1, metrics.path("deploydb_triggers_suppressed_total").path("rate_limited").asLong());
+    }
+
+    @Test public void retriedHookShouldBeRateLimitedAgainRatherThanIgnoredAsDuplicate() throws Exception {
+        // Given a job limited to one build per hour for each service, whose limit has been reached
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        jobA.getTrigger(DeployDbTrigger.class).setMaxBuildsPerHour(1);
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA);
+        jenkins.getInstance().getQueue().clear();
+        assertNoJobsTriggered(submitWebhookRequest("hook_trigger_another_deployment_started.json"));
+
+        // When the ignored webhook is delivered again
+        assertNoJobsTriggered(submitWebhookRequest("hook_trigger_another_deployment_started.json"));
+
+        // Then it should have been checked against the rate limit again, as no build was scheduled for it before
+        WebResponse metricsResponse = webClient.goTo("deploydb/metrics", "application/json").getWebResponse();
+        JsonNode metrics = new ObjectMapper().readTree(metricsResponse.getContentAsString());
+        assertEquals(2, metrics.path("deploydb_triggers_suppressed_total").path("rate_limited").asLong());
+        assertEquals(0, metrics.path("deploydb_duplicate_triggers_total").asLong());
+    }
+
+    @Test public void asyncHookShouldBeAcceptedAndTriggerMatchingJob() throws Exception {
+        // Given webhooks are processed asynchronously
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setAsyncTriggers(true);
+
+        // And we have a job configured with the DeployDB trigger
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+
+        // When a JSON webhook for a service deployment is posted
+        WebResponse response = submitWebhookRequest("hook_trigger_deployment_started.json");
+
+        // Then an HTTP 202 response should have been returned
+        assertEquals(HTTP_ACCEPTED, response.getStatusCode());
+
+        // And a build of the job should be scheduled shortly afterwards
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!jenkins.getInstance().getQueue().contains(jobA) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(jenkins.getInstance().getQueue().contains(jobA));
+    }
+
+    @Test public void asyncHookShouldBeRejectedWhenQueueIsFull() throws Exception {
+        // Given webhooks are processed asynchronously, by a single thread, with room for one waiting webhook
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setAsyncTriggers(true);
+        config.setTriggerWorkers(1);
+        config.setTriggerQueueCapacity(1);
+
+        // And the processing thread is busy, and the queue is full
+        TriggerProcessor processor = jenkins.getInstance().getExtensionList(TriggerProcessor.class).get(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        processor.submit(new BlockingTask(started, release));
+        started.await();
+        processor.submit(new BlockingTask(new CountDownLatch(1), release));
+
+        try {
+            // When a JSON webhook for a service deployment is posted
+            submitWebhookRequest("hook_trigger_deployment_started.json");
+            fail("Should have thrown 503 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should ask the client to try again later
+            assertEquals(HTTP_UNAVAILABLE, e.getStatusCode());
+            assertEquals(String.valueOf(TriggerEndpoint.RETRY_AFTER_SECONDS),
+                    e.getResponse().getResponseHeaderValue("Retry-After"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test public void asyncBatchShouldBeRejectedWithJsonResponseWhenQueueIsFull() throws Exception {
+        // Given webhooks are processed asynchronously, by a single thread, with room for one waiting webhook
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setAsyncTriggers(true);
+        config.setTriggerWorkers(1);
+        config.setTriggerQueueCapacity(1);
+
+        // And the processing thread is busy, and the queue is full
+        TriggerProcessor processor = jenkins.getInstance().getExtensionList(TriggerProcessor.class).get(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        processor.submit(new BlockingTask(started, release));
+        started.await();
+        processor.submit(new BlockingTask(new CountDownLatch(1), release));
+
+        try {
+            // When a batch of webhooks is posted
+            submitBatchRequest("hook_batch.ndjson");
+            fail("Should have thrown 503 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should ask the client to try again later
+            assertEquals(HTTP_UNAVAILABLE, e.getStatusCode());
+            assertEquals(String.valueOf(TriggerEndpoint.RETRY_AFTER_SECONDS),
+                    e.getResponse().getResponseHeaderValue("Retry-After"));
+
+            // And every event should be reported as not accepted, in the usual JSON form
+            JsonNode events = new ObjectMapper().readTree(e.getResponse().getContentAsString()).path("events");
+            assertEquals(3, events.size());
+            assertEquals(Messages.WebhookQueueFull(), events.path(0).path("error").asText());
+            assertTrue(events.path(2).has("error"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test public void batchShouldTriggerMatchingJobsAndReportEachEvent() throws Exception {
+        // Given we have multiple jobs configured, with and without the DeployDB trigger
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        configureDeployDbTriggeredJob("b", false);
+        FreeStyleProject jobC = configureDeployDbTriggeredJob("c", true);
+
+        // When a batch of webhooks is posted, containing a matching event, an unmatched event, and an unknown event
+        WebResponse response = submitBatchRequest("hook_batch.ndjson");
+
+        // Then builds of only the jobs matching the first event should have been scheduled
+        assertEquals(2, jenkins.getInstance().getQueue().getItems().length);
+        assertTrue(jenkins.getInstance().getQueue().contains(jobA));
+        assertTrue(jenkins.getInstance().getQueue().contains(jobC));
+
+        // And the result of each event should be reported, in order
+        JsonNode events = new ObjectMapper().readTree(response.getContentAsString()).path("events");
+        assertEquals(3, events.size());
+        assertEquals(EventType.DEPLOYMENT_CREATED.getMimeType(), events.path(0).path("type").asText());
+        assertEquals(1, events.path(0).path("id").asLong());
+        assertEquals("faas", events.path(0).path("service").asText());
+        assertEquals(2, events.path(0).path("triggered").asInt());
+        assertEquals(0, events.path(1).path("triggered").asInt());
+        assertTrue(events.path(2).has("error"));
+        assertFalse(events.path(2).has("triggered"));
+    }
+
+    @Test public void batchWithMalformedEventIsRejected() throws Exception {
+        // Given we have a job configured with the DeployDB trigger
+        configureDeployDbTriggeredJob("a", true);
+
+        try {
+            // When a batch of webhooks is posted, which is not valid JSON
+            submitBatchRequest("hook_malformed.json");
+            fail("Batch should have been rejected");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the request should be rejected, without any builds being scheduled
+            assertEquals(HTTP_BAD_REQUEST, e.getStatusCode());
+            assertEquals(0, jenkins.getInstance().getQueue().getItems().length);
+        }
+    }
+
+    @Test public void invalidEventShouldNotAffectTheRestOfTheBatch() throws Exception {
+        // Given we have a job configured with the DeployDB trigger
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+
+        // When a batch of webhooks is posted, where the first event has an invalid ID
+        WebResponse response = submitBatchRequest("hook_batch_invalid_event.ndjson");
+
+        // Then the second event should have triggered a build
+        assertEquals(HTTP_OK, response.getStatusCode());
+        assertTrue(jenkins.getInstance().getQueue().contains(jobA));
+
+        // And the first event should be reported as an error
+        JsonNode events = new ObjectMapper().readTree(response.getContentAsString()).path("events");
+        assertEquals(2, events.size());
+        assertTrue(events.path(0).has("error"));
+        assertEquals(1, events.path(1).path("triggered").asInt());
+    }
+
+    @Test public void batchWithUnsupportedMimeTypeIsRejectedBeforeParsingBody() throws Exception {
+        // Given we have a job configured with the DeployDB trigger
+        configureDeployDbTriggeredJob("a", true);
+
+        try {
+            // When a malformed batch is posted with the MIME type of a single event
+            submitBatchRequest("hook_malformed.json", EventType.DEPLOYMENT_CREATED.getMimeType());
+            fail("Should have thrown 415 error");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the endpoint should reject the request due to its type, rather than its payload
+            assertEquals(HTTP_UNSUPPORTED_TYPE, e.getStatusCode());
+            assertEquals(0, jenkins.getInstance().getQueue().getItems().length);
+        }
+    }
+
+    @Test public void unsignedBatchShouldBeRejectedWhenSecretIsConfigured() throws Exception {
+        // Given a webhook secret has been configured, and a job configured with the DeployDB trigger
+        configureWebhookSecret();
+        configureDeployDbTriggeredJob("a", true);
+
+        try {
+            // When a batch of webhooks is posted without a signature
+            submitBatchRequest("hook_batch.ndjson");
+            fail("Unsigned batch should have been rejected");
+        } catch (FailingHttpStatusCodeException e) {
+            // Then the request should be rejected, without any builds being scheduled
+            assertEquals(HTTP_FORBIDDEN, e.getStatusCode());
+            assertEquals(0, jenkins.getInstance().getQueue().getItems().length);
+        }
+    }
+
+    @Test public void metricsShouldCountReceivedHooksAndScheduledBuilds() throws Exception {
+        // Given a webhook has triggered a build of a job, and an invalid webhook has been rejected
+        FreeStyleProject jobA = configureDeployDbTriggeredJob("a", true);
+        assertJobsTriggered(submitWebhookRequest("hook_trigger_deployment_started.json"), jobA);
+        assertWebhookRequestWithBadMimeTypeIsRejected("application/json");
+
+        // When the metrics are requested
+        WebResponse response = webClient.goTo("deploydb/metrics", "application/json").getWebResponse();
+        JsonNode metrics = new ObjectMapper().readTree(response.getContentAsString());
+
+        // Then they should include the webhooks received and rejected, and the build scheduled
+        assertEquals(1, metrics.path("deploydb_hooks_received_total").path("deployment_created").asLong());
+        assertEquals(1, metrics.path("deploydb_hooks_rejected_total").path("unsupported_type").asLong());
+        assertEquals(1, metrics.path("deploydb_builds_scheduled_total").asLong());
+        assertEquals(1, metrics.path("deploydb_hook_routing_seconds").path("count").asLong());
+        assertEquals(1, metrics.path("deploydb_queue_insertion_seconds").path("count").asLong());
+    }
+
+    @Test public void metricsShouldBeAvailableInPrometheusFormat() throws Exception {
+        // Given a webhook has been received
+        submitWebhookRequest("hook_empty.json");
+
+        // When the metrics are requested in the Prometheus format
+        WebResponse response = webClient.goTo("deploydb/metrics?format=prometheus", "text/plain").getWebResponse();
+        String metrics = response.getContentAsString();
+
+        // Then the webhook should have been counted, and its parse time recorded
+        assertTrue(metrics.contains("deploydb_hooks_received_total{type=\"deployment_created\"} 1"));
+        assertTrue(metrics.contains("# TYPE deploydb_hook_parse_seconds summary"));
+        assertTrue(metrics.contains("deploydb_hook_parse_seconds_count 1"));
+    }
+
     /** Sends a JSON webhook payload with the given Content-Type header value and asserts its rejection. */
     private void assertWebhookRequestWithBadMimeTypeIsRejected(String mimeType) throws IOException {
         try {
@@ -182,14 +642,69 @@ public class TriggerEndpointTest {
      * @param shouldMatchHooks {@code true} iff this job should always be triggered by incoming DeployDB hooks.
      */
     private FreeStyleProject configureDeployDbTriggeredJob(String name, boolean shouldMatchHooks) throws Exception {
-        DeployDbTrigger trigger = mock(DeployDbTrigger.class);
-        when(trigger.accepts(any(AbstractProject.class), any(TriggerWebhook.class))).thenReturn(shouldMatchHooks);
+        DeployDbTriggerEvent event = new DeploymentCreatedEvent();
+        event.setServiceNameRegex(shouldMatchHooks ? ".+" : "some-other-service");
+
+        DeployDbTrigger trigger = new DeployDbTrigger();
+        trigger.setTriggerEventTypes(Collections.singletonList(event));
 
         FreeStyleProject job = jenkins.createFreeStyleProject(name);
         job.addTrigger(trigger);
         return job;
     }
 
+    /** Task which signals that it has started, then blocks until released. */
+    static class BlockingTask implements Runnable {
+
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        BlockingTask(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private void configureWebhookSecret() {
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setWebhookSecret(Secret.fromString(SECRET));
+    }
+
+    /** Submits the contents of the given file as a webhook request, signed with the given secret. */
+    private WebResponse submitSignedWebhookRequest(String filename, String secret) throws IOException {
+        String body = IOUtils.toString(getClass().getResourceAsStream(filename), Charsets.UTF_8);
+        WebRequestSettings req = new WebRequestSettings(webClient.createCrumbedUrl(ENDPOINT), POST);
+        req.setAdditionalHeader("Content-Type", EventType.DEPLOYMENT_CREATED.getMimeType());
+        String signature = new WebhookSignature(secret).sign(body.getBytes(Charsets.UTF_8));
+        req.setAdditionalHeader(WebhookSignature.HEADER, signature);
+        req.setRequestBody(body);
+        return webClient.getPage(req).getWebResponse();
+    }
+
+    /** Submits the contents of the given file as a batch of webhooks, in newline-delimited JSON. */
+    private WebResponse submitBatchRequest(String filename) throws IOException {
+        return submitBatchRequest(filename, "application/x-ndjson");
+    }
+
+    /** Submits the contents of the given file as a batch of webhooks, with the given Content-Type header. */
+    private WebResponse submitBatchRequest(String filename, String contentType) throws IOException {
+        WebRequestSettings req = new WebRequestSettings(webClient.createCrumbedUrl(BATCH_ENDPOINT), POST);
+        req.setAdditionalHeader("Content-Type", contentType);
+        req.setRequestBody(IOUtils.toString(getClass().getResourceAsStream(filename), Charsets.UTF_8));
+        return webClient.getPage(req).getWebResponse();
+    }
+
     private WebResponse submitWebhookRequest(String filename) throws IOException {
         return submitWebhookRequest(filename, EventType.DEPLOYMENT_CREATED.getMimeType());
     }
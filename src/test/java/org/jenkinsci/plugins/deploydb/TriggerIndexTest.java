@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.deploydb;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.hamcrest.Matchers;
+import org.jenkinsci.plugins.deploydb.model.events.DeployDbTriggerEvent;
+import org.jenkinsci.plugins.deploydb.model.events.DeploymentStartedEvent;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_COMPLETED;
+import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_STARTED;
+import static org.junit.Assert.assertThat;
+
+public class TriggerIndexTest {
+
+    @Rule public final JenkinsRule jenkins = new JenkinsRule();
+
+    private TriggerIndex index;
+
+    @Before
+    public void setUp() {
+        index = jenkins.getInstance().getExtensionList(TriggerIndex.class).get(0);
+    }
+
+    @Test public void jobWithoutTriggerShouldNotBeIndexed() throws Exception {
+        // Given a job without the DeployDB trigger
+        jenkins.createFreeStyleProject("a");
+
+        // Then it should not be indexed
+        assertThat(index.getJobs(DEPLOYMENT_STARTED), is(empty()));
+    }
+
+    @Test public void jobWithTriggerShouldBeIndexedByEventType() throws Exception {
+        // When a job is configured with a trigger for "deployment started" events
+        FreeStyleProject job = createTriggeredJob("a");
+
+        // Then it should be indexed for that event type only
+        assertThat(index.getJobs(DEPLOYMENT_STARTED), Matchers.<Job<?, ?>>contains(job));
+        assertThat(index.getJobs(DEPLOYMENT_COMPLETED), is(empty()));
+    }
+
+    @Test public void findingJobsShouldMatchServiceName() throws Exception {
+        // Given a job configured with a trigger for the "foo" service
+        FreeStyleProject job = createTriggeredJob("a");
+
+        // Then it should only be found for matching event types and service names
+        assertThat(index.findJobs(DEPLOYMENT_STARTED, "FOO"), Matchers.<Job<?, ?>>contains(job));
+        assertThat(index.findJobs(DEPLOYMENT_STARTED, "bar"), is(empty()));
+        assertThat(index.findJobs(DEPLOYMENT_COMPLETED, "foo"), is(empty()));
+    }
+
+    @Test public void renamedJobShouldRemainIndexed() throws Exception {
+        // Given an indexed job
+        FreeStyleProject job = createTriggeredJob("a");
+
+        // When it is renamed
+        job.renameTo("b");
+
+        // Then it should still be indexed exactly once
+        assertThat(index.getJobs(DEPLOYMENT_STARTED), Matchers.<Job<?, ?>>contains(job));
+    }
+
+    @Test public void deletedJobShouldBeRemovedFromIndex() throws Exception {
+        // Given an indexed job
+        FreeStyleProject job = createTriggeredJob("a");
+
+        // When it is deleted
+        job.delete();
+
+        // Then it should no longer be indexed
+        assertThat(index.getJobs(DEPLOYMENT_STARTED), is(empty()));
+    }
+
+    @Test public void jobWithRemovedTriggerShouldBeRemovedFromIndex() throws Exception {
+        // Given an indexed job
+        FreeStyleProject job = createTriggeredJob("a");
+
+        // When its DeployDB trigger is removed
+        job.removeTrigger(jenkins.getInstance().getDescriptorByType(DeployDbTrigger.DescriptorImpl.class));
+
+        // Then it should no longer be indexed
+        assertThat(index.getJobs(DEPLOYMENT_STARTED), is(empty()));
+    }
+
+    @Test public void rebuildingIndexShouldFindExistingJobs() throws Exception {
+        // Given an indexed job
+        FreeStyleProject job = createTriggeredJob("a");
+
+        // When the index is rebuilt from scratch, as happens at startup
+        index.rebuild();
+
+        // Then the job should still be indexed
+        assertThat(index.getJobs(DEPLOYMENT_STARTED), Matchers.<Job<?, ?>>contains(job));
+    }
+
+    @Test public void findingJobsInParallelShouldReturnJobsInOrder() throws Exception {
+        // Given enough jobs with service name regexes that they will be evaluated in parallel
+        DeployDbConfig config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        config.setParallelMatchThreshold(1);
+        List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+        for (int i = 0; i < ServiceNameMatcher.MIN_CHUNK_SIZE * 2; i++) {
+            jobs.add(createTriggeredJob(String.format("job-%03d", i), ".*-prod"));
+        }
+
+        // Then all jobs should be found, ordered by name
+        assertThat(index.findJobs(DEPLOYMENT_STARTED, "foo-prod"), is(jobs));
+        assertThat(index.findJobs(DEPLOYMENT_STARTED, "foo-test"), is(empty()));
+    }
+
+    @Test public void parallelEvaluationShouldRunWithCallersSecurityContext() throws Exception {
+        // Given an executor created while impersonating the system user, as when finding jobs for a webhook
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        Executor executor;
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            executor = TriggerIndex.inCurrentSecurityContext(threads);
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+
+        // When it runs a task on another thread
+        FutureTask<Authentication> task = new FutureTask<Authentication>(new Callable<Authentication>() {
+            @Override
+            public Authentication call() {
+                return Jenkins.getAuthentication();
+            }
+        });
+        executor.execute(task);
+
+        // Then the task should also run as the system user
+        assertThat(task.get(), is(ACL.SYSTEM));
+        threads.shutdown();
+    }
+
+    /** @return A new job, configured with a DeployDB trigger for "deployment started" events. */
+    private FreeStyleProject createTriggeredJob(String name) throws Exception {
+        return createTriggeredJob(name, "foo");
+    }
+
+    /** @return A new job, configured with a DeployDB trigger for "deployment started" events of the given services. */
+    private FreeStyleProject createTriggeredJob(String name, String serviceNameRegex) throws Exception {
+        DeployDbTriggerEvent event = new DeploymentStartedEvent();
+        event.setServiceNameRegex(serviceNameRegex);
+
+        DeployDbTrigger trigger = new DeployDbTrigger();
+        trigger.setTriggerEventTypes(Collections.singletonList(event));
+
+        FreeStyleProject job = jenkins.createFreeStyleProject(name);
+        job.addTrigger(trigger);
+        return job;
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.deploydb;
+
+import org.jenkinsci.plugins.deploydb.TriggerEndpointTest.BlockingTask;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TriggerProcessorTest {
+
+    @Rule public final JenkinsRule jenkins = new JenkinsRule();
+
+    private DeployDbConfig config;
+    private TriggerProcessor processor;
+
+    @Before
+    public void setUp() {
+        config = jenkins.getInstance().getExtensionList(DeployDbConfig.class).get(0);
+        processor = jenkins.getInstance().getExtensionList(TriggerProcessor.class).get(0);
+    }
+
+    @Test public void submittedTasksShouldBeRunWithUniqueReceipts() throws Exception {
+        // When multiple tasks are submitted
+        final CountDownLatch done = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        String first = processor.submit(task);
+        String second = processor.submit(task);
+
+        // Then each should have a distinct receipt
+        assertThat(first, is(notNullValue()));
+        assertThat(second, is(not(first)));
+
+        // And each should be run
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test public void tasksShouldBeRejectedOnceQueueIsFull() throws Exception {
+        // Given a single processing thread, with room for two waiting tasks
+        config.setTriggerWorkers(1);
+        config.setTriggerQueueCapacity(2);
+
+        // When the processing thread is busy
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            processor.submit(new BlockingTask(started, release));
+            started.await();
+
+            // Then tasks should be accepted until the queue is full
+            assertThat(processor.submit(new BlockingTask(new CountDownLatch(1), release)), is(notNullValue()));
+            assertThat(processor.submit(new BlockingTask(new CountDownLatch(1), release)), is(notNullValue()));
+            assertThat(processor.getQueueDepth(), is(2));
+
+            // And further tasks should be rejected
+            assertThat(processor.submit(new BlockingTask(new CountDownLatch(1), release)), is(nullValue()));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test public void waitingTasksShouldBeRunAtShutdown() throws Exception {
+        // Given a task waiting to be processed
+        final CountDownLatch done = new CountDownLatch(1);
+        config.setTriggerWorkers(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        processor.submit(new BlockingTask(new CountDownLatch(1), release));
+        processor.submit(new BlockingTask(done, new CountDownLatch(0)));
+
+        // When Jenkins shuts down
+        release.countDown();
+        processor.shutdown();
+
+        // Then the waiting task should have been run
+        assertThat(done.getCount(), is(0L));
+    }
+
+}
@@ -1,10 +1,11 @@
 package org.jenkinsci.plugins.deploydb;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jenkinsci.plugins.deploydb.model.EventType;
 import org.jenkinsci.plugins.deploydb.model.TriggerWebhook;
+import org.jenkinsci.plugins.deploydb.model.TriggerWebhookParser;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -26,13 +27,17 @@ public class Util {
 
     /** @return A request webhook object built from the contents of the given file. */
     public static TriggerWebhook getWebhook(String filename) throws IOException {
-        return new ObjectMapper().readValue(Util.class.getResourceAsStream(filename), TriggerWebhook.class);
+        InputStream in = Util.class.getResourceAsStream(filename);
+        try {
+            return new TriggerWebhookParser().parse(in);
+        } finally {
+            in.close();
+        }
     }
 
     /** @return A request webhook object built from the contents of the given file, with the given type. */
     public static TriggerWebhook getWebhook(String filename, EventType type) throws IOException {
-        TriggerWebhook hook =
-                new ObjectMapper().readValue(Util.class.getResourceAsStream(filename), TriggerWebhook.class);
+        TriggerWebhook hook = getWebhook(filename);
         hook.setType(type.getMimeType());
         return hook;
     }
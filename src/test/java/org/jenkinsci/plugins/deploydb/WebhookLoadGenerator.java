@@ -0,0 +1,254 @@
+package org.jenkinsci.plugins.deploydb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.deploydb.model.EventType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Sends webhooks to the trigger endpoint from many threads at once, recording how long each request takes, and when
+ * each was sent, so that the time until its builds are queued can be measured.
+ * <p/>
+ * Webhooks are either generated from a sample payload, or replayed from a capture file. Capture files contain one
+ * webhook per line, as a JSON object giving the Content-Type and the payload, e.g.:
+ * <pre>{"type": "application/vnd.deploydb.deploymentstarted.v1+json", "event": {"id": 1, "service": "faas"}}</pre>
+ */
+public class WebhookLoadGenerator {
+
+    /** Highest latency recorded, in microseconds. */
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final URL endpoint;
+    private final int threads;
+
+    /** Time each webhook was sent, in nanoseconds, by deployment ID. */
+    private final Map<Long, Long> sendTimes = new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * @param endpoint URL of the trigger endpoint.
+     * @param threads Number of webhooks to send at once.
+     */
+    public WebhookLoadGenerator(URL endpoint, int threads) {
+        this.endpoint = endpoint;
+        this.threads = threads;
+    }
+
+    /**
+     * Generates webhooks for random services, with unique deployment IDs, cycling through the event types.
+     *
+     * @param count Number of webhooks to generate.
+     * @param services Number of services, named {@code service-0} to {@code service-<n-1>}.
+     * @param firstId Deployment ID of the first webhook; subsequent webhooks have consecutive IDs.
+     */
+    public static List<Webhook> generate(int count, int services, long firstId) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final ObjectNode template = (ObjectNode) mapper.readTree(
+                WebhookLoadGenerator.class.getResourceAsStream("hook_trigger_deployment_started.json"));
+        final EventType[] types = EventType.values();
+        final Random random = new Random(firstId);
+
+        final List<Webhook> hooks = new ArrayList<Webhook>(count);
+        for (int i = 0; i < count; i++) {
+            final ObjectNode payload = template.deepCopy();
+            payload.put("id", firstId + i);
+            payload.put("service", "service-" + random.nextInt(services));
+            hooks.add(new Webhook(types[i % types.length].getMimeType(), firstId + i,
+                    mapper.writeValueAsBytes(payload)));
+        }
+        return hooks;
+    }
+
+    /** Reads the webhooks from a capture file, as described above. */
+    public static List<Webhook> replay(File capture) throws IOException {
+        return replay(new FileInputStream(capture));
+    }
+
+    /** Reads the webhooks from a capture stream, as described above, and closes it. */
+    public static List<Webhook> replay(InputStream capture) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final List<Webhook> hooks = new ArrayList<Webhook>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(capture, UTF_8));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final JsonNode envelope = mapper.readTree(line);
+                final JsonNode event = envelope.path("event");
+                hooks.add(new Webhook(envelope.path("type").asText(), event.path("id").asLong(),
+                        mapper.writeValueAsBytes(event)));
+            }
+        } finally {
+            reader.close();
+        }
+        return hooks;
+    }
+
+    /**
+     * Sends the given webhooks, spread across the threads, and waits for all responses.
+     *
+     * @return Statistics about the requests sent.
+     */
+    public Result send(final List<Webhook> hooks) throws Exception {
+        final Histogram latencies = new Histogram(MAX_LATENCY_MICROS, 3);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+        try {
+            final List<Future<?>> senders = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                senders.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int index; (index = next.getAndIncrement()) < hooks.size(); ) {
+                            final Webhook hook = hooks.get(index);
+                            final long sent = System.nanoTime();
+                            sendTimes.put(hook.getDeploymentId(), sent);
+                            if (!send(hook)) {
+                                failures.incrementAndGet();
+                            }
+                            final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent);
+                            synchronized (latencies) {
+                                latencies.recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> sender : senders) {
+                sender.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Result(hooks.size(), failures.get(), System.nanoTime() - start, latencies);
+    }
+
+    /** @return Whether the endpoint responded with a successful status. */
+    private boolean send(Webhook hook) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", hook.getContentType());
+            connection.setFixedLengthStreamingMode(hook.getBody().length);
+            final OutputStream out = connection.getOutputStream();
+            try {
+                out.write(hook.getBody());
+            } finally {
+                out.close();
+            }
+
+            final int status = connection.getResponseCode();
+            final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                // Read the response fully, so the connection can be reused
+                IOUtils.toByteArray(in);
+                in.close();
+            }
+            return status < 400;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The time at which the webhook with the given deployment ID was sent, as per {@link System#nanoTime},
+     *         or {@code null} if it has not been sent.
+     */
+    public Long getSendTime(long deploymentId) {
+        return sendTimes.get(deploymentId);
+    }
+
+    /** A webhook to be sent. */
+    public static final class Webhook {
+
+        private final String contentType;
+        private final long deploymentId;
+        private final byte[] body;
+
+        Webhook(String contentType, long deploymentId, byte[] body) {
+            this.contentType = contentType;
+            this.deploymentId = deploymentId;
+            this.body = body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getDeploymentId() {
+            return deploymentId;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+    }
+
+    /** Statistics about the webhooks sent by a single call to {@link #send}. */
+    public static final class Result {
+
+        private final int sent;
+        private final int failed;
+        private final long elapsedNanos;
+        private final Histogram latencies;
+
+        Result(int sent, int failed, long elapsedNanos, Histogram latencies) {
+            this.sent = sent;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /** @return Webhooks sent per second. */
+        public double getThroughput() {
+            return sent / (elapsedNanos / 1e9);
+        }
+
+        /** @return The given percentile of request latency, in milliseconds. */
+        public double getLatencyMillis(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%d webhooks (%d failed) in %.1f s: %.0f/s, latency p50 %.1f ms, "
+                    + "p99 %.1f ms", sent, failed, elapsedNanos / 1e9, getThroughput(), getLatencyMillis(50),
+                    getLatencyMillis(99));
+        }
+
+    }
+
+}
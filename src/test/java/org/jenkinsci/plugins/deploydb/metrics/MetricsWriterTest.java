@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jenkinsci.plugins.deploydb.model.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MetricsWriterTest {
+
+    private PipelineMetrics metrics;
+
+    @Before
+    public void setUp() {
+        // Given some webhooks have been received and routed, and some reports delivered
+        metrics = new PipelineMetrics();
+        metrics.recordHookReceived(EventType.DEPLOYMENT_STARTED);
+        metrics.recordHookReceived(EventType.DEPLOYMENT_STARTED);
+        metrics.recordHookReceived(EventType.PROMOTION_COMPLETED);
+        metrics.recordHookRejected(PipelineMetrics.Rejection.MALFORMED);
+        metrics.recordBuildsScheduled(3, 1);
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordHookRouted(TimeUnit.MILLISECONDS.toNanos(i), i);
+        }
+        metrics.recordReportsDelivered(5);
+    }
+
+    @Test public void jsonShouldGroupLabelledCountersByName() throws Exception {
+        // When the metrics are written as JSON
+        JsonNode json = writeJson();
+
+        // Then each labelled counter should be keyed by its label value
+        assertThat(json.path("deploydb_hooks_received_total").path("deployment_started").asLong(), is(2L));
+        assertThat(json.path("deploydb_hooks_received_total").path("promotion_completed").asLong(), is(1L));
+        assertThat(json.path("deploydb_hooks_received_total").path("deployment_created").asLong(), is(0L));
+        assertThat(json.path("deploydb_hooks_rejected_total").path("malformed").asLong(), is(1L));
+
+        // And unlabelled counters should be top-level values
+        assertThat(json.path("deploydb_builds_scheduled_total").asLong(), is(3L));
+        assertThat(json.path("deploydb_duplicate_triggers_total").asLong(), is(1L));
+        assertThat(json.path("deploydb_reports_delivered_total").asLong(), is(5L));
+    }
+
+    @Test public void jsonShouldSummariseHistogramsInDisplayUnits() throws Exception {
+        // When the metrics are written as JSON
+        JsonNode routing = writeJson().path("deploydb_hook_routing_seconds");
+
+        // Then the routing times should be summarised in seconds, to within the histogram's precision
+        assertThat(routing.path("count").asLong(), is(100L));
+        assertThat(routing.path("p50").asDouble(), is(closeTo(0.050, 0.001)));
+        assertThat(routing.path("p99").asDouble(), is(closeTo(0.099, 0.001)));
+        assertThat(routing.path("max").asDouble(), is(closeTo(0.100, 0.001)));
+    }
+
+    @Test public void histogramsShouldAccumulateAcrossReads() throws Exception {
+        // Given the metrics have already been read once
+        writeJson();
+
+        // When more values are recorded, and the metrics are read again
+        metrics.recordHookRouted(TimeUnit.MILLISECONDS.toNanos(1), 1);
+
+        // Then all values recorded so far should be included
+        assertThat(writeJson().path("deploydb_hook_candidate_jobs").path("count").asLong(), is(101L));
+    }
+
+    @Test public void prometheusOutputShouldIncludeCountersAndSummaries() {
+        // When the metrics are written in the Prometheus format
+        StringWriter out = new StringWriter();
+        MetricsWriter.writePrometheus(metrics, out);
+        String text = out.toString();
+
+        // Then each metric should be described once, and each counter should be labelled as appropriate
+        assertThat(text, containsString("# TYPE deploydb_hooks_received_total counter\n"
+                + "deploydb_hooks_received_total{type=\"deployment_created\"} 0\n"
+                + "deploydb_hooks_received_total{type=\"deployment_started\"} 2\n"));
+        assertThat(text, containsString("deploydb_builds_scheduled_total 3\n"));
+        assertThat(text, containsString("deploydb_report_queue_depth 0\n"));
+
+        // And histograms should be exposed as summaries
+        assertThat(text, containsString("# TYPE deploydb_hook_candidate_jobs summary\n"
+                + "deploydb_hook_candidate_jobs{quantile=\"0.5\"} 50.0\n"));
+        assertThat(text, containsString("deploydb_hook_candidate_jobs_sum 5050.0\n"));
+        assertThat(text, containsString("deploydb_hook_candidate_jobs_count 100\n"));
+    }
+
+    // Helper methods
+
+    private JsonNode writeJson() throws Exception {
+        StringWriter out = new StringWriter();
+        MetricsWriter.writeJson(metrics, out);
+        return new ObjectMapper().readTree(out.toString());
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.deploydb.metrics;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.jenkinsci.plugins.deploydb.metrics.ValueHistogram.INTERVAL_NANOS;
+import static org.jenkinsci.plugins.deploydb.metrics.ValueHistogram.WINDOW_INTERVALS;
+import static org.junit.Assert.assertThat;
+
+public class ValueHistogramTest {
+
+    private final ValueHistogram histogram = new ValueHistogram("test", "Test", 1000, 1);
+
+    @Test public void recentValuesShouldBeKeptForTheWholeWindow() {
+        // Given a value was recorded and read
+        final long start = System.nanoTime();
+        histogram.record(100);
+        histogram.snapshot(start);
+
+        // When it is read again just before the window has passed
+        ValueHistogram.Snapshot snapshot = histogram.snapshot(start + INTERVAL_NANOS * (WINDOW_INTERVALS - 1));
+
+        // Then it should still be included in the recent values
+        assertThat(snapshot.getRecent().getTotalCount(), is(1L));
+        assertThat(snapshot.getRecent().getMaxValue(), is(100L));
+    }
+
+    @Test public void oldValuesShouldLeaveTheWindowButStayCounted() {
+        // Given a large value was recorded and read
+        final long start = System.nanoTime();
+        histogram.record(1000);
+        histogram.snapshot(start);
+
+        // When a small value is recorded and read once the window has passed
+        histogram.record(10);
+        ValueHistogram.Snapshot snapshot = histogram.snapshot(start + INTERVAL_NANOS * (WINDOW_INTERVALS + 1));
+
+        // Then only the small value should remain in the recent values
+        assertThat(snapshot.getRecent().getTotalCount(), is(1L));
+        assertThat(snapshot.getRecent().getMaxValue(), is(10L));
+
+        // And both values should still be included in the count and sum
+        assertThat(snapshot.getCount(), is(2L));
+        assertThat(snapshot.getSum(), is(closeTo(1010, 10)));
+    }
+
+}
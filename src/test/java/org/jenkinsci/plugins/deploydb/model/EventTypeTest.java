@@ -18,6 +18,11 @@ public class EventTypeTest {
         assertThat(forMimeType("foo"), is(nullValue()));
         assertThat(forMimeType("application/json"), is(nullValue()));
         assertThat(forMimeType("application/vnd.deploydb.deploymentcreated.v0+xml"), is(nullValue()));
+        assertThat(forMimeType("application/vnd.deploydb.deploymentcreated.v0+json"), is(nullValue()));
+        assertThat(forMimeType("application/vnd.deploydb.deploymentcreated.v+json"), is(nullValue()));
+        assertThat(forMimeType("application/vnd.deploydb.deploymentcreated.v1x+json"), is(nullValue()));
+        assertThat(forMimeType("application/vnd.deploydb.unknown.v1+json"), is(nullValue()));
+        assertThat(forMimeType("application/vnd.deploydb.v1+json"), is(nullValue()));
     }
 
     @Test public void validMimeTypesMatch() {
@@ -26,4 +31,20 @@ public class EventTypeTest {
         }
     }
 
+    @Test public void mimeTypesShouldMatchRegardlessOfCaseAndParameters() {
+        assertThat(forMimeType("APPLICATION/VND.DEPLOYDB.DEPLOYMENTCREATED.V1+JSON"),
+                is(EventType.DEPLOYMENT_CREATED));
+        assertThat(forMimeType("application/vnd.deploydb.deploymentstarted.v1+json; charset=UTF-8"),
+                is(EventType.DEPLOYMENT_STARTED));
+        assertThat(forMimeType(" application/vnd.deploydb.promotioncompleted.v1+json ;charset=utf-8"),
+                is(EventType.PROMOTION_COMPLETED));
+    }
+
+    @Test public void laterVersionsOfMimeTypesShouldMatch() {
+        assertThat(forMimeType("application/vnd.deploydb.deploymentcompleted.v2+json"),
+                is(EventType.DEPLOYMENT_COMPLETED));
+        assertThat(forMimeType("application/vnd.deploydb.deploymentcreated.v10+json; charset=utf-8"),
+                is(EventType.DEPLOYMENT_CREATED));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import hudson.util.XStream2;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.jenkinsci.plugins.deploydb.Util.getWebhook;
+import static org.junit.Assert.assertThat;
+
+public class TriggerWebhookParserTest {
+
+    @Test public void idAndServiceShouldBeReadDirectly() throws Exception {
+        // When a payload is parsed
+        TriggerWebhook hook = getWebhook("hook_trigger_deployment_started.json");
+
+        // Then the ID and service should be available directly, and not as other values
+        assertThat(hook.getId(), is(1L));
+        assertThat(hook.getService(), is("faas"));
+        assertThat(hook.getOtherValues().containsKey("id"), is(false));
+        assertThat(hook.getOtherValues().containsKey("service"), is(false));
+    }
+
+    @Test public void nestedObjectsShouldBeFlattened() throws Exception {
+        // When a payload with nested objects is parsed
+        TriggerWebhook hook = getWebhook("hook_trigger_nested.json");
+
+        // Then the nested keys should be flattened, in the order they appeared
+        assertThat(hook.getOtherValues().keySet(), contains("fooBar_id", "fooBar_child_nestedItem_parentId",
+                "fooBar_child_nestedItem_nested", "fooBar_child_nestedItem_leaf"));
+        assertThat(hook.getOtherValues().get("fooBar_child_nestedItem_leaf"), is("true"));
+    }
+
+    @Test public void arraysShouldBeKeptAsSingleValue() throws Exception {
+        // When a payload with arrays is parsed
+        TriggerWebhook hook = parse("{\"tags\": [\"a\", 1, 2.50, null, [true], {\"k\": \"v\", \"n\": {}}]}");
+
+        // Then each array should be rendered as it was when payloads were stored as nested maps and lists
+        assertThat(hook.getOtherValues().get("tags"), is("[a, 1, 2.5, null, [true], {k=v, n={}}]"));
+    }
+
+    @Test public void missingIdAndServiceShouldHaveDefaults() throws Exception {
+        TriggerWebhook hook = parse("{}");
+        assertThat(hook.getId(), is(0L));
+        assertThat(hook.getService(), is(nullValue()));
+    }
+
+    @Test public void stringIdShouldBeAccepted() throws Exception {
+        assertThat(parse("{\"id\": \"42\"}").getId(), is(42L));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void nonNumericIdShouldBeRejected() throws Exception {
+        parse("{\"id\": \"forty-two\"}");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void structuredServiceShouldBeRejected() throws Exception {
+        parse("{\"service\": {\"name\": \"faas\"}}");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void nonObjectPayloadShouldBeRejected() throws Exception {
+        parse("[1, 2, 3]");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void emptyPayloadShouldBeRejected() throws Exception {
+        parse("");
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void payloadLargerThanLimitShouldBeRejected() throws Exception {
+        new TriggerWebhookParser(10, 10, 10).parse(stream("{\"service\": \"some-service\"}"));
+    }
+
+    @Test public void payloadExactlyAtLimitShouldBeAccepted() throws Exception {
+        final String json = "{\"id\": 1}";
+        assertThat(new TriggerWebhookParser(json.length(), 1, 1).parse(stream(json)).getId(), is(1L));
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void payloadNestedDeeperThanLimitShouldBeRejected() throws Exception {
+        new TriggerWebhookParser(1024, 2, 10).parse(stream("{\"a\": {\"b\": {\"c\": 1}}}"));
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void arraysNestedDeeperThanLimitShouldBeRejected() throws Exception {
+        new TriggerWebhookParser(1024, 2, 10).parse(stream("{\"a\": [[1]]}"));
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void payloadWithMoreFieldsThanLimitShouldBeRejected() throws Exception {
+        new TriggerWebhookParser(1024, 10, 3).parse(stream("{\"a\": 1, \"b\": [1, 2]}"));
+    }
+
+    @Test public void hookPersistedByPreviousVersionShouldBeMigrated() {
+        // Given a hook as persisted by a previous version, with other values stored as nested maps
+        String xml = "<org.jenkinsci.plugins.deploydb.model.TriggerWebhook>"
+                + "<eventType>DEPLOYMENT_STARTED</eventType><id>1</id><service>faas</service>"
+                + "<map><entry><string>artifact</string><linked-hash-map>"
+                + "<entry><string>id</string><int>2</int></entry>"
+                + "</linked-hash-map></entry></map>"
+                + "</org.jenkinsci.plugins.deploydb.model.TriggerWebhook>";
+
+        // When it is loaded
+        TriggerWebhook hook = (TriggerWebhook) new XStream2().fromXML(xml);
+
+        // Then its other values should have been flattened
+        Map<String, String> values = hook.getOtherValues();
+        assertThat(values.keySet(), contains("artifact_id"));
+        assertThat(values.get("artifact_id"), is("2"));
+        assertThat(hook.getEventType(), is(EventType.DEPLOYMENT_STARTED));
+    }
+
+    @Test public void batchShouldBeReadFromNewlineDelimitedJson() throws Exception {
+        // When a batch of newline-delimited envelopes is parsed
+        List<TriggerWebhookParser.Envelope> batch = parseBatch(
+                "{\"type\": \"a\", \"event\": {\"id\": 1, \"service\": \"faas\"}}\n"
+                + "{\"event\": {\"id\": 2, \"extra\": {\"x\": 1}}, \"type\": \"b\", \"sentAt\": [1, 2]}\n");
+
+        // Then each event should have been read, along with its type, regardless of field order
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getType(), is("a"));
+        assertThat(batch.get(0).getHook().getService(), is("faas"));
+        assertThat(batch.get(1).getType(), is("b"));
+        assertThat(batch.get(1).getHook().getId(), is(2L));
+        assertThat(batch.get(1).getHook().getOtherValues().get("extra_x"), is("1"));
+    }
+
+    @Test public void batchShouldBeReadFromJsonArray() throws Exception {
+        // When a JSON array of envelopes is parsed, one of which has no event
+        List<TriggerWebhookParser.Envelope> batch = parseBatch(
+                "[{\"type\": \"a\", \"event\": {\"id\": 1}}, {\"type\": \"b\"}]");
+
+        // Then each envelope should have been read, in order
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getHook().getId(), is(1L));
+        assertThat(batch.get(1).getType(), is("b"));
+        assertThat(batch.get(1).getHook(), is(nullValue()));
+    }
+
+    @Test public void emptyBatchShouldBeAccepted() throws Exception {
+        assertThat(parseBatch("").size(), is(0));
+        assertThat(parseBatch("[]").size(), is(0));
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void batchWithTooManyEventsShouldBeRejected() throws Exception {
+        new TriggerWebhookParser().parseBatch(stream("{\"event\": {}} {\"event\": {}} {\"event\": {}}"), 2, 1024);
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void batchLargerThanLimitShouldBeRejected() throws Exception {
+        // Each of these events is well within the payload limits, but together they exceed the batch size limit
+        new TriggerWebhookParser().parseBatch(stream("{\"event\": {}} {\"event\": {}} {\"event\": {}}"), 100, 32);
+    }
+
+    @Test public void eventsExceedingPayloadLimitsShouldBeRejectedIndividually() throws Exception {
+        // Given payload limits which are smaller than some of the events in a batch, but not the whole batch
+        TriggerWebhookParser parser = new TriggerWebhookParser(32, 2, 10);
+
+        // When the batch is parsed
+        List<TriggerWebhookParser.Envelope> batch = parser.parseBatch(stream(
+                "{\"event\": {\"id\": 1, \"description\": \"Much longer than the limit\"}, \"type\": \"a\"}\n"
+                + "{\"event\": {\"a\": {\"b\": {\"c\": [1]}}, \"x\": 1}}\n"
+                + "{\"event\": {\"id\": 3}}"), 100, 1024);
+
+        // Then the events exceeding the limits should each have an error, and the following events should be read
+        assertThat(batch.size(), is(3));
+        assertThat(batch.get(0).getType(), is("a"));
+        assertThat(batch.get(0).getHook(), is(nullValue()));
+        assertThat(batch.get(0).getError(), is("Event is larger than 32 bytes."));
+        assertThat(batch.get(0).isTooLarge(), is(true));
+        assertThat(batch.get(1).getHook(), is(nullValue()));
+        assertThat(batch.get(1).isTooLarge(), is(true));
+        assertThat(batch.get(2).getHook().getId(), is(3L));
+        assertThat(batch.get(2).getError(), is(nullValue()));
+    }
+
+    @Test public void eventsWithInvalidValuesShouldBeRejectedIndividually() throws Exception {
+        // When a batch is parsed, containing an event with an invalid ID
+        List<TriggerWebhookParser.Envelope> batch = parseBatch(
+                "[{\"event\": {\"id\": \"one\", \"nested\": {\"x\": [1]}}}, {\"event\": {\"id\": 2}}]");
+
+        // Then that event should have an error, without affecting the other event
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getHook(), is(nullValue()));
+        assertThat(batch.get(0).getError(), is("Expected a numeric 'id' value."));
+        assertThat(batch.get(0).isTooLarge(), is(false));
+        assertThat(batch.get(1).getHook().getId(), is(2L));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void truncatedBatchShouldBeRejected() throws Exception {
+        parseBatch("[{\"type\": \"a\", \"event\": {\"id\": 1}}");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void batchOfNonObjectsShouldBeRejected() throws Exception {
+        parseBatch("[1, 2]");
+    }
+
+    private static List<TriggerWebhookParser.Envelope> parseBatch(String json) throws IOException {
+        return new TriggerWebhookParser().parseBatch(stream(json), 100, 1024 * 1024);
+    }
+
+    private static TriggerWebhook parse(String json) throws IOException {
+        return new TriggerWebhookParser().parse(stream(json));
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(UTF_8));
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.deploydb.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WebhookSignatureTest {
+
+    private static final String SECRET = "It's a Secret to Everybody";
+
+    private static final byte[] PAYLOAD = "{\"id\" : 1, \"service\" : \"faas\"}\n".getBytes(UTF_8);
+
+    private final WebhookSignature signature = new WebhookSignature(SECRET);
+
+    @Test public void signatureShouldMatchKnownValue() {
+        // Given a payload, and the value calculated by other HMAC-SHA256 implementations
+        byte[] payload = "Hello, World!".getBytes(UTF_8);
+        String expected = "sha256=757107ea0eb2509fc211221cce984b8a37570b6d7586c22c46f4379c8b043e17";
+
+        // When it is signed
+        // Then the header value should be the same
+        assertThat(signature.sign(payload), is(expected));
+    }
+
+    @Test public void signedPayloadShouldBeVerified() throws IOException {
+        // Given a payload which has been signed with the secret
+        byte[] expected = WebhookSignature.parse(signature.sign(PAYLOAD));
+
+        // When the payload is parsed as it is signed
+        WebhookSignature.SigningInputStream in = signature.sign(new ByteArrayInputStream(PAYLOAD));
+        TriggerWebhook hook = new TriggerWebhookParser().parse(in);
+
+        // Then the signature, covering the trailing newline, should be verified
+        assertThat(hook.getService(), is("faas"));
+        assertThat(in.verify(expected, PAYLOAD.length), is(true));
+    }
+
+    @Test public void alteredPayloadShouldNotBeVerified() throws IOException {
+        // Given a payload which has been altered after it was signed
+        byte[] expected = WebhookSignature.parse(signature.sign(PAYLOAD));
+        byte[] altered = new String(PAYLOAD, UTF_8).replace("faas", "fake").getBytes(UTF_8);
+
+        // When the payload is read
+        WebhookSignature.SigningInputStream in = signature.sign(new ByteArrayInputStream(altered));
+        new TriggerWebhookParser().parse(in);
+
+        // Then the signature should not match
+        assertThat(in.verify(expected, altered.length), is(false));
+    }
+
+    @Test public void payloadSignedWithAnotherSecretShouldNotBeVerified() throws IOException {
+        // Given a payload signed with another secret
+        byte[] expected = WebhookSignature.parse(new WebhookSignature("another secret").sign(PAYLOAD));
+
+        // When the payload is read
+        WebhookSignature.SigningInputStream in = signature.sign(new ByteArrayInputStream(PAYLOAD));
+
+        // Then the signature should not match
+        assertThat(in.verify(expected, PAYLOAD.length), is(false));
+    }
+
+    @Test public void signatureShouldKnowItsSecret() {
+        assertThat(signature.isFor(SECRET), is(true));
+        assertThat(signature.isFor("Another secret"), is(false));
+    }
+
+    @Test public void oversizedPayloadShouldNotBeVerified() throws IOException {
+        // Given a correctly-signed payload
+        byte[] expected = WebhookSignature.parse(signature.sign(PAYLOAD));
+
+        // When the payload is larger than allowed
+        WebhookSignature.SigningInputStream in = signature.sign(new ByteArrayInputStream(PAYLOAD));
+
+        // Then it should not be verified
+        assertThat(in.verify(expected, PAYLOAD.length - 1), is(false));
+    }
+
+    @Test public void malformedSignatureHeadersShouldNotBeParsed() {
+        assertThat(WebhookSignature.parse(null), is(nullValue()));
+        assertThat(WebhookSignature.parse(""), is(nullValue()));
+        assertThat(WebhookSignature.parse("sha256="), is(nullValue()));
+        assertThat(WebhookSignature.parse("sha1=757107ea0eb2509fc211221cce984b8a37570b6d7586c22c46f4379c8b043e17"),
+                is(nullValue()));
+        assertThat(WebhookSignature.parse("sha256=757107ea0eb2509fc211221cce984b8a37570b6d7586c22c46f4379c8b043e1g"),
+                is(nullValue()));
+    }
+
+    @Test public void signatureHeadersShouldBeParsedRegardlessOfCase() {
+        assertThat(WebhookSignature.parse("SHA256=757107EA0EB2509FC211221CCE984B8A37570B6D7586C22C46F4379C8B043E17"),
+                is(WebhookSignature.parse(signature.sign("Hello, World!".getBytes(UTF_8)))));
+    }
+
+}
@@ -1,11 +1,13 @@
 package org.jenkinsci.plugins.deploydb.model.events;
 
 import hudson.model.AbstractProject;
+import hudson.model.Items;
 import org.junit.Before;
 import org.junit.Test;
 
 import static java.util.Locale.ROOT;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.jenkinsci.plugins.deploydb.Util.createWebhook;
 import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_COMPLETED;
 import static org.jenkinsci.plugins.deploydb.model.EventType.DEPLOYMENT_STARTED;
@@ -97,4 +99,39 @@ public class DeployDbTriggerEventTest {
         assertThat(event.accepts(job, createWebhook(DEPLOYMENT_STARTED, "foobar-0")), is(false));
     }
 
-}
\ No newline at end of file
+    @Test public void changingRegexShouldChangeMatchingServices() throws Exception {
+        // Given a deployment started event definition, configured for a certain service
+        DeployDbTriggerEvent event = new DeploymentStartedEvent();
+        event.setServiceNameRegex("foo-.+");
+        assertThat(event.accepts(job, createWebhook(DEPLOYMENT_STARTED, "foo-service")), is(true));
+
+        // When the regular expression is changed
+        event.setServiceNameRegex("bar-.+");
+
+        // Then it should only match against the newly-configured services
+        assertThat(event.accepts(job, createWebhook(DEPLOYMENT_STARTED, "foo-service")), is(false));
+        assertThat(event.accepts(job, createWebhook(DEPLOYMENT_STARTED, "bar-service")), is(true));
+    }
+
+    @Test public void loadedEventShouldCompileRegex() throws Exception {
+        // Given an event definition, configured with a regular expression
+        DeployDbTriggerEvent event = new DeploymentStartedEvent();
+        event.setServiceNameRegex("foo-\\d+");
+
+        // When it has been saved to and loaded from disk
+        DeployDbTriggerEvent loaded = (DeployDbTriggerEvent) Items.XSTREAM2.fromXML(Items.XSTREAM2.toXML(event));
+
+        // Then the compiled regular expression should be available
+        assertThat(loaded.getServiceNamePattern().pattern(), is("foo-\\d+"));
+    }
+
+    @Test public void invalidRegexShouldHaveNoPattern() throws Exception {
+        // Given an event definition, configured with a regular expression that does not compile
+        DeployDbTriggerEvent event = new DeploymentStartedEvent();
+        event.setServiceNameRegex("foo(bar");
+
+        // Then no compiled regular expression should be available
+        assertThat(event.getServiceNamePattern(), is(nullValue()));
+    }
+
+}